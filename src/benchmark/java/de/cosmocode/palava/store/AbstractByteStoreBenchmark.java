@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Abstract JMH benchmark for {@link ByteStore} implementations. Units provided
+ * by sub classes have to implement {@link ByteStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public abstract class AbstractByteStoreBenchmark extends AbstractStoreBenchmark {
+
+    @Override
+    public void setUp() throws IOException {
+        super.setUp();
+        Preconditions.checkState(store() instanceof ByteStore, "%s is no ByteStore", store());
+    }
+
+    /**
+     * Benchmarks {@link ByteStore#view(String)}, including touching every page of the buffer
+     * and releasing it afterwards.
+     *
+     * @return a checksum of the touched bytes
+     * @throws IOException if viewing failed
+     */
+    @Benchmark
+    public long view() throws IOException {
+        final ByteStore store = ByteStore.class.cast(store());
+        final ByteBuffer buffer = store.view(identifier());
+        long checksum = 0;
+        for (int i = buffer.position(); i < buffer.limit(); i += 4096) {
+            checksum += buffer.get(i);
+        }
+        store.release(buffer);
+        return checksum;
+    }
+
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import de.cosmocode.junit.UnitProvider;
+
+/**
+ * Abstract JMH benchmark for {@link Store} implementations. Sub classes provide
+ * units the same way {@link AbstractStoreTest} implementations do.
+ *
+ * <p>
+ *   Every benchmark reports throughput and sampled latencies (including percentiles)
+ *   for all payload sizes. Use the {@code -t} option of JMH to vary the number of threads.
+ *   Writing large payloads is measured separately in single shot mode, so every
+ *   iteration writes a fixed amount of data and {@link #cleanUp()} can reclaim it.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public abstract class AbstractStoreBenchmark implements UnitProvider<Store> {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final int LARGE_SIZE = 100 * 1024 * 1024;
+
+    /**
+     * The payload size in bytes, from 1kb to 1mb. Larger payloads are covered by
+     * {@link #createLarge()} and {@link #createDeleteLarge()}.
+     */
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    /**
+     * The number of empty blobs being stored in addition, used by {@link #list()}
+     * and {@link #iterate()}.
+     */
+    @Param({"10000"})
+    public int population;
+
+    private final Queue<String> created = new ConcurrentLinkedQueue<String>();
+
+    private Store store;
+
+    private byte[] payload;
+
+    private byte[] large;
+
+    private String identifier;
+
+    /**
+     * Releases the given unit after the benchmark. Does nothing by default.
+     *
+     * @param unit the unit used by this benchmark
+     * @throws IOException if releasing failed
+     */
+    protected void dispose(Store unit) throws IOException {
+
+    }
+
+    /**
+     * Reclaims the space of deleted blobs after every iteration. Does nothing by default,
+     * sub classes of stores which only mark deleted blobs should override this method.
+     *
+     * @param unit the unit used by this benchmark
+     * @throws IOException if reclaiming failed
+     */
+    protected void reclaim(Store unit) throws IOException {
+
+    }
+
+    /**
+     * Returns the unit being benchmarked.
+     *
+     * @return the current unit
+     */
+    protected Store store() {
+        return store;
+    }
+
+    /**
+     * Returns the identifier of a blob of the current payload size.
+     *
+     * @return an existing identifier
+     */
+    protected String identifier() {
+        return identifier;
+    }
+
+    /**
+     * Creates the unit, a payload of the configured size and the population.
+     *
+     * @throws IOException if creating failed
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = unit();
+        payload = new byte[size];
+        new Random(0).nextBytes(payload);
+        large = new byte[LARGE_SIZE];
+        new Random(0).nextBytes(large);
+        identifier = store.create(new ByteArrayInputStream(payload));
+        final byte[] empty = {};
+        for (int i = 0; i < population; i++) {
+            store.create(new ByteArrayInputStream(empty));
+        }
+    }
+
+    /**
+     * Deletes all blobs created by {@link #create()} and {@link #createLarge()} and
+     * reclaims their space to keep the size of the store stable.
+     *
+     * @throws IOException if deleting failed
+     */
+    @TearDown(Level.Iteration)
+    public void cleanUp() throws IOException {
+        final List<String> identifiers = Lists.newArrayList();
+        while (true) {
+            final String next = created.poll();
+            if (next == null) {
+                break;
+            }
+            identifiers.add(next);
+        }
+        store.deleteAll(identifiers);
+        reclaim(store);
+    }
+
+    /**
+     * Releases the unit.
+     *
+     * @throws IOException if releasing failed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dispose(store);
+    }
+
+    /**
+     * Benchmarks {@link Store#create(InputStream)}.
+     *
+     * @return the generated identifier
+     * @throws IOException if creating failed
+     */
+    @Benchmark
+    public String create() throws IOException {
+        final String generated = store.create(new ByteArrayInputStream(payload));
+        created.add(generated);
+        return generated;
+    }
+
+    /**
+     * Benchmarks {@link Store#create(InputStream)} with a payload of 100mb. Every
+     * iteration creates a single blob, independent of the configured size.
+     *
+     * @return the generated identifier
+     * @throws IOException if creating failed
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public String createLarge() throws IOException {
+        final String generated = store.create(new ByteArrayInputStream(large));
+        created.add(generated);
+        return generated;
+    }
+
+    /**
+     * Benchmarks {@link Store#read(String)}, including consuming the whole stream.
+     *
+     * @return the number of bytes read
+     * @throws IOException if reading failed
+     */
+    @Benchmark
+    public long read() throws IOException {
+        final InputStream stream = store.read(identifier);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            while (true) {
+                final int read = stream.read(buffer);
+                if (read == -1) {
+                    return total;
+                }
+                total += read;
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Benchmarks {@link Store#delete(String)}. Every invocation has to create
+     * the blob being deleted first, subtract the results of {@link #create()}
+     * to get the costs of deleting alone.
+     *
+     * @throws IOException if creating or deleting failed
+     */
+    @Benchmark
+    public void createDelete() throws IOException {
+        store.delete(store.create(new ByteArrayInputStream(payload)));
+    }
+
+    /**
+     * Benchmarks {@link Store#delete(String)} of a blob of 100mb the same way
+     * {@link #createDelete()} does. Every iteration creates and deletes a single blob,
+     * independent of the configured size.
+     *
+     * @throws IOException if creating or deleting failed
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public void createDeleteLarge() throws IOException {
+        store.delete(store.create(new ByteArrayInputStream(large)));
+    }
+
+    /**
+     * Benchmarks {@link Store#list()}.
+     *
+     * @return the number of identifiers
+     * @throws IOException if listing failed
+     */
+    @Benchmark
+    public int list() throws IOException {
+        return store.list().size();
+    }
+
+    /**
+     * Benchmarks {@link Store#iterate(String, int)}.
+     *
+     * @return the number of identifiers
+     * @throws IOException if listing failed
+     */
+    @Benchmark
+    public int iterate() throws IOException {
+        final Iterator<String> iterator = store.iterate(null, PAGE_SIZE);
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+}
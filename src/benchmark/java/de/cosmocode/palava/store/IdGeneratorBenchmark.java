@@ -0,0 +1,85 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the {@link IdGenerator} implementations. Use the {@code -t} option
+ * of JMH to measure contention.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IdGeneratorBenchmark {
+
+    /**
+     * The generator being benchmarked, using the names supported by {@link IdGeneratorModule}.
+     */
+    @Param({"uuid", "uuidBase", "timeBased", "random"})
+    public String generator;
+
+    private IdGenerator unit;
+
+    /**
+     * Creates the generator.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("uuid".equals(generator)) {
+            unit = new UUIDGenerator();
+        } else if ("uuidBase".equals(generator)) {
+            unit = new UUIDBaseGenerator();
+        } else if ("timeBased".equals(generator)) {
+            unit = new TimeBasedGenerator();
+        } else if ("random".equals(generator)) {
+            unit = new RandomGenerator();
+        } else {
+            throw new IllegalArgumentException(generator);
+        }
+    }
+
+    /**
+     * Benchmarks {@link IdGenerator#generate()}.
+     *
+     * @return the generated identifier
+     */
+    @Benchmark
+    public String generate() {
+        return unit.generate();
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks {@link SegmentStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public class SegmentStoreBenchmark extends AbstractByteStoreBenchmark {
+
+    /**
+     * Whether creates and deletes force their records to disk. Run with multiple
+     * threads to see the effect of group commits.
+     */
+    @Param({"false", "true"})
+    public boolean durable;
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    @Override
+    public Store unit() {
+        final SegmentStore unit = stores.open();
+        unit.setDurable(durable);
+        return unit;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Deletes only append tombstones, compaction frees their space.
+     * </p>
+     */
+    @Override
+    protected void reclaim(Store unit) throws IOException {
+        SegmentStore.class.cast(unit).compact();
+    }
+
+    @Override
+    protected void dispose(Store unit) throws IOException {
+        stores.dispose();
+    }
+
+}
@@ -16,21 +16,84 @@
 
 package de.cosmocode.palava.store;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
 
 import de.cosmocode.commons.io.ByteBuffers;
 
 /**
  * Abstract base implementation of the {@link ByteStore} interface
- * which provides implementations for {@link Store#read(String)} and {@link ByteStore#create(ByteBuffer)}.
+ * which provides implementations for {@link Store#read(String)}, {@link ByteStore#create(ByteBuffer)},
+ * {@link ByteStore#view(String, long, int)} and {@link Store#transferTo(String, WritableByteChannel)}.
+ *
+ * <p>
+ *   Sub classes which need to allocate buffers in {@link #view(String)} should use
+ *   {@link #acquire(int)}, which takes direct buffers from a {@link BufferPool}.
+ *   Those buffers return to the pool once they are passed to {@link #release(ByteBuffer)},
+ *   which {@link #read(String)} and {@link #transferTo(String, WritableByteChannel)} do
+ *   automatically.
+ * </p>
  *
  * @author Willi Schoenborn
  */
-public abstract class AbstractByteStore implements ByteStore {
+public abstract class AbstractByteStore extends AbstractStore implements ByteStore {
+
+    private final BufferPool pool;
+
+    // slices handed out by view(String, long, int) mapped to the views they were taken from
+    private final ConcurrentMap<ByteBuffer, ByteBuffer> slices = new MapMaker().weakKeys().makeMap();
+    
+    protected AbstractByteStore() {
+        this(new BufferPool());
+    }
+    
+    /**
+     * Creates an {@link AbstractByteStore} which uses the given pool.
+     * 
+     * @since 2.2
+     * @param pool the pool used by {@link #acquire(int)}
+     * @throws NullPointerException if pool is null
+     */
+    protected AbstractByteStore(BufferPool pool) {
+        this.pool = Preconditions.checkNotNull(pool, "Pool");
+    }
+    
+    /**
+     * Acquires a direct buffer from the pool of this store.
+     * 
+     * @since 2.2
+     * @param size the required size
+     * @return a cleared direct buffer with a limit of size
+     */
+    protected final ByteBuffer acquire(int size) {
+        return pool.acquire(size);
+    }
+    
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Slices returned by the default {@link #view(String, long, int)} release
+     *   the view they were taken from.
+     * </p>
+     */
+    @Override
+    public void release(ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final ByteBuffer parent = slices.remove(buffer);
+        if (parent == null) {
+            pool.release(buffer);
+        } else {
+            release(parent);
+        }
+    }
 
     @Override
     public String create(ByteBuffer buffer) throws IOException {
@@ -47,11 +110,105 @@ public abstract class AbstractByteStore implements ByteStore {
         create(stream, identifier);
     }
     
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     *   Uses the size of the buffer returned by {@link #view(String)} by default.
+     * </p>
+     */
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final ByteBuffer buffer = view(identifier);
+        try {
+            return new BlobStat(identifier, buffer.remaining(), BlobStat.UNKNOWN, null);
+        } finally {
+            release(buffer);
+        }
+    }
+    
     @Override
     public InputStream read(String identifier) throws IOException {
         Preconditions.checkNotNull(identifier, "Identifier");
+        return stream(this, view(identifier));
+    }
+    
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        return stream(this, view(identifier, offset, (int) Math.min(length, Integer.MAX_VALUE)));
+    }
+    
+    /**
+     * Provides a stream of the given view which releases it to the given store once closed.
+     */
+    static InputStream stream(final ByteStore store, final ByteBuffer buffer) {
+        return new FilterInputStream(ByteBuffers.asInputStream(buffer)) {
+            
+            private boolean released;
+            
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (!released) {
+                    released = true;
+                    store.release(buffer);
+                }
+            }
+            
+        };
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     *   Slices the buffer returned by {@link #view(String)} by default, sub classes
+     *   should override this method if they are able to access ranges directly.
+     * </p>
+     */
+    @Override
+    public ByteBuffer view(String identifier, long offset, int length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        final ByteBuffer view = view(identifier);
+        final ByteBuffer slice = slice(view, offset, length);
+        slices.put(slice, view);
+        return slice;
+    }
+    
+    /**
+     * Slices the given buffer to the specified range, truncated at its limit.
+     * 
+     * @param buffer the buffer
+     * @param offset the offset, relative to the position of buffer
+     * @param length the maximum length
+     * @return a new buffer sharing the content of buffer
+     */
+    static ByteBuffer slice(ByteBuffer buffer, long offset, int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        final int start = (int) Math.min(offset, duplicate.remaining()) + duplicate.position();
+        duplicate.position(start);
+        duplicate.limit(start + Math.min(length, duplicate.remaining()));
+        return duplicate.slice();
+    }
+    
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
         final ByteBuffer buffer = view(identifier);
-        return ByteBuffers.asInputStream(buffer);
+        try {
+            long transferred = 0;
+            while (buffer.hasRemaining()) {
+                transferred += target.write(buffer);
+            }
+            return transferred;
+        } finally {
+            release(buffer);
+        }
     }
 
 }
@@ -0,0 +1,339 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Abstract base implementation of the {@link Store} interface
+ * which provides an implementation for {@link Store#transferTo(String, WritableByteChannel)}
+ * and sequential implementations of the batch operations {@link Store#createAll(Map)},
+ * {@link Store#readAll(Collection)} and {@link Store#deleteAll(Collection)}.
+ * {@link Store#iterate(String, int)} is implemented by paging through {@link Store#list(String, int)}
+ * and {@link Store#list()} by collecting all identifiers of such an iteration.
+ * {@link Store#read(String, long, long)} skips to the requested offset of {@link Store#read(String)}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public abstract class AbstractStore implements Store {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Override
+    public void createAll(Map<String, ? extends InputStream> streams) throws IOException {
+        Preconditions.checkNotNull(streams, "Streams");
+        for (Map.Entry<String, ? extends InputStream> entry : streams.entrySet()) {
+            create(entry.getValue(), entry.getKey());
+        }
+    }
+
+    @Override
+    public Map<String, InputStream> readAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        final Map<String, InputStream> streams = Maps.newLinkedHashMap();
+        boolean complete = false;
+        try {
+            for (String identifier : identifiers) {
+                streams.put(identifier, read(identifier));
+            }
+            complete = true;
+            return streams;
+        } finally {
+            if (!complete) {
+                closeAll(streams.values());
+            }
+        }
+    }
+
+    /**
+     * Closes all given streams, ignoring failures. Used to clean up after
+     * a batch operation failed halfway.
+     *
+     * @param streams the streams to close
+     */
+    static void closeAll(Collection<? extends InputStream> streams) {
+        for (InputStream stream : streams) {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Opens and closes the stream returned by {@link #read(String)} by default.
+     * </p>
+     */
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final InputStream stream;
+        try {
+            stream = read(identifier);
+        } catch (IllegalStateException e) {
+            return false;
+        }
+        stream.close();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Counts the bytes of the stream returned by {@link #read(String)} by default,
+     *   creation time and hash are not available.
+     * </p>
+     */
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final InputStream stream = read(identifier);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            while (true) {
+                final int read = stream.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                size += read;
+            }
+            return new BlobStat(identifier, size, BlobStat.UNKNOWN, null);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        return range(read(identifier), offset, length);
+    }
+
+    static void checkRange(long offset, long length) {
+        Preconditions.checkArgument(offset >= 0, "Offset must not be negative");
+        Preconditions.checkArgument(length >= 0, "Length must not be negative");
+    }
+
+    /**
+     * Skips the given offset of the specified stream and limits the remainder to length bytes.
+     * The stream is closed if skipping fails.
+     *
+     * @param stream the source stream
+     * @param offset the number of bytes to skip
+     * @param length the maximum number of bytes to provide afterwards
+     * @return a stream providing the range
+     * @throws IOException if skipping failed
+     */
+    static InputStream range(InputStream stream, long offset, long length) throws IOException {
+        boolean skipped = false;
+        try {
+            long remaining = offset;
+            while (remaining > 0) {
+                final long skip = stream.skip(remaining);
+                if (skip > 0) {
+                    remaining -= skip;
+                } else if (stream.read() == -1) {
+                    break;
+                } else {
+                    remaining--;
+                }
+            }
+            skipped = true;
+        } finally {
+            if (!skipped) {
+                stream.close();
+            }
+        }
+        return limit(stream, length);
+    }
+
+    /**
+     * Limits the given stream to the specified number of bytes.
+     *
+     * @param stream the source stream
+     * @param length the maximum number of bytes
+     * @return a stream providing at most length bytes of stream, closing it on close
+     */
+    static InputStream limit(InputStream stream, final long length) {
+        return new FilterInputStream(stream) {
+
+            private long remaining = length;
+
+            private long mark = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                final int value = super.read();
+                if (value != -1) {
+                    remaining--;
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (remaining <= 0) {
+                    return -1;
+                }
+                final int read = super.read(b, off, (int) Math.min(len, remaining));
+                if (read > 0) {
+                    remaining -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                final long skipped = super.skip(Math.min(n, remaining));
+                remaining -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(super.available(), remaining);
+            }
+
+            @Override
+            public synchronized void mark(int readlimit) {
+                super.mark(readlimit);
+                mark = remaining;
+            }
+
+            @Override
+            public synchronized void reset() throws IOException {
+                super.reset();
+                remaining = mark;
+            }
+
+        };
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        return transfer(read(identifier), target);
+    }
+
+    /**
+     * Copies the given stream to the specified channel and closes the stream afterwards.
+     *
+     * @param stream the source stream
+     * @param target the target channel
+     * @return the number of bytes copied
+     * @throws IOException if reading or writing failed
+     */
+    static long transfer(InputStream stream, WritableByteChannel target) throws IOException {
+        try {
+            final ReadableByteChannel source = Channels.newChannel(stream);
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long transferred = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    transferred += target.write(buffer);
+                }
+                buffer.clear();
+            }
+            return transferred;
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        return ImmutableSet.copyOf(iterate(null, PAGE_SIZE));
+    }
+
+    @Override
+    public Iterator<String> iterate(final String after, final int pageSize) throws IOException {
+        Preconditions.checkArgument(pageSize > 0, "Page size must be positive");
+        final List<String> first = list(after, pageSize);
+        return new AbstractIterator<String>() {
+
+            private Iterator<String> page = first.iterator();
+
+            private String cursor = after;
+
+            private boolean exhausted = first.size() < pageSize;
+
+            @Override
+            protected String computeNext() {
+                if (!page.hasNext()) {
+                    if (exhausted) {
+                        return endOfData();
+                    }
+                    final List<String> next;
+                    try {
+                        next = list(cursor, pageSize);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    exhausted = next.size() < pageSize;
+                    page = next.iterator();
+                    if (!page.hasNext()) {
+                        return endOfData();
+                    }
+                }
+                cursor = page.next();
+                return cursor;
+            }
+
+        };
+    }
+
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        for (String identifier : identifiers) {
+            delete(identifier);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Abstract base implementation of the {@link Store} interface which implements
+ * the exception semantics of {@link Store#create(InputStream, String)},
+ * {@link Store#read(String)} and {@link Store#delete(String)} using {@link IdentifierLocks}
+ * instead of a global lock.
+ *
+ * <p>
+ *   Creates stage the incoming stream using {@link #stage(InputStream, String)} without
+ *   holding any lock, so a slow upload never blocks other identifiers of its stripe.
+ *   Creates and deletes then hold the lock of their identifier's stripe only while checking
+ *   for presence and publishing respectively removing, so operations on different
+ *   identifiers proceed in parallel. Reads don't lock at all, which requires sub classes
+ *   to publish staged binary data atomically, e.g. by renaming a temporary file.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public abstract class AbstractStripedStore extends AbstractStore {
+
+    private final IdentifierLocks locks;
+
+    private IdGenerator generator = new UUIDGenerator();
+
+    protected AbstractStripedStore() {
+        this(new IdentifierLocks());
+    }
+
+    protected AbstractStripedStore(IdentifierLocks locks) {
+        this.locks = Preconditions.checkNotNull(locks, "Locks");
+    }
+
+    @Inject(optional = true)
+    void setGenerator(@Named(StoreConfig.ID_GENERATOR) IdGenerator generator) {
+        this.generator = Preconditions.checkNotNull(generator, "Generator");
+    }
+
+    /**
+     * Returns the lock guarding the given identifier, for sub classes which
+     * need to implement additional operations.
+     *
+     * @param identifier the identifier
+     * @return the lock
+     */
+    protected final Lock lockFor(String identifier) {
+        return locks.get(identifier);
+    }
+
+    /**
+     * Validates the given identifier. Does nothing by default.
+     *
+     * @param identifier the identifier, never null
+     * @throws IllegalArgumentException if identifier is not valid
+     */
+    protected void checkIdentifier(String identifier) {
+
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Called while holding the lock of identifier by {@link #create(InputStream, String)}
+     *   and {@link #delete(String)}, but must not require it.
+     * </p>
+     */
+    @Override
+    public abstract boolean exists(String identifier) throws IOException;
+
+    /**
+     * Writes the given stream to storage without making it visible yet.
+     * Called without holding any lock.
+     *
+     * @param stream the binary data
+     * @param identifier the identifier the data will be published under
+     * @return the staged data
+     * @throws IOException if writing failed
+     */
+    protected abstract Staged stage(InputStream stream, String identifier) throws IOException;
+
+    /**
+     * Opens the binary data of the given identifier. Called without holding any lock.
+     *
+     * @param identifier the identifier
+     * @return a stream of the binary data or null if the identifier is not present
+     * @throws IOException if opening failed
+     */
+    protected abstract InputStream open(String identifier) throws IOException;
+
+    /**
+     * Removes the given identifier. Called while holding its lock,
+     * after {@link #exists(String)} returned true.
+     *
+     * @param identifier the present identifier
+     * @throws IOException if removing failed
+     */
+    protected abstract void remove(String identifier) throws IOException;
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final String identifier = generator.generate();
+        create(stream, identifier);
+        return identifier;
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkIdentifier(identifier);
+        // fails fast without consuming the stream, checked again below
+        Preconditions.checkState(!exists(identifier), "%s already present", identifier);
+        final Staged staged = stage(stream, identifier);
+        try {
+            final Lock lock = lockFor(identifier);
+            lock.lock();
+            try {
+                Preconditions.checkState(!exists(identifier), "%s already present", identifier);
+                staged.publish();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            staged.discard();
+        }
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkIdentifier(identifier);
+        final InputStream stream = open(identifier);
+        Preconditions.checkState(stream != null, "%s not present", identifier);
+        return stream;
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkIdentifier(identifier);
+        final Lock lock = lockFor(identifier);
+        lock.lock();
+        try {
+            Preconditions.checkState(exists(identifier), "%s not present", identifier);
+            remove(identifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Binary data written by {@link AbstractStripedStore#stage(InputStream, String)}
+     * which is not visible yet.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    protected interface Staged {
+
+        /**
+         * Makes the staged data visible under its identifier. Called while holding the lock
+         * of the identifier, after {@link AbstractStripedStore#exists(String)} returned false.
+         * The data has to become visible to {@link AbstractStripedStore#open(String)} atomically
+         * and must not be visible at all if this method fails.
+         *
+         * @throws IOException if publishing failed
+         */
+        void publish() throws IOException;
+
+        /**
+         * Removes the staged data unless it has been published. Called exactly once
+         * after publishing succeeded, failed or has been skipped.
+         */
+        void discard();
+
+    }
+
+}
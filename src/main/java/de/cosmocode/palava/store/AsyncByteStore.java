@@ -0,0 +1,79 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.nio.ByteBuffer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A non-blocking variant of {@link ByteStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public interface AsyncByteStore extends AsyncStore {
+
+    /**
+     * Asynchronous version of {@link ByteStore#create(ByteBuffer)}.
+     *
+     * @param buffer the binary data being stored
+     * @return a future providing the generated identifier
+     * @throws NullPointerException if buffer is null
+     */
+    ListenableFuture<String> create(ByteBuffer buffer);
+
+    /**
+     * Asynchronous version of {@link ByteStore#create(ByteBuffer, String)}.
+     *
+     * @param buffer the binary data being stored
+     * @param identifier the identifier being used
+     * @return a future which completes once the data has been stored
+     * @throws NullPointerException if buffer or identifier is null
+     */
+    ListenableFuture<Void> create(ByteBuffer buffer, String identifier);
+
+    /**
+     * Asynchronous version of {@link ByteStore#view(String)}.
+     *
+     * @param identifier the identifier of the binary data being retrieved
+     * @return a future providing the {@link ByteBuffer} associated with the given identifier
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<ByteBuffer> view(String identifier);
+
+    /**
+     * Asynchronous version of {@link ByteStore#view(String, long, int)}.
+     *
+     * @param identifier the identifier of the binary data being retrieved
+     * @param offset the position of the first byte being retrieved
+     * @param length the maximum number of bytes being retrieved
+     * @return a future providing the {@link ByteBuffer} containing the specified range
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<ByteBuffer> view(String identifier, long offset, int length);
+
+    /**
+     * Same as {@link ByteStore#release(ByteBuffer)}. Releasing never blocks
+     * and is therefore not asynchronous.
+     *
+     * @param buffer the buffer being released
+     * @throws NullPointerException if buffer is null
+     */
+    void release(ByteBuffer buffer);
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A non-blocking variant of {@link Store}. Every method returns immediately,
+ * the result or failure is provided by the returned {@link ListenableFuture}.
+ *
+ * <p>
+ *   Null arguments are rejected immediately using a {@link NullPointerException},
+ *   all other exceptions documented by {@link Store}, e.g. {@link IllegalStateException}s
+ *   for missing identifiers or {@link java.io.IOException}s, are provided as the cause
+ *   of the {@link java.util.concurrent.ExecutionException} thrown by {@link ListenableFuture#get()}.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public interface AsyncStore {
+
+    /**
+     * Asynchronous version of {@link Store#create(InputStream)}.
+     *
+     * @param stream the binary data being stored
+     * @return a future providing the generated identifier
+     * @throws NullPointerException if stream is null
+     */
+    ListenableFuture<String> create(InputStream stream);
+
+    /**
+     * Asynchronous version of {@link Store#create(InputStream, String)}.
+     *
+     * @param stream the binary data being stored
+     * @param identifier the identifier being used
+     * @return a future which completes once the data has been stored
+     * @throws NullPointerException if stream or identifier is null
+     */
+    ListenableFuture<Void> create(InputStream stream, String identifier);
+
+    /**
+     * Asynchronous version of {@link Store#createAll(Map)}.
+     *
+     * @param streams the binary data being stored, mapped by the identifiers being used
+     * @return a future which completes once all data has been stored
+     * @throws NullPointerException if streams is null
+     */
+    ListenableFuture<Void> createAll(Map<String, ? extends InputStream> streams);
+
+    /**
+     * Asynchronous version of {@link Store#exists(String)}.
+     *
+     * @param identifier the identifier being checked
+     * @return a future providing whether identifier is present
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<Boolean> exists(String identifier);
+
+    /**
+     * Asynchronous version of {@link Store#stat(String)}.
+     *
+     * @param identifier the identifier of the binary data
+     * @return a future providing the metadata of the binary data
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<BlobStat> stat(String identifier);
+
+    /**
+     * Asynchronous version of {@link Store#read(String)}.
+     *
+     * @param identifier the identifier of the binary data being retrieved
+     * @return a future providing the InputStream associated with the given identifier
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<InputStream> read(String identifier);
+
+    /**
+     * Asynchronous version of {@link Store#read(String, long, long)}.
+     *
+     * @param identifier the identifier of the binary data being retrieved
+     * @param offset the position of the first byte being retrieved
+     * @param length the maximum number of bytes being retrieved
+     * @return a future providing the InputStream of the specified range
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<InputStream> read(String identifier, long offset, long length);
+
+    /**
+     * Asynchronous version of {@link Store#readAll(Collection)}.
+     *
+     * @param identifiers the identifiers of the binary data being retrieved
+     * @return a future providing the InputStreams mapped by their identifiers
+     * @throws NullPointerException if identifiers is null
+     */
+    ListenableFuture<Map<String, InputStream>> readAll(Collection<String> identifiers);
+
+    /**
+     * Asynchronous version of {@link Store#transferTo(String, WritableByteChannel)}.
+     *
+     * @param identifier the identifier of the binary data being transferred
+     * @param target the channel the binary data will be written to
+     * @return a future providing the number of bytes transferred
+     * @throws NullPointerException if identifier or target is null
+     */
+    ListenableFuture<Long> transferTo(String identifier, WritableByteChannel target);
+
+    /**
+     * Asynchronous version of {@link Store#list()}.
+     *
+     * @return a future providing a set of all identifiers
+     */
+    ListenableFuture<Set<String>> list();
+
+    /**
+     * Asynchronous version of {@link Store#list(String, int)}.
+     *
+     * @param after the cursor, null to start at the first identifier
+     * @param limit the maximum number of identifiers being returned
+     * @return a future providing an ordered list of at most limit identifiers
+     */
+    ListenableFuture<List<String>> list(String after, int limit);
+
+    /**
+     * Asynchronous version of {@link Store#delete(String)}.
+     *
+     * @param identifier the identifier of the data being deleted
+     * @return a future which completes once the data has been deleted
+     * @throws NullPointerException if identifier is null
+     */
+    ListenableFuture<Void> delete(String identifier);
+
+    /**
+     * Asynchronous version of {@link Store#deleteAll(Collection)}.
+     *
+     * @param identifiers the identifiers of the data being deleted
+     * @return a future which completes once all data has been deleted
+     * @throws NullPointerException if identifiers is null
+     */
+    ListenableFuture<Void> deleteAll(Collection<String> identifiers);
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Immutable metadata of a single blob, as returned by {@link Store#stat(String)}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class BlobStat {
+
+    /**
+     * Creation time of blobs whose backend does not record it.
+     */
+    public static final long UNKNOWN = -1L;
+
+    private final String identifier;
+
+    private final long size;
+
+    private final long created;
+
+    private final String hash;
+
+    /**
+     * Creates a new {@link BlobStat}.
+     *
+     * @param identifier the identifier of the blob
+     * @param size the size in bytes
+     * @param created the creation time in milliseconds since the epoch or {@link #UNKNOWN}
+     * @param hash a hex encoded hash of the content, or null if not available
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if size is negative
+     */
+    public BlobStat(String identifier, long size, long created, String hash) {
+        this.identifier = Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkArgument(size >= 0, "Size must not be negative");
+        this.size = size;
+        this.created = created;
+        this.hash = hash;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the creation time.
+     *
+     * @return the creation time in milliseconds since the epoch or {@link #UNKNOWN}
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns a hex encoded hash of the content. The algorithm depends on the
+     * backend, e.g. SHA-256 for {@link DeduplicatingStore}.
+     *
+     * @return the hash or null if the backend does not keep one
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof BlobStat)) {
+            return false;
+        }
+        final BlobStat other = (BlobStat) that;
+        return identifier.equals(other.identifier) && size == other.size &&
+            created == other.created && Objects.equal(hash, other.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(identifier, size, created, hash);
+    }
+
+    @Override
+    public String toString() {
+        return "BlobStat [identifier=" + identifier + ", size=" + size + ", created=" + created +
+            ", hash=" + hash + "]";
+    }
+
+}
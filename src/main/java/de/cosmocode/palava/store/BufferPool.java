@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+
+/**
+ * A thread-safe pool of direct {@link ByteBuffer}s.
+ *
+ * <p>
+ *   Buffers are handed out in power-of-two size classes, starting at {@link #MIN_BUFFER_SIZE}.
+ *   Requests larger than the maximum buffer size are served by fresh, unpooled buffers.
+ *   Released buffers are kept for reuse until the retained capacity reaches its limit,
+ *   anything beyond is left to the garbage collector. Only buffers acquired from a pool
+ *   are accepted by its {@link #release(ByteBuffer)}, everything else is ignored,
+ *   which makes releasing foreign buffers, e.g. memory mapped views, safe.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+    public static final long DEFAULT_MAX_RETAINED = 64L * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+    private final int maxBufferSize;
+
+    private final long maxRetained;
+
+    private final List<Queue<ByteBuffer>> free;
+
+    private final AtomicLong retained = new AtomicLong();
+
+    private final ConcurrentMap<ByteBuffer, Boolean> outstanding = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Creates a new {@link BufferPool} using {@link #DEFAULT_MAX_BUFFER_SIZE}
+     * and {@link #DEFAULT_MAX_RETAINED}.
+     */
+    public BufferPool() {
+        this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_MAX_RETAINED);
+    }
+
+    /**
+     * Creates a new {@link BufferPool}.
+     *
+     * @param maxBufferSize the largest pooled buffer size, rounded up to the next power of two
+     * @param maxRetained the maximum capacity of all released buffers kept for reuse
+     * @throws IllegalArgumentException if maxBufferSize is not in [{@link #MIN_BUFFER_SIZE}, 2^30]
+     *         or maxRetained is negative
+     */
+    public BufferPool(int maxBufferSize, long maxRetained) {
+        Preconditions.checkArgument(maxBufferSize >= MIN_BUFFER_SIZE && maxBufferSize <= 1 << 30,
+            "Max buffer size must be in [%s, 2^30]", MIN_BUFFER_SIZE);
+        Preconditions.checkArgument(maxRetained >= 0, "Max retained must not be negative");
+        final int classes = sizeClassOf(maxBufferSize) + 1;
+        this.maxBufferSize = MIN_BUFFER_SIZE << (classes - 1);
+        this.maxRetained = maxRetained;
+        this.free = Lists.newArrayListWithCapacity(classes);
+        for (int i = 0; i < classes; i++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Acquires a direct buffer with position 0 and a limit of exactly the given size.
+     * The capacity of the returned buffer may be larger.
+     *
+     * @param size the required size
+     * @return a cleared direct buffer
+     * @throws IllegalArgumentException if size is negative
+     */
+    public ByteBuffer acquire(int size) {
+        Preconditions.checkArgument(size >= 0, "Size must not be negative");
+        if (size > maxBufferSize) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        final int sizeClass = sizeClassOf(size);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass);
+        } else {
+            retained.addAndGet(-buffer.capacity());
+        }
+        buffer.clear().limit(size);
+        outstanding.put(buffer, Boolean.TRUE);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer previously acquired from this pool. The buffer, including
+     * all duplicates and slices of it, must not be used afterwards.
+     *
+     * @param buffer the buffer being released
+     * @return true if the buffer belonged to this pool, false if it was ignored
+     * @throws NullPointerException if buffer is null
+     */
+    public boolean release(ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        if (outstanding.remove(buffer) == null) {
+            return false;
+        }
+        final int capacity = buffer.capacity();
+        if (retained.addAndGet(capacity) > maxRetained) {
+            retained.addAndGet(-capacity);
+        } else {
+            free.get(sizeClassOf(capacity)).offer(buffer);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the capacity of all buffers currently kept for reuse.
+     *
+     * @return the retained capacity in bytes
+     */
+    public long getRetained() {
+        return retained.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool [maxBufferSize=" + maxBufferSize + ", maxRetained=" + maxRetained +
+            ", retained=" + retained + "]";
+    }
+
+}
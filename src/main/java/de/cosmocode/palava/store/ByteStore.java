@@ -62,4 +62,35 @@ public interface ByteStore extends Store {
      */
     ByteBuffer view(String identifier) throws IOException;
     
+    /**
+     * Returns a {@link ByteBuffer} view on a range of the binary data associated with
+     * the given identifier. The range is truncated at the end of the binary data,
+     * ranges starting beyond it are empty.
+     * 
+     * @since 2.2
+     * @param identifier the identifier of the binary data being retrieved
+     * @param offset the position of the first byte being retrieved
+     * @param length the maximum number of bytes being retrieved
+     * @return the {@link ByteBuffer} containing the specified range
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if offset or length is negative or identifier is not valid,
+     *         according to restrictions introduced by sub classes
+     * @throws IllegalStateException if the identifier is not present
+     * @throws IOException if reading failed
+     */
+    ByteBuffer view(String identifier, long offset, int length) throws IOException;
+    
+    /**
+     * Releases a buffer returned by {@link #view(String)}, allowing implementations
+     * which allocate buffers per view to reuse them. Callers must not access the buffer,
+     * including all duplicates and slices of it, afterwards. Releasing is optional,
+     * buffers which are never released are left to the garbage collector. Buffers
+     * not returned by {@link #view(String)} of this store are ignored.
+     * 
+     * @since 2.2
+     * @param buffer the buffer being released
+     * @throws NullPointerException if buffer is null
+     */
+    void release(ByteBuffer buffer);
+    
 }
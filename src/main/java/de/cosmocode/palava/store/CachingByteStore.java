@@ -0,0 +1,395 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.commons.io.ByteBuffers;
+
+/**
+ * A {@link ByteStore} decorator which keeps the binary data of recently viewed
+ * identifiers in memory.
+ *
+ * <p>
+ *   The cache is bounded by a byte budget, entries are evicted in least recently used order
+ *   until the budget is met. Blobs larger than the budget are never cached. Cached entries
+ *   can be kept off-heap using direct buffers. Concurrent misses for the same identifier
+ *   are coalesced into a single {@link ByteStore#view(String)} call on the backing store.
+ *   {@link #delete(String)} and {@link #deleteAll(Collection)} invalidate the affected entries.
+ * </p>
+ *
+ * <p>
+ *   All buffers returned by {@link #view(String)} are read-only. Views of blobs which are
+ *   too large to be cached are taken from the backing store for every call and have to be
+ *   passed to {@link #release(ByteBuffer)}, which returns them to the backing store.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class CachingByteStore extends ForwardingByteStore {
+
+    private final ByteStore store;
+
+    private final long capacity;
+
+    private final boolean direct;
+
+    // guarded by itself, access ordered
+    private final LinkedHashMap<String, ByteBuffer> cache = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+
+    private long weight;
+
+    private final ConcurrentMap<String, FutureTask<ByteBuffer>> loading = Maps.newConcurrentMap();
+
+    // read only wrappers of uncached views mapped to the views of the backing store
+    private final ConcurrentMap<ByteBuffer, ByteBuffer> views = new MapMaker().weakKeys().makeMap();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new {@link CachingByteStore} which keeps cached entries on the heap.
+     *
+     * @param store the backing store
+     * @param capacity the maximum number of bytes being cached
+     * @throws NullPointerException if store is null
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public CachingByteStore(ByteStore store, long capacity) {
+        this(store, capacity, false);
+    }
+
+    /**
+     * Creates a new {@link CachingByteStore}.
+     *
+     * @param store the backing store
+     * @param capacity the maximum number of bytes being cached
+     * @param direct true if cached entries should be kept in direct (off-heap) buffers
+     * @throws NullPointerException if store is null
+     * @throws IllegalArgumentException if capacity is negative
+     */
+    public CachingByteStore(ByteStore store, long capacity, boolean direct) {
+        this.store = Preconditions.checkNotNull(store, "Store");
+        Preconditions.checkArgument(capacity >= 0, "Capacity must not be negative");
+        this.capacity = capacity;
+        this.direct = direct;
+    }
+
+    @Override
+    protected ByteStore delegate() {
+        return store;
+    }
+
+    @Override
+    public ByteBuffer view(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final ByteBuffer cached = lookup(identifier);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return load(identifier);
+        } else {
+            hits.incrementAndGet();
+            return cached.duplicate();
+        }
+    }
+
+    private ByteBuffer lookup(String identifier) {
+        synchronized (cache) {
+            return cache.get(identifier);
+        }
+    }
+
+    private ByteBuffer load(final String identifier) throws IOException {
+        final FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer call() throws IOException {
+                final ByteBuffer buffer = store.view(identifier);
+                if (buffer.remaining() > capacity) {
+                    // will not be cached anyway, handed out to the loading thread only
+                    return readOnly(buffer);
+                }
+                try {
+                    return copy(buffer);
+                } finally {
+                    store.release(buffer);
+                }
+            }
+
+        });
+
+        final FutureTask<ByteBuffer> existing = loading.putIfAbsent(identifier, task);
+        if (existing != null) {
+            final ByteBuffer loaded = get(existing);
+            if (loaded.remaining() > capacity) {
+                // uncached views belong to the loading thread, which releases them
+                return readOnly(store.view(identifier));
+            }
+            return loaded.duplicate();
+        }
+
+        task.run();
+        try {
+            final ByteBuffer buffer = get(task);
+            if (buffer.remaining() > capacity) {
+                return buffer;
+            }
+            put(identifier, task, buffer);
+            return buffer.duplicate();
+        } finally {
+            loading.remove(identifier, task);
+        }
+    }
+
+    private ByteBuffer get(FutureTask<ByteBuffer> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns a read-only version of the given view of the backing store
+     * which can be passed to {@link #release(ByteBuffer)}.
+     */
+    private ByteBuffer readOnly(ByteBuffer buffer) {
+        if (buffer.isReadOnly()) {
+            return buffer;
+        }
+        final ByteBuffer wrapper = buffer.asReadOnlyBuffer();
+        views.put(wrapper, buffer);
+        return wrapper;
+    }
+
+    private ByteBuffer copy(ByteBuffer buffer) {
+        final ByteBuffer source = buffer.duplicate();
+        final ByteBuffer copy = direct ? ByteBuffer.allocateDirect(source.remaining()) : 
+            ByteBuffer.allocate(source.remaining());
+        copy.put(source).flip();
+        return copy.asReadOnlyBuffer();
+    }
+
+    private void put(String identifier, FutureTask<ByteBuffer> task, ByteBuffer buffer) {
+        final int size = buffer.remaining();
+        if (size > capacity) {
+            return;
+        }
+        synchronized (cache) {
+            // a concurrent delete removes the task, no stale entries are cached in that case
+            if (loading.get(identifier) != task) {
+                return;
+            }
+            final ByteBuffer previous = cache.put(identifier, buffer);
+            if (previous != null) {
+                weight -= previous.remaining();
+            }
+            weight += size;
+            final Iterator<ByteBuffer> iterator = cache.values().iterator();
+            while (weight > capacity && iterator.hasNext()) {
+                weight -= iterator.next().remaining();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void invalidate(String identifier) {
+        synchronized (cache) {
+            loading.remove(identifier);
+            final ByteBuffer previous = cache.remove(identifier);
+            if (previous != null) {
+                weight -= previous.remaining();
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return lookup(identifier) != null || store.exists(identifier);
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        return AbstractByteStore.stream(this, view(identifier));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Uncached views are returned to the backing store, releasing cached ones has no effect.
+     * </p>
+     */
+    @Override
+    public void release(ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final ByteBuffer original = views.remove(buffer);
+        store.release(original == null ? buffer : original);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Slices cached entries, but does not load missing ones into the cache,
+     *   because range requests usually target blobs which are too large to be cached.
+     * </p>
+     */
+    @Override
+    public ByteBuffer view(String identifier, long offset, int length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final ByteBuffer cached = lookup(identifier);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return store.view(identifier, offset, length);
+        }
+        AbstractStore.checkRange(offset, length);
+        hits.incrementAndGet();
+        return AbstractByteStore.slice(cached, offset, length);
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final ByteBuffer cached = lookup(identifier);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return store.read(identifier, offset, length);
+        }
+        AbstractStore.checkRange(offset, length);
+        hits.incrementAndGet();
+        return ByteBuffers.asInputStream(AbstractByteStore.slice(cached, offset,
+            (int) Math.min(length, Integer.MAX_VALUE)));
+    }
+
+    @Override
+    public Map<String, InputStream> readAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        final Map<String, InputStream> streams = Maps.newLinkedHashMap();
+        boolean complete = false;
+        try {
+            for (String identifier : identifiers) {
+                streams.put(identifier, read(identifier));
+            }
+            complete = true;
+            return streams;
+        } finally {
+            if (!complete) {
+                AbstractStore.closeAll(streams.values());
+            }
+        }
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        final ByteBuffer cached = lookup(identifier);
+        if (cached == null) {
+            // don't pollute the cache with streamed downloads, backends are able to transfer efficiently
+            return store.transferTo(identifier, target);
+        }
+        hits.incrementAndGet();
+        final ByteBuffer buffer = cached.duplicate();
+        long transferred = 0;
+        while (buffer.hasRemaining()) {
+            transferred += target.write(buffer);
+        }
+        return transferred;
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        try {
+            store.delete(identifier);
+        } finally {
+            invalidate(identifier);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        try {
+            store.deleteAll(identifiers);
+        } finally {
+            for (String identifier : identifiers) {
+                invalidate(identifier);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently cached.
+     *
+     * @return the cached bytes
+     */
+    public long getWeight() {
+        synchronized (cache) {
+            return weight;
+        }
+    }
+
+    /**
+     * Returns the number of cache hits.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of cache misses.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CachingByteStore [store=" + store + ", capacity=" + capacity + ", direct=" + direct + "]";
+    }
+
+}
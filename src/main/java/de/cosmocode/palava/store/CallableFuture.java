@@ -0,0 +1,61 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.concurrent.Callable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * A {@link com.google.common.util.concurrent.ListenableFuture} which completes
+ * with the result of a {@link Callable} once it has been run.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ * @param <V> the result type
+ */
+final class CallableFuture<V> extends AbstractFuture<V> implements Runnable {
+
+    private final Callable<V> callable;
+
+    CallableFuture(Callable<V> callable) {
+        this.callable = Preconditions.checkNotNull(callable, "Callable");
+    }
+
+    @Override
+    public void run() {
+        if (isDone()) {
+            return;
+        }
+        try {
+            set(callable.call());
+        } catch (Throwable e) {
+            setException(e);
+        }
+    }
+
+    /**
+     * Fails this future with the given cause, e.g. if it could not be scheduled.
+     *
+     * @param cause the cause
+     */
+    void fail(Throwable cause) {
+        setException(cause);
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A pull based compression codec used by {@link CompressingStore}.
+ * Implementations must not buffer the whole stream.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public interface Codec {
+
+    /**
+     * Wraps the given stream into a stream providing the encoded data.
+     * Closing the returned stream has to close the given stream and release
+     * all resources held by this codec for this stream.
+     *
+     * @param stream the raw data
+     * @return a stream of encoded data
+     * @throws NullPointerException if stream is null
+     * @throws IOException if creating the encoder failed
+     */
+    InputStream encode(InputStream stream) throws IOException;
+
+    /**
+     * Wraps the given stream into a stream providing the decoded data.
+     * The returned stream has to end with the encoded data, even if the given
+     * stream continues afterwards.
+     * Closing the returned stream has to close the given stream and release
+     * all resources held by this codec for this stream.
+     *
+     * @param stream the encoded data
+     * @return a stream of raw data
+     * @throws NullPointerException if stream is null
+     * @throws IOException if creating the decoder failed
+     */
+    InputStream decode(InputStream stream) throws IOException;
+
+}
@@ -0,0 +1,484 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+
+/**
+ * A {@link ByteStore} which compresses binary data using a {@link Codec}
+ * before passing it to the backing {@link Store}.
+ *
+ * <p>
+ *   The first block of every incoming stream is compressed on trial. If it does not
+ *   shrink below the configured ratio, e.g. because the data is an already compressed image,
+ *   the whole stream is stored raw and reading it later skips the codec entirely.
+ *   Every stored blob is prefixed with a single byte marking it as raw or encoded.
+ *   Encoded blobs are followed by their uncompressed length as an eight byte trailer,
+ *   since it is only known once the whole stream has been encoded.
+ * </p>
+ *
+ * <p>
+ *   {@link #read(String)} and {@link #transferTo(String, WritableByteChannel)} decompress
+ *   while streaming, {@link #view(String)} has to decompress the whole blob into a pooled buffer.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class CompressingStore extends AbstractByteStore {
+
+    static final int RAW = 0;
+
+    static final int ENCODED = 1;
+
+    static final int TRAILER = 8;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final double DEFAULT_RATIO = 0.9;
+
+    private final Store store;
+
+    private final Codec codec;
+
+    private final double ratio;
+
+    // read only views handed out mapped to their pooled buffers
+    private final ConcurrentMap<ByteBuffer, ByteBuffer> views = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Creates a new {@link CompressingStore} which stores blobs raw if their
+     * first block does not shrink below 90%.
+     *
+     * @param store the backing store
+     * @param codec the codec
+     * @throws NullPointerException if store or codec is null
+     */
+    public CompressingStore(Store store, Codec codec) {
+        this(store, codec, DEFAULT_RATIO);
+    }
+
+    /**
+     * Creates a new {@link CompressingStore}.
+     *
+     * @param store the backing store
+     * @param codec the codec
+     * @param ratio the maximum ratio of encoded to raw size of the first block
+     *        which is required to store a blob encoded
+     * @throws NullPointerException if store or codec is null
+     * @throws IllegalArgumentException if ratio is not positive
+     */
+    public CompressingStore(Store store, Codec codec, double ratio) {
+        this(store, codec, ratio, new BufferPool());
+    }
+
+    /**
+     * Creates a new {@link CompressingStore} which decodes views into
+     * buffers of the given pool.
+     *
+     * @param store the backing store
+     * @param codec the codec
+     * @param ratio the maximum ratio of encoded to raw size of the first block
+     *        which is required to store a blob encoded
+     * @param pool the pool views are allocated from
+     * @throws NullPointerException if store, codec or pool is null
+     * @throws IllegalArgumentException if ratio is not positive
+     */
+    public CompressingStore(Store store, Codec codec, double ratio, BufferPool pool) {
+        super(pool);
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.codec = Preconditions.checkNotNull(codec, "Codec");
+        Preconditions.checkArgument(ratio > 0, "Ratio must be positive");
+        this.ratio = ratio;
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final InputStream encoded = encode(stream);
+        try {
+            return store.create(encoded);
+        } finally {
+            encoded.close();
+        }
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final InputStream encoded = encode(stream);
+        try {
+            store.create(encoded, identifier);
+        } finally {
+            encoded.close();
+        }
+    }
+
+    private InputStream encode(InputStream stream) throws IOException {
+        final byte[] block = new byte[BLOCK_SIZE];
+        final int length = fill(stream, block);
+        final InputStream complete = new SequenceInputStream(new ByteArrayInputStream(block, 0, length), stream);
+        if (compressible(block, length)) {
+            return encoded(complete);
+        } else {
+            return prefix(RAW, complete);
+        }
+    }
+
+    private int fill(InputStream stream, byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            final int read = stream.read(block, length, block.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private boolean compressible(byte[] block, int length) throws IOException {
+        if (length == 0) {
+            return false;
+        }
+        final InputStream trial = codec.encode(new ByteArrayInputStream(block, 0, length));
+        try {
+            final byte[] buffer = new byte[length];
+            long encoded = 0;
+            while (encoded <= length * ratio) {
+                final int read = trial.read(buffer);
+                if (read == -1) {
+                    return true;
+                }
+                encoded += read;
+            }
+            return false;
+        } finally {
+            trial.close();
+        }
+    }
+
+    /**
+     * Encodes the given stream, framed by the marker and the uncompressed length.
+     */
+    private InputStream encoded(InputStream stream) throws IOException {
+        final CountingInputStream counting = new CountingInputStream(stream);
+        final InputStream encoded = codec.encode(counting);
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+
+            private int index;
+
+            @Override
+            public boolean hasMoreElements() {
+                return index < 3;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                switch (index++) {
+                    case 0: {
+                        return new ByteArrayInputStream(new byte[] {ENCODED});
+                    }
+                    case 1: {
+                        return encoded;
+                    }
+                    case 2: {
+                        // requested once encoded is exhausted
+                        final byte[] trailer = new byte[TRAILER];
+                        ByteBuffer.wrap(trailer).putLong(counting.getCount());
+                        return new ByteArrayInputStream(trailer);
+                    }
+                    default: {
+                        throw new NoSuchElementException();
+                    }
+                }
+            }
+
+        });
+    }
+
+    private InputStream prefix(int marker, InputStream stream) {
+        return new SequenceInputStream(new ByteArrayInputStream(new byte[] {(byte) marker}), stream);
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        return store.exists(identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Reads only the marker and, for encoded blobs, the trailer.
+     * </p>
+     */
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final BlobStat stat = store.stat(identifier);
+        final long size = sizeOf(identifier, markerOf(identifier), stat.getSize());
+        return new BlobStat(identifier, size, stat.getCreated(), null);
+    }
+
+    /**
+     * Computes the uncompressed size of a blob using its marker and its stored size.
+     */
+    private long sizeOf(String identifier, int marker, long stored) throws IOException {
+        switch (marker) {
+            case RAW: {
+                return stored - 1;
+            }
+            case ENCODED: {
+                return lengthOf(identifier, stored);
+            }
+            default: {
+                throw new IOException(String.format("Unknown marker %s in %s", marker, identifier));
+            }
+        }
+    }
+
+    private int markerOf(String identifier) throws IOException {
+        final InputStream stream = store.read(identifier, 0, 1);
+        try {
+            return stream.read();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the uncompressed length from the trailer of an encoded blob.
+     */
+    private long lengthOf(String identifier, long stored) throws IOException {
+        final DataInputStream stream = new DataInputStream(store.read(identifier, stored - TRAILER, TRAILER));
+        try {
+            return stream.readLong();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final InputStream stream = store.read(identifier);
+        boolean opened = false;
+        try {
+            final InputStream decoded = decode(identifier, stream, stream.read());
+            opened = true;
+            return decoded;
+        } finally {
+            if (!opened) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes the given stream, positioned right after the marker. Codecs stop
+     * at the end of the encoded data, which leaves the trailer unread.
+     */
+    private InputStream decode(String identifier, InputStream stream, int marker) throws IOException {
+        switch (marker) {
+            case RAW: {
+                return stream;
+            }
+            case ENCODED: {
+                return codec.decode(stream);
+            }
+            default: {
+                throw new IOException(String.format("Unknown marker %s in %s", marker, identifier));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Raw blobs are read using a range read of the backing store. Encoded blobs
+     *   are decoded from their start, skipping everything before offset.
+     * </p>
+     */
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        if (markerOf(identifier) == RAW) {
+            // the marker can't be skipped past if offset is Long.MAX_VALUE
+            return store.read(identifier, Math.min(offset, Long.MAX_VALUE - 1) + 1, length);
+        } else {
+            return range(read(identifier), offset, length);
+        }
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        return transfer(read(identifier), target);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Decodes the blob into a single pooled buffer of exactly its uncompressed size.
+     *   The marker is taken from the stream being decoded, only the stored size and,
+     *   for encoded blobs, the trailer are read separately.
+     * </p>
+     */
+    @Override
+    public ByteBuffer view(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        InputStream stream = store.read(identifier);
+        ByteBuffer buffer = null;
+        boolean complete = false;
+        try {
+            final int marker = stream.read();
+            final long size = sizeOf(identifier, marker, store.stat(identifier).getSize());
+            Preconditions.checkState(size <= Integer.MAX_VALUE, "%s is too large for a single buffer", identifier);
+            stream = decode(identifier, stream, marker);
+            buffer = acquire((int) size);
+            final ReadableByteChannel channel = Channels.newChannel(stream);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException(String.format("%s is shorter than %s bytes", identifier, size));
+                }
+            }
+            buffer.flip();
+            final ByteBuffer view = buffer.asReadOnlyBuffer();
+            views.put(view, buffer);
+            complete = true;
+            return view;
+        } finally {
+            stream.close();
+            if (!complete && buffer != null) {
+                super.release(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final ByteBuffer pooled = views.remove(buffer);
+        super.release(pooled == null ? buffer : pooled);
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        return store.list();
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        return store.list(after, limit);
+    }
+
+    @Override
+    public Iterator<String> iterate(String after, int pageSize) throws IOException {
+        return store.iterate(after, pageSize);
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        store.delete(identifier);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        store.deleteAll(identifiers);
+    }
+
+    @Override
+    public String toString() {
+        return "CompressingStore [store=" + store + ", codec=" + codec + ", ratio=" + ratio + "]";
+    }
+
+    /**
+     * Counts the bytes read from the underlying stream.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        public CountingInputStream(InputStream stream) {
+            super(stream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+    }
+
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A content addressed {@link Store} which stores identical binary data only once.
+ *
+ * <p>
+ *   Incoming streams are hashed (SHA-256) while being spooled to a temporary file.
+ *   The binary data is stored in the contents store using the hash as identifier,
+ *   the references store maps every identifier to its hash. Deleting an identifier only
+ *   deletes the binary data once the last identifier referencing it is gone. Binary data
+ *   which could not be deleted is logged and adopted by the next upload of identical data.
+ * </p>
+ *
+ * <p>
+ *   Reference counts are kept in memory and rebuilt from the references store on
+ *   construction, which requires the references store to support listing.
+ *   Both stores must not be modified by anyone else.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class DeduplicatingStore extends AbstractStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeduplicatingStore.class);
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final Store references;
+
+    private final Store contents;
+
+    private final File directory;
+
+    private final ConcurrentMap<String, Integer> counts = Maps.newConcurrentMap();
+
+    // always acquired before locks, never the other way around
+    private final IdentifierLocks identifiers = new IdentifierLocks();
+
+    private final IdentifierLocks locks = new IdentifierLocks();
+
+    private IdGenerator generator = new UUIDGenerator();
+
+    /**
+     * Creates a new {@link DeduplicatingStore} which spools incoming streams
+     * to the default temporary directory.
+     *
+     * @param references the store used to map identifiers to hashes
+     * @param contents the store used to store binary data by hash
+     * @throws IOException if reading the references failed
+     */
+    public DeduplicatingStore(Store references, Store contents) throws IOException {
+        this(references, contents, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Creates a new {@link DeduplicatingStore}.
+     *
+     * @param references the store used to map identifiers to hashes
+     * @param contents the store used to store binary data by hash
+     * @param directory the directory incoming streams are spooled to while being hashed
+     * @throws IOException if reading the references failed
+     */
+    public DeduplicatingStore(Store references, Store contents, File directory) throws IOException {
+        this.references = Preconditions.checkNotNull(references, "References");
+        this.contents = Preconditions.checkNotNull(contents, "Contents");
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        final Iterator<String> iterator = references.iterate(null, PAGE_SIZE);
+        int size = 0;
+        while (iterator.hasNext()) {
+            final String hash = hashOf(iterator.next());
+            final Integer count = counts.get(hash);
+            counts.put(hash, count == null ? 1 : count + 1);
+            size++;
+        }
+        LOG.info("Loaded {} references to {} contents", size, counts.size());
+    }
+
+    @Inject(optional = true)
+    void setGenerator(@Named(StoreConfig.ID_GENERATOR) IdGenerator generator) {
+        this.generator = Preconditions.checkNotNull(generator, "Generator");
+    }
+
+    private String hashOf(String identifier) throws IOException {
+        final InputStream stream = references.read(identifier);
+        try {
+            return IOUtils.toString(stream, Charsets.UTF_8.name());
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final String identifier = generator.generate();
+        create(stream, identifier);
+        return identifier;
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final File file = File.createTempFile("dedup", ".tmp", directory);
+        try {
+            final String hash = spool(stream, file);
+            // a concurrent delete must not see the reference before the content is counted
+            final Lock lock = identifiers.get(identifier);
+            lock.lock();
+            try {
+                references.create(new ByteArrayInputStream(hash.getBytes(Charsets.UTF_8)), identifier);
+                boolean referenced = false;
+                try {
+                    reference(hash, file);
+                    referenced = true;
+                } finally {
+                    if (!referenced) {
+                        references.delete(identifier);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (!file.delete()) {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+    }
+
+    private String spool(InputStream stream, File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final OutputStream output = new FileOutputStream(file);
+        try {
+            IOUtils.copy(new DigestInputStream(stream, digest), output);
+        } finally {
+            output.close();
+        }
+        return Identifiers.hex(digest.digest());
+    }
+
+    private void reference(String hash, File file) throws IOException {
+        final Lock lock = locks.get(hash);
+        lock.lock();
+        try {
+            final Integer count = counts.get(hash);
+            if (count == null) {
+                if (contents.exists(hash)) {
+                    // left behind by a failed or interrupted delete
+                    LOG.info("Adopting unreferenced content {}", hash);
+                } else {
+                    final InputStream stream = new FileInputStream(file);
+                    try {
+                        contents.create(stream, hash);
+                    } finally {
+                        stream.close();
+                    }
+                }
+                counts.put(hash, 1);
+            } else {
+                LOG.trace("Deduplicated content {}", hash);
+                counts.put(hash, count + 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        return references.exists(identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Provides the SHA-256 hash of the content and the creation time of the reference.
+     * </p>
+     */
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final long created = references.stat(identifier).getCreated();
+        final String hash = hashOf(identifier);
+        return new BlobStat(identifier, contents.stat(hash).getSize(), created, hash);
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return contents.read(hashOf(identifier));
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        return contents.read(hashOf(identifier), offset, length);
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        return contents.transferTo(hashOf(identifier), target);
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        return references.list();
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        return references.list(after, limit);
+    }
+
+    @Override
+    public Iterator<String> iterate(String after, int pageSize) throws IOException {
+        return references.iterate(after, pageSize);
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Lock lock = identifiers.get(identifier);
+        lock.lock();
+        try {
+            final String hash = hashOf(identifier);
+            references.delete(identifier);
+            release(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(String hash) throws IOException {
+        final Lock lock = locks.get(hash);
+        lock.lock();
+        try {
+            final Integer count = counts.get(hash);
+            if (count == null || count <= 1) {
+                // the reference is gone already, orphaned content is adopted by the next upload of it
+                counts.remove(hash);
+                try {
+                    contents.delete(hash);
+                } catch (IOException e) {
+                    LOG.warn("Unable to delete unreferenced content " + hash, e);
+                }
+            } else {
+                counts.put(hash, count - 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct contents currently stored.
+     *
+     * @return the number of distinct contents
+     */
+    public int getContentCount() {
+        return counts.size();
+    }
+
+    @Override
+    public String toString() {
+        return "DeduplicatingStore [references=" + references + ", contents=" + contents + "]";
+    }
+
+}
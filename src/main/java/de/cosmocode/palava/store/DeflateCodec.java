@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Codec} using the deflate implementation of the jdk.
+ * {@link Deflater#BEST_SPEED} trades compression ratio for a considerably faster codec.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class DeflateCodec implements Codec {
+
+    private final int level;
+
+    /**
+     * Creates a new {@link DeflateCodec} using {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a new {@link DeflateCodec} using the given compression level.
+     *
+     * @param level the compression level (-1 to 9)
+     * @throws IllegalArgumentException if level is out of range
+     */
+    public DeflateCodec(int level) {
+        Preconditions.checkArgument(level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+            "Level must be between -1 and 9, but was %s", level);
+        this.level = level;
+    }
+
+    @Override
+    public InputStream encode(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final Deflater deflater = new Deflater(level);
+        return new FilterInputStream(new DeflaterInputStream(stream, deflater)) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   The inflater stops at the end of the deflate stream by itself.
+     * </p>
+     */
+    @Override
+    public InputStream decode(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final Inflater inflater = new Inflater();
+        return new FilterInputStream(new InflaterInputStream(stream, inflater)) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateCodec [level=" + level + "]";
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link AsyncByteStore} which runs all operations of a blocking {@link ByteStore}
+ * on an {@link Executor}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class ExecutorAsyncByteStore extends ExecutorAsyncStore implements AsyncByteStore {
+
+    private final ByteStore store;
+
+    /**
+     * Creates a new {@link ExecutorAsyncByteStore}.
+     *
+     * @param store the blocking store
+     * @param executor the executor used to run all operations
+     * @throws NullPointerException if store or executor is null
+     */
+    public ExecutorAsyncByteStore(ByteStore store, Executor executor) {
+        super(store, executor);
+        this.store = store;
+    }
+
+    @Override
+    public ListenableFuture<String> create(final ByteBuffer buffer) {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        return submit(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return store.create(buffer);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> create(final ByteBuffer buffer, final String identifier) {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                store.create(buffer, identifier);
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<ByteBuffer> view(final String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer call() throws Exception {
+                return store.view(identifier);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<ByteBuffer> view(final String identifier, final long offset, final int length) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<ByteBuffer>() {
+
+            @Override
+            public ByteBuffer call() throws Exception {
+                return store.view(identifier, offset, length);
+            }
+
+        });
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        store.release(buffer);
+    }
+
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * An {@link AsyncStore} which runs all operations of a blocking {@link Store}
+ * on an {@link Executor}, e.g. a bounded pool dedicated to io or, on jdks supporting it,
+ * an executor starting a virtual thread per task.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public class ExecutorAsyncStore implements AsyncStore {
+
+    private final Store store;
+
+    private final Executor executor;
+
+    /**
+     * Creates a new {@link ExecutorAsyncStore}.
+     *
+     * @param store the blocking store
+     * @param executor the executor used to run all operations
+     * @throws NullPointerException if store or executor is null
+     */
+    public ExecutorAsyncStore(Store store, Executor executor) {
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+    }
+
+    /**
+     * Runs the given callable on the executor of this store.
+     *
+     * @param <V> the result type
+     * @param callable the operation
+     * @return a future providing the result of the operation
+     */
+    protected final <V> ListenableFuture<V> submit(Callable<V> callable) {
+        final CallableFuture<V> future = new CallableFuture<V>(callable);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
+    @Override
+    public ListenableFuture<String> create(final InputStream stream) {
+        Preconditions.checkNotNull(stream, "Stream");
+        return submit(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return store.create(stream);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> create(final InputStream stream, final String identifier) {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                store.create(stream, identifier);
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> createAll(final Map<String, ? extends InputStream> streams) {
+        Preconditions.checkNotNull(streams, "Streams");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                store.createAll(streams);
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> exists(final String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<Boolean>() {
+
+            @Override
+            public Boolean call() throws Exception {
+                return store.exists(identifier);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<BlobStat> stat(final String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<BlobStat>() {
+
+            @Override
+            public BlobStat call() throws Exception {
+                return store.stat(identifier);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<InputStream> read(final String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<InputStream>() {
+
+            @Override
+            public InputStream call() throws Exception {
+                return store.read(identifier);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<InputStream> read(final String identifier, final long offset, final long length) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<InputStream>() {
+
+            @Override
+            public InputStream call() throws Exception {
+                return store.read(identifier, offset, length);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Map<String, InputStream>> readAll(final Collection<String> identifiers) {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        return submit(new Callable<Map<String, InputStream>>() {
+
+            @Override
+            public Map<String, InputStream> call() throws Exception {
+                return store.readAll(identifiers);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Long> transferTo(final String identifier, final WritableByteChannel target) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        return submit(new Callable<Long>() {
+
+            @Override
+            public Long call() throws Exception {
+                return store.transferTo(identifier, target);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Set<String>> list() {
+        return submit(new Callable<Set<String>>() {
+
+            @Override
+            public Set<String> call() throws Exception {
+                return store.list();
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<String>> list(final String after, final int limit) {
+        return submit(new Callable<List<String>>() {
+
+            @Override
+            public List<String> call() throws Exception {
+                return store.list(after, limit);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> delete(final String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                store.delete(identifier);
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteAll(final Collection<String> identifiers) {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        return submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                store.deleteAll(identifiers);
+                return null;
+            }
+
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "ExecutorAsyncStore [store=" + store + ", executor=" + executor + "]";
+    }
+
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * A {@link Store} which stores every blob in a file of its own.
+ *
+ * <p>
+ *   New blobs are written to a temporary file first and renamed afterwards, which
+ *   publishes them atomically. Creates and deletes of different identifiers run in parallel,
+ *   reads never lock. Identifiers are restricted to letters, digits, underscores,
+ *   dashes and dots and must not start with a dot.
+ * </p>
+ *
+ * <p>
+ *   Existence checks and listings are answered by an {@link IdentifierIndex} in the
+ *   {@code .index} sub directory, which is updated by every create and delete. The
+ *   directory is only scanned if the index is missing or the store has not been disposed
+ *   properly, in which case the index is rebuilt. The store must not be modified by anyone else.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class FileStore extends AbstractStripedStore implements Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileStore.class);
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z0-9_\\-][A-Za-z0-9_.\\-]*");
+
+    private static final String TEMPORARY = ".tmp";
+
+    private static final String INDEX = ".index";
+
+    /**
+     * Present while the store is open, indicates an unclean shutdown on startup.
+     */
+    private static final String OPEN = "open";
+
+    private final File directory;
+
+    private final File temporary;
+
+    private final File marker;
+
+    private volatile IdentifierIndex index;
+
+    @Inject
+    public FileStore(@Named(FileStoreConfig.DIRECTORY) File directory) throws IOException {
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        this.temporary = new File(directory, TEMPORARY);
+        if (!temporary.isDirectory() && !temporary.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", temporary));
+        }
+        for (File file : temporary.listFiles()) {
+            LOG.warn("Removing incomplete {}", file);
+            if (!file.delete()) {
+                throw new IOException(String.format("Unable to delete %s", file));
+            }
+        }
+        final File indexDirectory = new File(directory, INDEX);
+        this.marker = new File(indexDirectory, OPEN);
+        final boolean clean = IdentifierIndex.exists(indexDirectory) && !marker.exists();
+        this.index = new IdentifierIndex(indexDirectory);
+        if (!marker.createNewFile() && !marker.isFile()) {
+            throw new IOException(String.format("Unable to create %s", marker));
+        }
+        if (!clean) {
+            LOG.info("Index of {} is missing or outdated", directory);
+            reindex();
+        }
+    }
+
+    /**
+     * Rebuilds the identifier index by scanning the store directory. Must not be
+     * called concurrently with any other operation.
+     *
+     * @throws IOException if scanning the directory or writing the index failed
+     */
+    public void reindex() throws IOException {
+        final String[] names = directory.list();
+        if (names == null) {
+            throw new IOException(String.format("Unable to list %s", directory));
+        }
+        final File indexDirectory = new File(directory, INDEX);
+        index.close();
+        for (String name : new String[] {IdentifierIndex.TABLE, IdentifierIndex.JOURNAL}) {
+            final File file = new File(indexDirectory, name);
+            if (file.exists() && !file.delete()) {
+                throw new IOException(String.format("Unable to delete %s", file));
+            }
+        }
+        final IdentifierIndex rebuilt = new IdentifierIndex(indexDirectory);
+        for (String name : names) {
+            if (!IDENTIFIER.matcher(name).matches()) {
+                continue;
+            }
+            final File file = fileOf(name);
+            if (file.isFile()) {
+                rebuilt.put(name, file.length());
+            }
+        }
+        rebuilt.checkpoint();
+        index = rebuilt;
+        LOG.info("Indexed {} identifiers in {}", rebuilt.size(), directory);
+    }
+
+    private File fileOf(String identifier) {
+        return new File(directory, identifier);
+    }
+
+    @Override
+    protected void checkIdentifier(String identifier) {
+        Preconditions.checkArgument(IDENTIFIER.matcher(identifier).matches(), "%s is not a valid identifier", identifier);
+    }
+
+    @Override
+    public boolean exists(String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkIdentifier(identifier);
+        return index.contains(identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Files are never modified after they have been published, which makes
+     *   their modification time the creation time.
+     * </p>
+     */
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkIdentifier(identifier);
+        final File file = fileOf(identifier);
+        final long size = file.length();
+        final long created = file.lastModified();
+        // both return 0 for missing files
+        Preconditions.checkState(created != 0L || file.isFile(), "%s not present", identifier);
+        return new BlobStat(identifier, size, created, null);
+    }
+
+    @Override
+    protected Staged stage(InputStream stream, final String identifier) throws IOException {
+        // identifiers may be shorter than the three characters required for a prefix
+        final File file = File.createTempFile("blob", null, temporary);
+        boolean written = false;
+        try {
+            final OutputStream output = new FileOutputStream(file);
+            try {
+                IOUtils.copy(stream, output);
+            } finally {
+                output.close();
+            }
+            written = true;
+        } finally {
+            if (!written && !file.delete()) {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+        return new Staged() {
+
+            private boolean published;
+
+            @Override
+            public void publish() throws IOException {
+                final File target = fileOf(identifier);
+                if (!file.renameTo(target)) {
+                    throw new IOException(String.format("Unable to rename %s to %s", file, target));
+                }
+                published = true;
+                boolean indexed = false;
+                try {
+                    index.put(identifier, target.length());
+                    indexed = true;
+                } finally {
+                    // an unindexed file would neither be listed nor protected against overwrites
+                    if (!indexed && !target.delete()) {
+                        LOG.warn("Unable to delete unindexed {}", target);
+                    }
+                }
+            }
+
+            @Override
+            public void discard() {
+                if (!published && !file.delete()) {
+                    LOG.warn("Unable to delete {}", file);
+                }
+            }
+
+        };
+    }
+
+    @Override
+    protected InputStream open(String identifier) throws IOException {
+        try {
+            return new FileInputStream(fileOf(identifier));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void remove(String identifier) throws IOException {
+        if (!fileOf(identifier).delete()) {
+            throw new IOException(String.format("Unable to delete %s", fileOf(identifier)));
+        }
+        index.remove(identifier);
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        final FileInputStream stream = (FileInputStream) read(identifier);
+        stream.getChannel().position(offset);
+        return limit(stream, length);
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        final InputStream stream = read(identifier);
+        try {
+            final FileChannel channel = ((FileInputStream) stream).getChannel();
+            final long size = channel.size();
+            long transferred = 0;
+            while (transferred < size) {
+                transferred += channel.transferTo(transferred, size - transferred, target);
+            }
+            return transferred;
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        return index.list(after, limit);
+    }
+
+    /**
+     * Returns the number of stored identifiers.
+     *
+     * @return the number of identifiers
+     */
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        try {
+            index.close();
+        } catch (IOException e) {
+            throw new LifecycleException(e);
+        }
+        if (!marker.delete()) {
+            LOG.warn("Unable to delete {}", marker);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileStore [directory=" + directory + "]";
+    }
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+/**
+ * Constant holder class for {@link FileStore} config key names.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class FileStoreConfig {
+
+    public static final String PREFIX = StoreConfig.PREFIX + "file.";
+
+    public static final String DIRECTORY = PREFIX + "directory";
+
+    private FileStoreConfig() {
+
+    }
+
+}
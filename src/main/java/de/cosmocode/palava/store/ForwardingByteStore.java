@@ -0,0 +1,60 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteStore} which forwards all its method calls to another byte store.
+ * Subclasses should override one or more methods to modify the behavior of the
+ * backing store as desired per the decorator pattern.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public abstract class ForwardingByteStore extends ForwardingStore implements ByteStore {
+
+    @Override
+    protected abstract ByteStore delegate();
+
+    @Override
+    public String create(ByteBuffer buffer) throws IOException {
+        return delegate().create(buffer);
+    }
+
+    @Override
+    public void create(ByteBuffer buffer, String identifier) throws IOException {
+        delegate().create(buffer, identifier);
+    }
+
+    @Override
+    public ByteBuffer view(String identifier) throws IOException {
+        return delegate().view(identifier);
+    }
+
+    @Override
+    public ByteBuffer view(String identifier, long offset, int length) throws IOException {
+        return delegate().view(identifier, offset, length);
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        delegate().release(buffer);
+    }
+
+}
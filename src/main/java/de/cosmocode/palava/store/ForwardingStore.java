@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ForwardingObject;
+
+/**
+ * A {@link Store} which forwards all its method calls to another store.
+ * Subclasses should override one or more methods to modify the behavior of the
+ * backing store as desired per the decorator pattern.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public abstract class ForwardingStore extends ForwardingObject implements Store {
+
+    @Override
+    protected abstract Store delegate();
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        return delegate().create(stream);
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        delegate().create(stream, identifier);
+    }
+
+    @Override
+    public void createAll(Map<String, ? extends InputStream> streams) throws IOException {
+        delegate().createAll(streams);
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        return delegate().exists(identifier);
+    }
+
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        return delegate().stat(identifier);
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        return delegate().read(identifier);
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        return delegate().read(identifier, offset, length);
+    }
+
+    @Override
+    public Map<String, InputStream> readAll(Collection<String> identifiers) throws IOException {
+        return delegate().readAll(identifiers);
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        return delegate().transferTo(identifier, target);
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        return delegate().list();
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        return delegate().list(after, limit);
+    }
+
+    @Override
+    public Iterator<String> iterate(String after, int pageSize) throws IOException {
+        return delegate().iterate(after, pageSize);
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        delegate().delete(identifier);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        delegate().deleteAll(identifiers);
+    }
+
+}
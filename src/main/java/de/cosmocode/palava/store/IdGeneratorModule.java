@@ -0,0 +1,80 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.TypeConverter;
+
+/**
+ * Allows configuring the {@link IdGenerator} bound to {@link StoreConfig#ID_GENERATOR}
+ * using a plain config value. Supported values are {@code uuid} ({@link UUIDGenerator}),
+ * {@code uuidBase} ({@link UUIDBaseGenerator}), {@code timeBased} ({@link TimeBasedGenerator}),
+ * {@code random} ({@link RandomGenerator}) or the fully qualified name of an {@link IdGenerator}
+ * implementation providing a public no-arg constructor.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class IdGeneratorModule implements Module {
+
+    @Override
+    public void configure(Binder binder) {
+        binder.convertToTypes(Matchers.only(TypeLiteral.get(IdGenerator.class)), new IdGeneratorConverter());
+    }
+
+    /**
+     * Converts config values into {@link IdGenerator}s.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class IdGeneratorConverter implements TypeConverter {
+
+        @Override
+        public Object convert(String value, TypeLiteral<?> toType) {
+            if ("uuid".equalsIgnoreCase(value)) {
+                return new UUIDGenerator();
+            } else if ("uuidBase".equalsIgnoreCase(value)) {
+                return new UUIDBaseGenerator();
+            } else if ("timeBased".equalsIgnoreCase(value)) {
+                return new TimeBasedGenerator();
+            } else if ("random".equalsIgnoreCase(value)) {
+                return new RandomGenerator();
+            } else {
+                try {
+                    return Class.forName(value).asSubclass(IdGenerator.class).newInstance();
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalArgumentException(e);
+                } catch (InstantiationException e) {
+                    throw new IllegalArgumentException(e);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "IdGeneratorConverter";
+        }
+
+    }
+
+}
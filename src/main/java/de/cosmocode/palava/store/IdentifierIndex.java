@@ -0,0 +1,748 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * A persistent, sorted index of identifiers and an associated non-negative value each,
+ * e.g. a location or a size, which can be shared by store implementations.
+ *
+ * <p>
+ *   The index consists of an immutable, memory mapped table sorted by identifier and
+ *   an append-only journal of the changes since the table has been written. Changes
+ *   are kept in memory on top of the table as well. Once the number of changes exceeds
+ *   the checkpoint threshold or an eighth of the table, whichever is larger, table and
+ *   changes are merged into a new table and the journal is truncated. Startup costs one
+ *   mapping and a journal replay, lookups cost a binary search and listings never touch
+ *   anything but the index.
+ * </p>
+ *
+ * <p>
+ *   Lookups and listings never block, modifications are serialized. A checkpoint freezes
+ *   the current changes and writes the new table without holding the lock, modifications
+ *   made in the meantime are kept in the journal. Journal writes are not forced to disk.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class IdentifierIndex implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdentifierIndex.class);
+
+    static final String TABLE = "index.table";
+
+    static final String JOURNAL = "index.journal";
+
+    private static final int MAGIC = 0x49445831;
+
+    private static final byte PUT = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final long TOMBSTONE = -1L;
+
+    /**
+     * operation (byte) + identifier length (int) + value (long).
+     */
+    private static final int JOURNAL_HEADER_SIZE = 1 + 4 + 8;
+
+    private static final int DEFAULT_CHECKPOINT_THRESHOLD = 64 * 1024;
+
+    /**
+     * Checkpoints are delayed until the changes reach this fraction of the table,
+     * which bounds the amortized cost of rewriting large tables.
+     */
+    private static final int TABLE_RATIO = 8;
+
+    private final File directory;
+
+    private RandomAccessFile journalFile;
+
+    private FileChannel journal;
+
+    // guards state and journal
+    private final Lock lock = new ReentrantLock();
+
+    // serializes checkpoints, acquired before lock
+    private final Lock checkpointLock = new ReentrantLock();
+
+    private final int checkpointThreshold;
+
+    private volatile State state;
+
+    private long journalSize;
+
+    /**
+     * Opens the index in the given directory using the default checkpoint threshold.
+     *
+     * @param directory the directory, created if necessary
+     * @throws IOException if opening failed
+     */
+    public IdentifierIndex(File directory) throws IOException {
+        this(directory, DEFAULT_CHECKPOINT_THRESHOLD);
+    }
+
+    /**
+     * Opens the index in the given directory.
+     *
+     * @param directory the directory, created if necessary
+     * @param checkpointThreshold the minimum number of changes after which a new table is written
+     * @throws IOException if opening failed
+     * @throws IllegalArgumentException if checkpointThreshold is not positive
+     */
+    public IdentifierIndex(File directory, int checkpointThreshold) throws IOException {
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        Preconditions.checkArgument(checkpointThreshold > 0, "Checkpoint threshold must be positive");
+        this.checkpointThreshold = checkpointThreshold;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", directory));
+        }
+        final Table table = Table.open(new File(directory, TABLE));
+        this.journalFile = new RandomAccessFile(new File(directory, JOURNAL), "rw");
+        this.journal = journalFile.getChannel();
+        this.state = new State(table, State.NONE, new ConcurrentSkipListMap<String, Long>(), table.size());
+        replay();
+        LOG.info("Opened index of {} identifiers in {}", state.size, directory);
+    }
+
+    /**
+     * Tests whether the given directory contains an index.
+     *
+     * @param directory the directory
+     * @return true if an index has been created in directory before, false otherwise
+     */
+    public static boolean exists(File directory) {
+        return new File(directory, JOURNAL).isFile();
+    }
+
+    private void replay() throws IOException {
+        final long size = journal.size();
+        final ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+        long position = 0;
+        int replayed = 0;
+        while (size - position >= JOURNAL_HEADER_SIZE) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            final byte operation = header.get();
+            final int length = header.getInt();
+            final long value = header.getLong();
+            if (length < 0 || position + JOURNAL_HEADER_SIZE + length > size) {
+                break;
+            }
+            if (operation != PUT && operation != REMOVE) {
+                break;
+            }
+            final ByteBuffer id = ByteBuffer.allocate(length);
+            readFully(id, position + JOURNAL_HEADER_SIZE);
+            apply(new String(id.array(), Charsets.UTF_8), operation == PUT ? value : TOMBSTONE);
+            position += JOURNAL_HEADER_SIZE + length;
+            replayed++;
+        }
+        if (position < size) {
+            LOG.warn("Truncating torn journal record in {} at {}", directory, position);
+            journal.truncate(position);
+        }
+        journalSize = position;
+        LOG.debug("Replayed {} journal records", replayed);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int read = journal.read(buffer, current);
+            if (read == -1) {
+                throw new IOException("Unexpected end of journal");
+            }
+            current += read;
+        }
+    }
+
+    /**
+     * Applies the given change to the in-memory state. Has to be called while holding
+     * the lock or during construction.
+     */
+    private void apply(String identifier, long value) {
+        final State current = state;
+        final boolean present = current.contains(identifier);
+        if (value == TOMBSTONE && current.stored(identifier) == TOMBSTONE) {
+            current.changes.remove(identifier);
+        } else {
+            current.changes.put(identifier, value);
+        }
+        if (present && value == TOMBSTONE) {
+            current.size--;
+        } else if (!present && value != TOMBSTONE) {
+            current.size++;
+        }
+    }
+
+    /**
+     * Checks whether the given identifier is present.
+     *
+     * @param identifier the identifier
+     * @return true if present, false otherwise
+     * @throws NullPointerException if identifier is null
+     */
+    public boolean contains(String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return state.contains(identifier);
+    }
+
+    /**
+     * Retrieves the value of the given identifier.
+     *
+     * @param identifier the identifier
+     * @return the value or -1 if identifier is not present
+     * @throws NullPointerException if identifier is null
+     */
+    public long get(String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return state.get(identifier);
+    }
+
+    /**
+     * Returns the number of identifiers.
+     *
+     * @return the number of identifiers
+     */
+    public int size() {
+        return state.size;
+    }
+
+    /**
+     * Associates the given identifier with the specified value, replacing any
+     * existing association.
+     *
+     * @param identifier the identifier
+     * @param value the value
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if value is negative
+     * @throws IOException if writing the journal failed
+     */
+    public void put(String identifier, long value) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkArgument(value >= 0, "Value must not be negative");
+        write(PUT, identifier, value);
+    }
+
+    /**
+     * Removes the given identifier.
+     *
+     * @param identifier the identifier
+     * @return true if the identifier was present, false otherwise
+     * @throws NullPointerException if identifier is null
+     * @throws IOException if writing the journal failed
+     */
+    public boolean remove(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final boolean due;
+        lock.lock();
+        try {
+            if (!state.contains(identifier)) {
+                return false;
+            }
+            due = append(REMOVE, identifier, 0L);
+        } finally {
+            lock.unlock();
+        }
+        if (due) {
+            checkpointUnlessRunning();
+        }
+        return true;
+    }
+
+    private void write(byte operation, String identifier, long value) throws IOException {
+        final boolean due;
+        lock.lock();
+        try {
+            due = append(operation, identifier, value);
+        } finally {
+            lock.unlock();
+        }
+        if (due) {
+            checkpointUnlessRunning();
+        }
+    }
+
+    /**
+     * Writes the given change to the journal and applies it. Has to be called while
+     * holding the lock.
+     *
+     * @return true if a checkpoint is due
+     */
+    private boolean append(byte operation, String identifier, long value) throws IOException {
+        final byte[] id = identifier.getBytes(Charsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(JOURNAL_HEADER_SIZE + id.length);
+        record.put(operation).putInt(id.length).putLong(value).put(id).flip();
+        long position = journalSize;
+        while (record.hasRemaining()) {
+            position += journal.write(record, position);
+        }
+        journalSize = position;
+        apply(identifier, operation == PUT ? value : TOMBSTONE);
+        final State current = state;
+        return current.changes.size() >= Math.max(checkpointThreshold, current.table.size() / TABLE_RATIO);
+    }
+
+    /**
+     * Runs a checkpoint in the calling thread, unless another thread is already running one.
+     * Writers which hit the threshold in the meantime rely on the running checkpoint.
+     */
+    private void checkpointUnlessRunning() throws IOException {
+        if (checkpointLock.tryLock()) {
+            try {
+                checkpoint();
+            } finally {
+                checkpointLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Lists identifiers in their natural order.
+     *
+     * @param after the exclusive lower bound, null to start at the beginning
+     * @param limit the maximum number of identifiers
+     * @return at most limit identifiers greater than after
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    public List<String> list(String after, int limit) {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive");
+        return list(state, after, limit);
+    }
+
+    private List<String> list(State current, String after, int limit) {
+        final ImmutableList.Builder<String> builder = ImmutableList.builder();
+        final Iterator<Map.Entry<String, Long>> entries = current.entries(after);
+        int count = 0;
+        while (count < limit && entries.hasNext()) {
+            final Map.Entry<String, Long> entry = entries.next();
+            if (entry.getValue().longValue() != TOMBSTONE) {
+                builder.add(entry.getKey());
+                count++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Merges the table and all changes into a new table and truncates the journal.
+     * Modifications are only blocked while freezing the changes and while swapping
+     * in the new table.
+     *
+     * @throws IOException if writing the table failed
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.lock();
+        try {
+            final State frozen;
+            final long start;
+            lock.lock();
+            try {
+                frozen = state.freeze();
+                state = frozen;
+                start = journalSize;
+            } finally {
+                lock.unlock();
+            }
+            final Table opened = write(frozen);
+            lock.lock();
+            try {
+                final State current = state;
+                state = new State(opened, State.NONE, current.changes, current.size);
+                truncate(start);
+            } finally {
+                lock.unlock();
+            }
+            LOG.debug("Checkpointed {} identifiers in {}", opened.size(), directory);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Writes and opens a new table containing the table and the frozen changes of
+     * the given state. Does not require the lock.
+     */
+    private Table write(State frozen) throws IOException {
+        final File temporary = new File(directory, TABLE + ".tmp");
+        final FileOutputStream output = new FileOutputStream(temporary);
+        try {
+            final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+            final Iterator<Map.Entry<String, Long>> entries = frozen.storedEntries(null);
+            int[] offsets = new int[Math.max(16, frozen.table.size())];
+            long position = 0;
+            int written = 0;
+            while (entries.hasNext()) {
+                final Map.Entry<String, Long> entry = entries.next();
+                if (entry.getValue().longValue() == TOMBSTONE) {
+                    continue;
+                }
+                Preconditions.checkState(position <= Integer.MAX_VALUE, "Index table exceeds 2gb");
+                if (written == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[written++] = (int) position;
+                final byte[] id = entry.getKey().getBytes(Charsets.UTF_8);
+                data.writeInt(id.length);
+                data.write(id);
+                data.writeLong(entry.getValue().longValue());
+                position += 4 + id.length + 8;
+            }
+            for (int i = 0; i < written; i++) {
+                data.writeInt(offsets[i]);
+            }
+            data.writeInt(written);
+            data.writeInt(MAGIC);
+            data.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        final File table = new File(directory, TABLE);
+        rename(temporary, table);
+        return Table.open(table);
+    }
+
+    /**
+     * Drops all journal records before start, which are part of the table by now.
+     * Has to be called while holding the lock. Records which have been appended
+     * during the checkpoint are copied into a new journal. Until the rename, a crash
+     * replays the old journal on top of the new table, which yields the same state.
+     */
+    private void truncate(long start) throws IOException {
+        if (start == journalSize) {
+            journal.truncate(0);
+            journalSize = 0;
+            return;
+        }
+        final File temporary = new File(directory, JOURNAL + ".tmp");
+        final RandomAccessFile copy = new RandomAccessFile(temporary, "rw");
+        try {
+            copy.setLength(0);
+            final FileChannel channel = copy.getChannel();
+            long position = start;
+            while (position < journalSize) {
+                position += journal.transferTo(position, journalSize - position, channel);
+            }
+            channel.force(false);
+        } finally {
+            copy.close();
+        }
+        journalFile.close();
+        final File file = new File(directory, JOURNAL);
+        rename(temporary, file);
+        journalFile = new RandomAccessFile(file, "rw");
+        journal = journalFile.getChannel();
+        journalSize -= start;
+    }
+
+    private void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to) && !(to.delete() && from.renameTo(to))) {
+            throw new IOException(String.format("Unable to rename %s to %s", from, to));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointLock.lock();
+        try {
+            if (!state.changes.isEmpty() || !state.frozen.isEmpty()) {
+                checkpoint();
+            }
+            lock.lock();
+            try {
+                journalFile.close();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IdentifierIndex [directory=" + directory + ", size=" + state.size + "]";
+    }
+
+    /**
+     * A snapshot of table and changes.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class State {
+
+        private static final ConcurrentNavigableMap<String, Long> NONE = new ConcurrentSkipListMap<String, Long>();
+
+        private final Table table;
+
+        // identifier to value or TOMBSTONE, immutable, being written into the next table
+        private final ConcurrentNavigableMap<String, Long> frozen;
+
+        // identifier to value or TOMBSTONE, only mutated while holding the lock
+        private final ConcurrentNavigableMap<String, Long> changes;
+
+        private volatile int size;
+
+        public State(Table table, ConcurrentNavigableMap<String, Long> frozen,
+            ConcurrentNavigableMap<String, Long> changes, int size) {
+            this.table = table;
+            this.frozen = frozen;
+            this.changes = changes;
+            this.size = size;
+        }
+
+        /**
+         * Creates a state which freezes the changes of this one. Frozen changes left
+         * behind by a failed checkpoint are merged in.
+         */
+        public State freeze() {
+            final ConcurrentNavigableMap<String, Long> merged;
+            if (frozen.isEmpty()) {
+                merged = changes;
+            } else {
+                merged = new ConcurrentSkipListMap<String, Long>(frozen);
+                merged.putAll(changes);
+            }
+            return new State(table, merged, new ConcurrentSkipListMap<String, Long>(), size);
+        }
+
+        public long get(String identifier) {
+            final Long change = changes.get(identifier);
+            return change == null ? stored(identifier) : change.longValue();
+        }
+
+        /**
+         * Retrieves the value of the given identifier, ignoring the unfrozen changes.
+         */
+        public long stored(String identifier) {
+            final Long change = frozen.get(identifier);
+            return change == null ? table.get(identifier) : change.longValue();
+        }
+
+        public boolean contains(String identifier) {
+            return get(identifier) != TOMBSTONE;
+        }
+
+        /**
+         * Iterates all entries greater than after, tombstones included.
+         */
+        public Iterator<Map.Entry<String, Long>> entries(String after) {
+            return new Overlay(tail(changes, after), storedEntries(after));
+        }
+
+        /**
+         * Iterates all entries of table and frozen changes greater than after, tombstones included.
+         */
+        public Iterator<Map.Entry<String, Long>> storedEntries(String after) {
+            return new Overlay(tail(frozen, after), table.entries(after == null ? 0 : table.higher(after)));
+        }
+
+        private static Iterator<Map.Entry<String, Long>> tail(ConcurrentNavigableMap<String, Long> map,
+            String after) {
+            return (after == null ? map : map.tailMap(after, false)).entrySet().iterator();
+        }
+
+    }
+
+    /**
+     * Merges two iterations sorted by identifier, entries of the upper one replace
+     * entries of the lower one with the same identifier.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Overlay extends AbstractIterator<Map.Entry<String, Long>> {
+
+        private final PeekingIterator<Map.Entry<String, Long>> upper;
+
+        private final PeekingIterator<Map.Entry<String, Long>> lower;
+
+        public Overlay(Iterator<Map.Entry<String, Long>> upper, Iterator<Map.Entry<String, Long>> lower) {
+            this.upper = Iterators.peekingIterator(upper);
+            this.lower = Iterators.peekingIterator(lower);
+        }
+
+        @Override
+        protected Map.Entry<String, Long> computeNext() {
+            if (!upper.hasNext()) {
+                return lower.hasNext() ? lower.next() : endOfData();
+            } else if (!lower.hasNext()) {
+                return upper.next();
+            }
+            final int comparison = upper.peek().getKey().compareTo(lower.peek().getKey());
+            if (comparison == 0) {
+                lower.next();
+            }
+            return comparison <= 0 ? upper.next() : lower.next();
+        }
+
+    }
+
+    /**
+     * The immutable, memory mapped and sorted part of the index.
+     *
+     * <p>
+     *   Layout: entries (identifier length (int), identifier, value (long)), followed by
+     *   the offsets of all entries (int each), the number of entries (int) and a magic number (int).
+     * </p>
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Table {
+
+        private static final Table EMPTY = new Table(ByteBuffer.allocate(0), 0, 0);
+
+        private final ByteBuffer buffer;
+
+        private final int count;
+
+        private final int offsets;
+
+        private Table(ByteBuffer buffer, int count, int offsets) {
+            this.buffer = buffer;
+            this.count = count;
+            this.offsets = offsets;
+        }
+
+        public static Table open(File file) throws IOException {
+            if (!file.isFile()) {
+                return EMPTY;
+            }
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                final long size = randomAccessFile.length();
+                if (size > Integer.MAX_VALUE || size < 8) {
+                    throw new IOException(String.format("Invalid index table %s", file));
+                }
+                final MappedByteBuffer buffer = randomAccessFile.getChannel().map(MapMode.READ_ONLY, 0, size);
+                if (buffer.getInt((int) size - 4) != MAGIC) {
+                    throw new IOException(String.format("Invalid index table %s", file));
+                }
+                final int count = buffer.getInt((int) size - 8);
+                return new Table(buffer, count, (int) size - 8 - 4 * count);
+            } finally {
+                // the mapping stays valid
+                randomAccessFile.close();
+            }
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public Iterator<Map.Entry<String, Long>> entries(final int from) {
+            return new AbstractIterator<Map.Entry<String, Long>>() {
+
+                private int index = from;
+
+                @Override
+                protected Map.Entry<String, Long> computeNext() {
+                    if (index >= count) {
+                        return endOfData();
+                    }
+                    final Map.Entry<String, Long> entry = Maps.immutableEntry(identifier(index), value(index));
+                    index++;
+                    return entry;
+                }
+
+            };
+        }
+
+        public String identifier(int index) {
+            final ByteBuffer duplicate = buffer.duplicate();
+            final int offset = buffer.getInt(offsets + 4 * index);
+            final byte[] id = new byte[buffer.getInt(offset)];
+            duplicate.position(offset + 4);
+            duplicate.get(id);
+            return new String(id, Charsets.UTF_8);
+        }
+
+        private long value(int index) {
+            final int offset = buffer.getInt(offsets + 4 * index);
+            return buffer.getLong(offset + 4 + buffer.getInt(offset));
+        }
+
+        /**
+         * Binary search for the index of the first identifier greater than or
+         * equal to the given one.
+         */
+        private int ceiling(String identifier) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (identifier(middle).compareTo(identifier) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the index of the first identifier strictly greater than the given one.
+         */
+        public int higher(String identifier) {
+            final int index = ceiling(identifier);
+            return index < count && identifier(index).equals(identifier) ? index + 1 : index;
+        }
+
+        public long get(String identifier) {
+            final int index = ceiling(identifier);
+            return index < count && identifier(index).equals(identifier) ? value(index) : TOMBSTONE;
+        }
+
+    }
+
+}
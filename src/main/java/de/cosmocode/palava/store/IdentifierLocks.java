@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A fixed number of {@link Lock}s, striped by identifier. Operations on the same
+ * identifier always use the same lock, operations on different identifiers only
+ * contend if their identifiers happen to share a stripe.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class IdentifierLocks {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final Lock[] locks;
+
+    private final int mask;
+
+    /**
+     * Creates {@link IdentifierLocks} using {@link #DEFAULT_STRIPES} stripes.
+     */
+    public IdentifierLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Creates {@link IdentifierLocks} using at least the given number of stripes.
+     *
+     * @param stripes the minimum number of stripes, rounded up to the next power of two
+     * @throws IllegalArgumentException if stripes is not positive or too large
+     */
+    public IdentifierLocks(int stripes) {
+        Preconditions.checkArgument(stripes > 0 && stripes <= 1 << 30, "Stripes must be in (0, 2^30]");
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the lock guarding the given identifier.
+     *
+     * @param identifier the identifier
+     * @return the lock of the stripe the identifier belongs to
+     * @throws NullPointerException if identifier is null
+     */
+    public Lock get(String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return locks[smear(identifier.hashCode()) & mask];
+    }
+
+    /**
+     * Spreads the bits of weak hash codes, like {@link java.util.HashMap} does.
+     */
+    private static int smear(int hashCode) {
+        final int h = hashCode ^ (hashCode >>> 20) ^ (hashCode >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+}
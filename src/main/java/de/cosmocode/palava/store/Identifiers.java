@@ -0,0 +1,164 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Static utility methods used to generate identifiers, e.g. by {@link IdGenerator}
+ * implementations, which encode bits directly into characters without intermediate strings.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+final class Identifiers {
+
+    /**
+     * Crockford's base 32 alphabet, in ascending ascii order.
+     */
+    private static final char[] BASE32 = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * The golden gamma used by the SplitMix64 algorithm.
+     */
+    static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private Identifiers() {
+
+    }
+
+    /**
+     * Provides an unpredictable initial seed. Only called once per generator.
+     *
+     * @return a new seed
+     */
+    static long seed() {
+        return new SecureRandom().nextLong() ^ System.nanoTime();
+    }
+
+    /**
+     * Mixes the given value using the SplitMix64 finalizer.
+     *
+     * @param value the value to mix
+     * @return a well distributed pseudo random value
+     */
+    static long mix(long value) {
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Hashes the given identifier to 64 bits using FNV-1a over its characters,
+     * followed by {@link #mix(long)}. Stable across JVMs and releases, unlike
+     * {@link String#hashCode()} based schemes it does not cluster similar identifiers.
+     *
+     * @param identifier the identifier
+     * @return a well distributed 64 bit hash
+     */
+    static long hash(String identifier) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < identifier.length(); i++) {
+            hash ^= identifier.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Encodes the given 128 bits as 32 lowercase hex characters.
+     *
+     * @param high the most significant bits
+     * @param low the least significant bits
+     * @return the hex encoded string
+     */
+    static String hex(long high, long low) {
+        final char[] chars = new char[32];
+        hex(high, chars, 0);
+        hex(low, chars, 16);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes the given bytes as lowercase hex characters.
+     *
+     * @param bytes the bytes, e.g. a message digest
+     * @return the hex encoded string
+     */
+    static String hex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >>> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static void hex(long value, char[] chars, int offset) {
+        long bits = value;
+        for (int i = offset + 15; i >= offset; i--) {
+            chars[i] = HEX[(int) (bits & 0xF)];
+            bits >>>= 4;
+        }
+    }
+
+    /**
+     * Encodes the given 128 bits as 26 characters of Crockford's base 32.
+     * The lexicographic order of the result equals the unsigned order of the bits.
+     *
+     * @param high the most significant bits
+     * @param low the least significant bits
+     * @return the base 32 encoded string
+     */
+    static String base32(long high, long low) {
+        final char[] chars = new char[26];
+        long hi = high;
+        long lo = low;
+        for (int i = chars.length - 1; i >= 0; i--) {
+            chars[i] = BASE32[(int) (lo & 0x1F)];
+            lo = (lo >>> 5) | (hi << 59);
+            hi >>>= 5;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Decodes a prefix of a string encoded by {@link #base32(long, long)}.
+     *
+     * @param value the encoded string
+     * @param length the number of characters being decoded, at most 12
+     * @return the decoded bits
+     * @throws IllegalArgumentException if value contains characters outside of the alphabet
+     */
+    static long decodeBase32(String value, int length) {
+        long bits = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            final int digit = Arrays.binarySearch(BASE32, c);
+            if (digit < 0) {
+                throw new IllegalArgumentException(String.format("%s is not a valid identifier", value));
+            }
+            bits = (bits << 5) | digit;
+        }
+        return bits;
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link ByteStore} decorator which additionally instruments
+ * {@link #create(ByteBuffer)} and {@link #view(String)}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ * @see InstrumentedStore
+ */
+public final class InstrumentedByteStore extends InstrumentedStore implements ByteStore {
+
+    private final ByteStore store;
+
+    public InstrumentedByteStore(ByteStore store, StoreMetrics metrics) {
+        super(store, metrics);
+        this.store = Preconditions.checkNotNull(store, "Store");
+    }
+
+    @Override
+    protected ByteStore delegate() {
+        return store;
+    }
+
+    @Override
+    public String create(ByteBuffer buffer) throws IOException {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final int bytes = buffer.remaining();
+        final long start = System.nanoTime();
+        boolean failed = true;
+        String identifier = null;
+        try {
+            identifier = store.create(buffer);
+            recordBytes(StoreOperation.CREATE, bytes);
+            failed = false;
+            return identifier;
+        } finally {
+            record(StoreOperation.CREATE, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public void create(ByteBuffer buffer, String identifier) throws IOException {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final int bytes = buffer.remaining();
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            store.create(buffer, identifier);
+            recordBytes(StoreOperation.CREATE, bytes);
+            failed = false;
+        } finally {
+            record(StoreOperation.CREATE, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public ByteBuffer view(String identifier) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final ByteBuffer buffer = store.view(identifier);
+            recordBytes(StoreOperation.VIEW, buffer.remaining());
+            failed = false;
+            return buffer;
+        } finally {
+            record(StoreOperation.VIEW, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public ByteBuffer view(String identifier, long offset, int length) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final ByteBuffer buffer = store.view(identifier, offset, length);
+            recordBytes(StoreOperation.VIEW, buffer.remaining());
+            failed = false;
+            return buffer;
+        } finally {
+            record(StoreOperation.VIEW, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        store.release(buffer);
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentedByteStore [store=" + store + ", metrics=" + getMetrics() + "]";
+    }
+
+}
@@ -0,0 +1,401 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Store} decorator which records call counts, latencies, transferred bytes
+ * and errors of every operation in a {@link StoreMetrics} sink and logs calls
+ * which take longer than a configurable threshold.
+ *
+ * <p>
+ *   Latencies of {@link #read(String)} cover opening the stream only, the bytes
+ *   read from it are recorded once the stream is closed.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public class InstrumentedStore extends ForwardingStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InstrumentedStore.class);
+
+    private final Store store;
+
+    private final StoreMetrics metrics;
+
+    private long slowCallThreshold = TimeUnit.SECONDS.toNanos(1);
+
+    public InstrumentedStore(Store store, StoreMetrics metrics) {
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.metrics = Preconditions.checkNotNull(metrics, "Metrics");
+    }
+
+    @Override
+    protected Store delegate() {
+        return store;
+    }
+
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the duration after which calls are logged as slow. Defaults to one second.
+     *
+     * @param threshold the threshold
+     * @param unit the unit of threshold
+     * @throws IllegalArgumentException if threshold is negative
+     * @throws NullPointerException if unit is null
+     */
+    public void setSlowCallThreshold(long threshold, TimeUnit unit) {
+        Preconditions.checkArgument(threshold >= 0, "Threshold must not be negative");
+        Preconditions.checkNotNull(unit, "Unit");
+        this.slowCallThreshold = unit.toNanos(threshold);
+    }
+
+    /**
+     * Records a finished call. To be used by sub classes which instrument additional operations.
+     *
+     * @param operation the operation
+     * @param start the {@link System#nanoTime()} the call started at
+     * @param failed whether the call failed
+     * @param subject the identifier or collection of identifiers the call affected, may be null;
+     *        collections are logged by their size only
+     */
+    protected final void record(StoreOperation operation, long start, boolean failed, Object subject) {
+        final long nanos = System.nanoTime() - start;
+        metrics.recordCall(operation, nanos, failed);
+        if (nanos >= slowCallThreshold && LOG.isWarnEnabled()) {
+            final Object logged = subject instanceof Collection<?> ?
+                ((Collection<?>) subject).size() + " identifiers" : subject;
+            LOG.warn("Slow {} of {} on {} took {}ms", new Object[] {
+                operation, logged, store, TimeUnit.NANOSECONDS.toMillis(nanos)
+            });
+        }
+    }
+
+    /**
+     * Records binary data passing through an operation.
+     *
+     * @param operation the operation
+     * @param bytes the number of bytes
+     */
+    protected final void recordBytes(StoreOperation operation, long bytes) {
+        metrics.recordBytes(operation, bytes);
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final CountingInputStream counting = new CountingInputStream(stream, null);
+        final long start = System.nanoTime();
+        boolean failed = true;
+        String identifier = null;
+        try {
+            identifier = super.create(counting);
+            failed = false;
+            return identifier;
+        } finally {
+            record(StoreOperation.CREATE, start, failed, identifier);
+            recordBytes(StoreOperation.CREATE, counting.getCount());
+        }
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final CountingInputStream counting = new CountingInputStream(stream, null);
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.create(counting, identifier);
+            failed = false;
+        } finally {
+            record(StoreOperation.CREATE, start, failed, identifier);
+            recordBytes(StoreOperation.CREATE, counting.getCount());
+        }
+    }
+
+    @Override
+    public void createAll(Map<String, ? extends InputStream> streams) throws IOException {
+        Preconditions.checkNotNull(streams, "Streams");
+        final Map<String, CountingInputStream> counting = new LinkedHashMap<String, CountingInputStream>();
+        for (Map.Entry<String, ? extends InputStream> entry : streams.entrySet()) {
+            Preconditions.checkNotNull(entry.getValue(), "Stream");
+            counting.put(entry.getKey(), new CountingInputStream(entry.getValue(), null));
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.createAll(counting);
+            failed = false;
+        } finally {
+            record(StoreOperation.CREATE, start, failed, streams.keySet());
+            long bytes = 0;
+            for (CountingInputStream stream : counting.values()) {
+                bytes += stream.getCount();
+            }
+            recordBytes(StoreOperation.CREATE, bytes);
+        }
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final boolean exists = super.exists(identifier);
+            failed = false;
+            return exists;
+        } finally {
+            record(StoreOperation.STAT, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final BlobStat stat = super.stat(identifier);
+            failed = false;
+            return stat;
+        } finally {
+            record(StoreOperation.STAT, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final InputStream stream = new CountingInputStream(super.read(identifier), StoreOperation.READ);
+            failed = false;
+            return stream;
+        } finally {
+            record(StoreOperation.READ, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final InputStream stream = new CountingInputStream(super.read(identifier, offset, length),
+                StoreOperation.READ);
+            failed = false;
+            return stream;
+        } finally {
+            record(StoreOperation.READ, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public Map<String, InputStream> readAll(Collection<String> identifiers) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Map<String, InputStream> streams = new LinkedHashMap<String, InputStream>();
+            for (Map.Entry<String, InputStream> entry : super.readAll(identifiers).entrySet()) {
+                streams.put(entry.getKey(), new CountingInputStream(entry.getValue(), StoreOperation.READ));
+            }
+            failed = false;
+            return streams;
+        } finally {
+            record(StoreOperation.READ, start, failed, identifiers);
+        }
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final long transferred = super.transferTo(identifier, target);
+            recordBytes(StoreOperation.TRANSFER, transferred);
+            failed = false;
+            return transferred;
+        } finally {
+            record(StoreOperation.TRANSFER, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Set<String> identifiers = super.list();
+            failed = false;
+            return identifiers;
+        } finally {
+            record(StoreOperation.LIST, start, failed, null);
+        }
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final List<String> identifiers = super.list(after, limit);
+            failed = false;
+            return identifiers;
+        } finally {
+            record(StoreOperation.LIST, start, failed, after);
+        }
+    }
+
+    @Override
+    public Iterator<String> iterate(String after, int pageSize) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Iterator<String> iterator = super.iterate(after, pageSize);
+            failed = false;
+            return iterator;
+        } finally {
+            record(StoreOperation.LIST, start, failed, after);
+        }
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.delete(identifier);
+            failed = false;
+        } finally {
+            record(StoreOperation.DELETE, start, failed, identifier);
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            super.deleteAll(identifiers);
+            failed = false;
+        } finally {
+            record(StoreOperation.DELETE, start, failed, identifiers);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InstrumentedStore [store=" + store + ", metrics=" + metrics + "]";
+    }
+
+    /**
+     * Counts the bytes read from a stream and records them on close
+     * if an operation is given.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        private final StoreOperation operation;
+
+        private long count;
+
+        private long mark;
+
+        private boolean closed;
+
+        public CountingInputStream(InputStream stream, StoreOperation operation) {
+            super(stream);
+            this.operation = operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value != -1) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            super.mark(readlimit);
+            mark = count;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            count = mark;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed && operation != null) {
+                    recordBytes(operation, count);
+                }
+                closed = true;
+            }
+        }
+
+    }
+
+}
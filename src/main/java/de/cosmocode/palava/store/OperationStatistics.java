@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Lock-free statistics of a single {@link StoreOperation}.
+ *
+ * <p>
+ *   Latencies are kept in a histogram of power-of-two buckets, which bounds
+ *   memory and recording cost independently of the number of calls
+ *   at the price of percentiles being exact to a factor of two only.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class OperationStatistics implements OperationStatisticsMBean {
+
+    // bucket i counts durations in [2^(i-1), 2^i), bucket 0 counts zero durations
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void recordCall(long nanos, boolean failed) {
+        final long duration = Math.max(nanos, 0L);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(duration));
+        count.incrementAndGet();
+        if (failed) {
+            errors.incrementAndGet();
+        }
+        total.addAndGet(duration);
+        while (true) {
+            final long current = max.get();
+            if (duration <= current || max.compareAndSet(current, duration)) {
+                break;
+            }
+        }
+    }
+
+    void recordBytes(long value) {
+        bytes.addAndGet(value);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public double getErrorRate() {
+        final long calls = count.get();
+        return calls == 0 ? 0.0 : (double) errors.get() / calls;
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getTotalTime() {
+        return total.get();
+    }
+
+    @Override
+    public long getMeanTime() {
+        final long calls = count.get();
+        return calls == 0 ? 0L : total.get() / calls;
+    }
+
+    @Override
+    public long getMaxTime() {
+        return max.get();
+    }
+
+    @Override
+    public long getMedianTime() {
+        return getPercentileTime(50.0);
+    }
+
+    @Override
+    public long get99thPercentileTime() {
+        return getPercentileTime(99.0);
+    }
+
+    @Override
+    public long getPercentileTime(double percentile) {
+        Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0, "Percentile must be in [0, 100]");
+        final long[] snapshot = new long[buckets.length()];
+        long calls = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            calls += snapshot[i];
+        }
+        if (calls == 0) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(calls * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return i == 0 ? 0L : Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        errors.set(0L);
+        bytes.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "OperationStatistics [count=" + getCount() + ", errors=" + getErrorCount() +
+            ", bytes=" + getBytes() + ", mean=" + getMeanTime() + ", max=" + getMaxTime() + "]";
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+/**
+ * JMX interface of {@link OperationStatistics}. All times are in nanoseconds.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public interface OperationStatisticsMBean {
+
+    long getCount();
+
+    long getErrorCount();
+
+    double getErrorRate();
+
+    long getBytes();
+
+    long getTotalTime();
+
+    long getMeanTime();
+
+    long getMaxTime();
+
+    long getMedianTime();
+
+    long get99thPercentileTime();
+
+    /**
+     * Estimates the given latency percentile.
+     *
+     * @param percentile the percentile, in [0, 100]
+     * @return an upper bound of the percentile, exact to a power of two
+     */
+    long getPercentileTime(double percentile);
+
+    /**
+     * Resets all counters.
+     */
+    void reset();
+
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fast, lock-free implementation of the {@link IdGenerator} interface
+ * producing 128 pseudo random bits encoded as 32 lowercase hex characters,
+ * the same format {@link UUIDBaseGenerator} uses.
+ *
+ * <p>
+ *   Uses the non-cryptographic SplitMix64 algorithm, identifiers are unique
+ *   but not unpredictable.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class RandomGenerator implements IdGenerator {
+
+    private final AtomicLong state = new AtomicLong(Identifiers.seed());
+
+    @Override
+    public String generate() {
+        final long seed = state.addAndGet(2 * Identifiers.GAMMA);
+        return Identifiers.hex(Identifiers.mix(seed - Identifiers.GAMMA), Identifiers.mix(seed));
+    }
+
+}
@@ -0,0 +1,595 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A {@link Store} which mirrors every blob to multiple backing stores, e.g. one per volume.
+ *
+ * <p>
+ *   Creates spool the incoming stream to a temporary file and write it to all replicas
+ *   in parallel. They return as soon as a quorum of replicas succeeded, the remaining writes
+ *   complete in the background. If the quorum can't be reached, all successful writes are
+ *   deleted again. Deletes wait for pending writes of the same identifier and remove
+ *   the identifier from all replicas. Creates and deletes of the same identifier are serialized.
+ * </p>
+ *
+ * <p>
+ *   Reads go to the replica with the lowest observed latency first. If it doesn't
+ *   answer within the hedge delay, the next replica is asked as well and the first
+ *   answer wins. Replicas which fail or miss the identifier are skipped immediately.
+ *   Listings merge the identifiers of all replicas.
+ * </p>
+ *
+ * <p>
+ *   Replicas which missed a write in the background are not repaired, failures are logged.
+ *   The executor must be able to run a task per replica concurrently for creates and hedged
+ *   reads to proceed in parallel.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class ReplicatedStore extends AbstractStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicatedStore.class);
+
+    public static final long DEFAULT_HEDGE_DELAY = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final Comparator<Replica> BY_LATENCY = new Comparator<Replica>() {
+
+        @Override
+        public int compare(Replica left, Replica right) {
+            final long l = left.latency.get();
+            final long r = right.latency.get();
+            return l < r ? -1 : l == r ? 0 : 1;
+        }
+
+    };
+
+    private final List<Replica> replicas;
+
+    private final Executor executor;
+
+    private final int quorum;
+
+    private final File directory;
+
+    private final ConcurrentMap<String, CountDownLatch> pending = Maps.newConcurrentMap();
+
+    private final IdentifierLocks locks = new IdentifierLocks();
+
+    private IdGenerator generator = new UUIDGenerator();
+
+    private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+
+    /**
+     * Creates a new {@link ReplicatedStore} which requires a majority of replicas to
+     * acknowledge every create and spools to the default temporary directory.
+     *
+     * @param replicas the backing stores
+     * @param executor the executor used to access replicas in parallel
+     * @throws NullPointerException if replicas is or contains null, or executor is null
+     * @throws IllegalArgumentException if replicas is empty
+     */
+    public ReplicatedStore(List<? extends Store> replicas, Executor executor) {
+        this(replicas, executor, replicas.size() / 2 + 1);
+    }
+
+    /**
+     * Creates a new {@link ReplicatedStore} which spools to the default temporary directory.
+     *
+     * @param replicas the backing stores
+     * @param executor the executor used to access replicas in parallel
+     * @param quorum the number of replicas which have to acknowledge a create
+     * @throws NullPointerException if replicas is or contains null, or executor is null
+     * @throws IllegalArgumentException if replicas is empty or quorum is not
+     *         between 1 and the number of replicas
+     */
+    public ReplicatedStore(List<? extends Store> replicas, Executor executor, int quorum) {
+        this(replicas, executor, quorum, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * Creates a new {@link ReplicatedStore}.
+     *
+     * @param replicas the backing stores
+     * @param executor the executor used to access replicas in parallel
+     * @param quorum the number of replicas which have to acknowledge a create
+     * @param directory the directory incoming streams are spooled to
+     * @throws NullPointerException if replicas is or contains null, or executor or directory is null
+     * @throws IllegalArgumentException if replicas is empty or quorum is not
+     *         between 1 and the number of replicas
+     */
+    public ReplicatedStore(List<? extends Store> replicas, Executor executor, int quorum, File directory) {
+        Preconditions.checkNotNull(replicas, "Replicas");
+        Preconditions.checkArgument(!replicas.isEmpty(), "Replicas must not be empty");
+        final ImmutableList.Builder<Replica> builder = ImmutableList.builder();
+        for (Store store : replicas) {
+            builder.add(new Replica(Preconditions.checkNotNull(store, "Replica")));
+        }
+        this.replicas = builder.build();
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkArgument(quorum > 0 && quorum <= replicas.size(),
+            "Quorum must be between 1 and %s", replicas.size());
+        this.quorum = quorum;
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+    }
+
+    @Inject(optional = true)
+    void setGenerator(@Named(StoreConfig.ID_GENERATOR) IdGenerator generator) {
+        this.generator = Preconditions.checkNotNull(generator, "Generator");
+    }
+
+    /**
+     * Sets the time after which reads ask another replica if the first one
+     * didn't answer yet.
+     *
+     * @param delay the delay
+     * @param unit the unit of delay
+     * @throws IllegalArgumentException if delay is negative
+     * @throws NullPointerException if unit is null
+     */
+    public void setHedgeDelay(long delay, TimeUnit unit) {
+        Preconditions.checkArgument(delay >= 0, "Delay must not be negative");
+        this.hedgeDelay = Preconditions.checkNotNull(unit, "Unit").toNanos(delay);
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final String identifier = generator.generate();
+        create(stream, identifier);
+        return identifier;
+    }
+
+    @Override
+    public void create(InputStream stream, final String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final File file = File.createTempFile("replica", ".tmp", directory);
+        final AtomicInteger remaining = new AtomicInteger(replicas.size());
+        final CountDownLatch latch = new CountDownLatch(replicas.size());
+        boolean submitted = false;
+        try {
+            final OutputStream output = new FileOutputStream(file);
+            try {
+                IOUtils.copy(stream, output);
+            } finally {
+                output.close();
+            }
+            // a concurrent delete must neither overtake nor interleave with the quorum writes
+            final Lock lock = locks.get(identifier);
+            lock.lock();
+            try {
+                final CountDownLatch previous = pending.putIfAbsent(identifier, latch);
+                Preconditions.checkState(previous == null, "%s already present", identifier);
+                final CompletionService<Replica> service = new ExecutorCompletionService<Replica>(executor);
+                for (final Replica replica : replicas) {
+                    service.submit(new Callable<Replica>() {
+
+                        @Override
+                        public Replica call() throws IOException {
+                            try {
+                                final InputStream input = new FileInputStream(file);
+                                try {
+                                    replica.store.create(input, identifier);
+                                } finally {
+                                    input.close();
+                                }
+                                return replica;
+                            } catch (IOException e) {
+                                LOG.warn("Unable to write " + identifier + " to " + replica, e);
+                                throw e;
+                            } finally {
+                                latch.countDown();
+                                if (remaining.decrementAndGet() == 0) {
+                                    pending.remove(identifier, latch);
+                                    if (!file.delete()) {
+                                        LOG.warn("Unable to delete {}", file);
+                                    }
+                                }
+                            }
+                        }
+
+                    });
+                }
+                submitted = true;
+                awaitQuorum(service, identifier);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (!submitted) {
+                pending.remove(identifier, latch);
+                if (!file.delete()) {
+                    LOG.warn("Unable to delete {}", file);
+                }
+            }
+        }
+    }
+
+    private void awaitQuorum(CompletionService<Replica> service, String identifier) throws IOException {
+        final List<Replica> succeeded = Lists.newArrayList();
+        Throwable failure = null;
+        int completed = 0;
+        while (completed < replicas.size()) {
+            final Future<Replica> future;
+            try {
+                future = service.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            completed++;
+            try {
+                succeeded.add(future.get());
+                if (succeeded.size() == quorum) {
+                    LOG.trace("Reached quorum for {}", identifier);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        // quorum can't be reached, all writes are done
+        for (Replica replica : succeeded) {
+            try {
+                replica.store.delete(identifier);
+            } catch (IOException e) {
+                LOG.warn("Unable to roll back " + identifier, e);
+            }
+        }
+        Throwables.propagateIfPossible(failure, IOException.class);
+        throw new IOException(failure);
+    }
+
+    @Override
+    public boolean exists(final String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        try {
+            return hedge(identifier, new ReplicaCall<Boolean>() {
+
+                @Override
+                public Boolean call(Store replica) throws IOException {
+                    // a missing identifier may still be present on another replica
+                    Preconditions.checkState(replica.exists(identifier), "%s not present", identifier);
+                    return Boolean.TRUE;
+                }
+
+            });
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public BlobStat stat(final String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return hedge(identifier, new ReplicaCall<BlobStat>() {
+
+            @Override
+            public BlobStat call(Store replica) throws IOException {
+                return replica.stat(identifier);
+            }
+
+        });
+    }
+
+    @Override
+    public InputStream read(final String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return hedge(identifier, new StreamCall() {
+
+            @Override
+            public InputStream call(Store replica) throws IOException {
+                return replica.read(identifier);
+            }
+
+        });
+    }
+
+    @Override
+    public InputStream read(final String identifier, final long offset, final long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        return hedge(identifier, new StreamCall() {
+
+            @Override
+            public InputStream call(Store replica) throws IOException {
+                return replica.read(identifier, offset, length);
+            }
+
+        });
+    }
+
+    /**
+     * Runs the given call against the fastest replica, asking further replicas if it
+     * is slower than the hedge delay or fails, and returns the first successful result.
+     */
+    private <T> T hedge(String identifier, final ReplicaCall<T> call) throws IOException {
+        final List<Replica> ordered = Lists.newArrayList(replicas);
+        Collections.sort(ordered, BY_LATENCY);
+        final CompletionService<T> service = new ExecutorCompletionService<T>(executor);
+        int submitted = 0;
+        int completed = 0;
+        Throwable failure = null;
+        submit(service, ordered.get(submitted++), call);
+        try {
+            while (completed < submitted) {
+                final Future<T> future;
+                if (submitted < ordered.size()) {
+                    future = service.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+                    if (future == null) {
+                        LOG.trace("Hedging request for {}", identifier);
+                        submit(service, ordered.get(submitted++), call);
+                        continue;
+                    }
+                } else {
+                    future = service.take();
+                }
+                completed++;
+                try {
+                    final T result = future.get();
+                    discard(service, submitted - completed, call);
+                    return result;
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof IllegalStateException)) {
+                        failure = e.getCause();
+                        LOG.debug("Replica failed to answer for " + identifier, failure);
+                    }
+                    if (submitted < ordered.size()) {
+                        submit(service, ordered.get(submitted++), call);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(service, submitted - completed, call);
+            throw new IOException(e);
+        }
+        if (failure == null) {
+            throw new IllegalStateException(String.format("%s not present", identifier));
+        }
+        Throwables.propagateIfPossible(failure, IOException.class);
+        throw new IOException(failure);
+    }
+
+    private <T> void submit(CompletionService<T> service, final Replica replica, final ReplicaCall<T> call) {
+        service.submit(new Callable<T>() {
+
+            @Override
+            public T call() throws IOException {
+                final long start = System.nanoTime();
+                boolean failed = true;
+                try {
+                    final T result = call.call(replica.store);
+                    failed = false;
+                    return result;
+                } catch (IllegalStateException e) {
+                    // missing identifiers say nothing about the replica's health
+                    failed = false;
+                    throw e;
+                } finally {
+                    final long elapsed = System.nanoTime() - start;
+                    replica.record(failed ? Math.max(elapsed, hedgeDelay) : elapsed);
+                }
+            }
+
+        });
+    }
+
+    /**
+     * Releases the results of outstanding calls which lost the race once they complete.
+     */
+    private <T> void discard(final CompletionService<T> service, final int outstanding, final ReplicaCall<T> call) {
+        if (outstanding == 0) {
+            return;
+        }
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < outstanding; i++) {
+                    try {
+                        call.discard(service.take().get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (ExecutionException e) {
+                        LOG.trace("Hedged request failed", e.getCause());
+                    } catch (IOException e) {
+                        LOG.warn("Unable to discard hedged result", e);
+                    }
+                }
+            }
+
+        });
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        final ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (Replica replica : replicas) {
+            builder.addAll(replica.store.list());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive");
+        final SortedSet<String> merged = new TreeSet<String>();
+        for (Replica replica : replicas) {
+            merged.addAll(replica.store.list(after, limit));
+        }
+        return ImmutableList.copyOf(Iterables.limit(merged, limit));
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            final CountDownLatch latch = pending.get(identifier);
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            deleteFromReplicas(identifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteFromReplicas(String identifier) throws IOException {
+        boolean deleted = false;
+        IOException failure = null;
+        for (Replica replica : replicas) {
+            try {
+                replica.store.delete(identifier);
+                deleted = true;
+            } catch (IllegalStateException e) {
+                LOG.trace("{} not present in {}", identifier, replica.store);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete " + identifier + " from " + replica.store, e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        Preconditions.checkState(deleted, "%s not present", identifier);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicatedStore [replicas=" + replicas + ", quorum=" + quorum + "]";
+    }
+
+    /**
+     * A backing store and its observed latency.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Replica {
+
+        private final Store store;
+
+        // exponentially weighted moving average in nanoseconds
+        private final AtomicLong latency = new AtomicLong();
+
+        public Replica(Store store) {
+            this.store = store;
+        }
+
+        public void record(long nanos) {
+            while (true) {
+                final long current = latency.get();
+                if (latency.compareAndSet(current, current + (nanos - current) / 8)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return store.toString();
+        }
+
+    }
+
+    /**
+     * A call against a single replica.
+     *
+     * @param <T> the result type
+     */
+    private abstract static class ReplicaCall<T> {
+
+        public abstract T call(Store replica) throws IOException;
+
+        /**
+         * Releases a result which lost the race. Does nothing by default.
+         */
+        public void discard(T result) throws IOException {
+
+        }
+
+    }
+
+    /**
+     * A call which opens a stream, closing streams which lost the race.
+     */
+    private abstract static class StreamCall extends ReplicaCall<InputStream> {
+
+        @Override
+        public void discard(InputStream result) throws IOException {
+            result.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * A single append-only segment file of a {@link SegmentStore}.
+ *
+ * <p>
+ *   Every record consists of a header (type, identifier length, data length, creation time,
+ *   CRC32 checksum of the data), the identifier encoded in UTF-8 and the binary data.
+ *   Records are written as {@link #INCOMPLETE} first and marked as {@link #BLOB} once all data
+ *   has been written, which allows torn writes to be detected on recovery. The checksum detects
+ *   records whose header reached the disk before their data.
+ * </p>
+ *
+ * <p>
+ *   Appends have to be serialized by the caller, reads may happen concurrently.
+ *   The number of live bytes, i.e. bytes of records still referenced by the index,
+ *   is maintained by the owning store and drives compaction.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+final class Segment {
+
+    static final String SUFFIX = ".segment";
+
+    static final byte INCOMPLETE = 0;
+
+    static final byte BLOB = 1;
+
+    static final byte TOMBSTONE = 2;
+
+    /**
+     * type (byte) + identifier length (int) + data length (long) + creation time (long) + checksum (int).
+     */
+    static final int HEADER_SIZE = 1 + 4 + 8 + 8 + 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Segments are mapped in aligned windows of this size by default, once they are complete.
+     */
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final int number;
+
+    private final File file;
+
+    private final int windowSize;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileChannel channel;
+
+    private volatile long size;
+
+    private final ConcurrentMap<Long, MappedByteBuffer> windows = Maps.newConcurrentMap();
+
+    private final Object forceMonitor = new Object();
+
+    private volatile long forced;
+
+    private final AtomicLong live = new AtomicLong();
+
+    Segment(int number, File file, int windowSize) throws IOException {
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive");
+        this.number = number;
+        this.file = Preconditions.checkNotNull(file, "File");
+        this.windowSize = windowSize;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+        this.forced = size;
+    }
+
+    static String fileName(int number) {
+        return String.format("%08d%s", number, SUFFIX);
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long live() {
+        return live.get();
+    }
+
+    void addLive(long delta) {
+        live.addAndGet(delta);
+    }
+
+    /**
+     * Reads the record starting at the given position.
+     *
+     * @param position the start of the record
+     * @return the record or null if no complete record starts at position
+     * @throws IOException if reading failed
+     */
+    Record read(long position) throws IOException {
+        if (size - position < HEADER_SIZE) {
+            return null;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(header, position)) {
+            return null;
+        }
+        header.flip();
+        final byte type = header.get();
+        final int idLength = header.getInt();
+        final long length = header.getLong();
+        final long created = header.getLong();
+        final int checksum = header.getInt();
+        final long dataPosition = position + HEADER_SIZE + idLength;
+        if (type != BLOB && type != TOMBSTONE) {
+            return null;
+        }
+        if (idLength < 0 || length < 0 || dataPosition + length > size) {
+            return null;
+        }
+        final ByteBuffer id = ByteBuffer.allocate(idLength);
+        if (!readFully(id, position + HEADER_SIZE)) {
+            return null;
+        }
+        final String identifier = new String(id.array(), Charsets.UTF_8);
+        return new Record(type, identifier, dataPosition, length, created, checksum);
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, current);
+            if (read == -1) {
+                return false;
+            }
+            current += read;
+        }
+        return true;
+    }
+
+    /**
+     * Appends the given stream as a new record.
+     *
+     * @param identifier the identifier of the record
+     * @param stream the binary data
+     * @param created the creation time in milliseconds
+     * @return the position of the data part of the new record
+     * @throws IOException if writing failed, the segment is rolled back in this case
+     */
+    long append(String identifier, InputStream stream, long created) throws IOException {
+        final long start = size;
+        final byte[] id = identifier.getBytes(Charsets.UTF_8);
+        final long dataPosition = start + HEADER_SIZE + id.length;
+        boolean committed = false;
+        try {
+            write(header(INCOMPLETE, id, 0L, created, 0), start);
+            final byte[] bytes = new byte[BUFFER_SIZE];
+            final CRC32 checksum = new CRC32();
+            long position = dataPosition;
+            while (true) {
+                final int read = stream.read(bytes);
+                if (read == -1) {
+                    break;
+                }
+                checksum.update(bytes, 0, read);
+                write(ByteBuffer.wrap(bytes, 0, read), position);
+                position += read;
+            }
+            commit(start, id, position - dataPosition, created, (int) checksum.getValue());
+            size = position;
+            committed = true;
+            return dataPosition;
+        } finally {
+            if (!committed) {
+                channel.truncate(start);
+            }
+        }
+    }
+
+    /**
+     * Appends the given buffer as a new record.
+     *
+     * @param identifier the identifier of the record
+     * @param buffer the binary data
+     * @param created the creation time in milliseconds
+     * @return the position of the data part of the new record
+     * @throws IOException if writing failed, the segment is rolled back in this case
+     */
+    long append(String identifier, ByteBuffer buffer, long created) throws IOException {
+        final long start = size;
+        final byte[] id = identifier.getBytes(Charsets.UTF_8);
+        final long dataPosition = start + HEADER_SIZE + id.length;
+        final long length = buffer.remaining();
+        boolean committed = false;
+        try {
+            final int checksum = checksum(buffer.duplicate());
+            write(header(INCOMPLETE, id, 0L, created, 0), start);
+            write(buffer, dataPosition);
+            commit(start, id, length, created, checksum);
+            size = dataPosition + length;
+            committed = true;
+            return dataPosition;
+        } finally {
+            if (!committed) {
+                channel.truncate(start);
+            }
+        }
+    }
+
+    /**
+     * Appends a tombstone record for the given identifier.
+     *
+     * @param identifier the deleted identifier
+     * @throws IOException if writing failed
+     */
+    void appendTombstone(String identifier) throws IOException {
+        final long start = size;
+        final ByteBuffer header = header(TOMBSTONE, identifier.getBytes(Charsets.UTF_8), 0L, 0L, 0);
+        final int length = header.remaining();
+        write(header, start);
+        size = start + length;
+    }
+
+    private void commit(long start, byte[] id, long length, long created, int checksum) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(BLOB).putInt(id.length).putLong(length).putLong(created).putInt(checksum).flip();
+        write(header, start);
+    }
+
+    private ByteBuffer header(byte type, byte[] id, long length, long created, int checksum) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + id.length);
+        header.put(type).putInt(id.length).putLong(length).putLong(created).putInt(checksum).put(id).flip();
+        return header;
+    }
+
+    /**
+     * Computes the CRC32 checksum of the remaining bytes of the given buffer,
+     * consuming them.
+     */
+    private static int checksum(ByteBuffer buffer) {
+        final CRC32 checksum = new CRC32();
+        if (buffer.hasArray()) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final byte[] bytes = new byte[Math.min(BUFFER_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                final int length = Math.min(bytes.length, buffer.remaining());
+                buffer.get(bytes, 0, length);
+                checksum.update(bytes, 0, length);
+            }
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Computes the CRC32 checksum of the specified region. Used during recovery
+     * to verify records.
+     *
+     * @param position the start of the region
+     * @param length the length of the region
+     * @return the checksum
+     * @throws IOException if reading failed or the region exceeds the segment
+     */
+    int checksum(long position, long length) throws IOException {
+        final CRC32 checksum = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+        long current = position;
+        final long end = position + length;
+        while (current < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - current));
+            final int read = channel.read(buffer, current);
+            if (read == -1) {
+                throw new IOException(String.format("Unexpected end of %s", file));
+            }
+            checksum.update(buffer.array(), 0, read);
+            current += read;
+        }
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Forces all records up to the given position to disk. Concurrent callers
+     * share a single force: while one thread forces, others wait and return
+     * without forcing again if the completed force covered their records.
+     *
+     * @param position the end of the caller's last record
+     * @throws IOException if forcing failed
+     */
+    void force(long position) throws IOException {
+        if (forced >= position) {
+            return;
+        }
+        synchronized (forceMonitor) {
+            if (forced >= position) {
+                return;
+            }
+            // everything appended so far, including records of other waiting threads
+            final long target = size;
+            channel.force(false);
+            forced = target;
+        }
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        if (!buffer.isDirect() && buffer.remaining() > BUFFER_SIZE) {
+            writeChunked(buffer, position);
+            return;
+        }
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    /**
+     * Writes large heap buffers in chunks. The channel copies heap buffers into a
+     * temporary direct buffer of the full size before writing, which would allocate
+     * (and cache per thread) off-heap memory as large as the biggest blob ever written.
+     */
+    private void writeChunked(ByteBuffer buffer, long position) throws IOException {
+        final int limit = buffer.limit();
+        long current = position;
+        try {
+            while (buffer.hasRemaining()) {
+                buffer.limit(Math.min(limit, buffer.position() + BUFFER_SIZE));
+                while (buffer.hasRemaining()) {
+                    current += channel.write(buffer, current);
+                }
+                buffer.limit(limit);
+            }
+        } finally {
+            buffer.limit(limit);
+        }
+    }
+
+    /**
+     * Truncates this segment to the given size. Used during recovery to
+     * drop torn records.
+     *
+     * @param newSize the new size
+     * @throws IOException if truncating failed
+     */
+    void truncate(long newSize) throws IOException {
+        channel.truncate(newSize);
+        windows.clear();
+        size = newSize;
+        forced = Math.min(forced, newSize);
+    }
+
+    /**
+     * Provides a read-only view on the specified region, backed by
+     * a memory mapping of this segment.
+     *
+     * <p>
+     *   Regions within a complete window share one mapping of that window. Regions spanning
+     *   windows or lying in the window which is still being appended to are mapped on their own,
+     *   so a growing segment is never remapped as a whole.
+     * </p>
+     *
+     * @param position the start of the region
+     * @param length the length of the region
+     * @return a read-only buffer containing exactly the specified region
+     * @throws IOException if mapping failed
+     */
+    ByteBuffer view(long position, int length) throws IOException {
+        final long window = position / windowSize;
+        final long start = window * windowSize;
+        final long end = start + windowSize;
+        if (position + length > end || size < end) {
+            return channel.map(MapMode.READ_ONLY, position, length).asReadOnlyBuffer();
+        }
+        MappedByteBuffer mapping = windows.get(window);
+        if (mapping == null) {
+            mapping = map(window);
+        }
+        final ByteBuffer duplicate = mapping.duplicate();
+        duplicate.position((int) (position - start));
+        duplicate.limit((int) (position - start) + length);
+        return duplicate.slice().asReadOnlyBuffer();
+    }
+
+    private synchronized MappedByteBuffer map(long window) throws IOException {
+        final MappedByteBuffer existing = windows.get(window);
+        if (existing != null) {
+            return existing;
+        }
+        final MappedByteBuffer mapping = channel.map(MapMode.READ_ONLY, window * windowSize, windowSize);
+        windows.put(window, mapping);
+        return mapping;
+    }
+
+    /**
+     * Transfers the specified region to the given channel without copying it
+     * through user-space buffers.
+     *
+     * @param position the start of the region
+     * @param length the length of the region
+     * @param target the target channel
+     * @return the number of bytes transferred
+     * @throws ClosedChannelException if this segment has been closed before anything was transferred
+     * @throws IOException if transferring failed
+     */
+    long transferTo(long position, long length, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            try {
+                transferred += channel.transferTo(position + transferred, length - transferred, target);
+            } catch (ClosedChannelException e) {
+                if (transferred == 0) {
+                    throw e;
+                }
+                // the caller can't retry once data has been written to target
+                throw new IOException(String.format("%s has been closed during transfer", file), e);
+            }
+        }
+        return transferred;
+    }
+
+    void close() throws IOException {
+        windows.clear();
+        randomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Segment [" + file + "]";
+    }
+
+    /**
+     * A record read from a segment.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    static final class Record {
+
+        private final byte type;
+
+        private final String identifier;
+
+        private final long dataPosition;
+
+        private final long length;
+
+        private final long created;
+
+        private final int checksum;
+
+        Record(byte type, String identifier, long dataPosition, long length, long created, int checksum) {
+            this.type = type;
+            this.identifier = identifier;
+            this.dataPosition = dataPosition;
+            this.length = length;
+            this.created = created;
+            this.checksum = checksum;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        String getIdentifier() {
+            return identifier;
+        }
+
+        long getDataPosition() {
+            return dataPosition;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getCreated() {
+            return created;
+        }
+
+        int getChecksum() {
+            return checksum;
+        }
+
+        long getEnd() {
+            return dataPosition + length;
+        }
+
+    }
+
+}
@@ -0,0 +1,889 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * A {@link ByteStore} which packs all blobs into large append-only segment files
+ * and serves {@link #view(String)} as read-only slices of memory mapped segments.
+ *
+ * <p>
+ *   Reads are zero-copy, neither {@link #view(String)} nor {@link #read(String)}
+ *   copy binary data into the heap and {@link #transferTo(String, WritableByteChannel)}
+ *   uses {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}.
+ *   Deletes append tombstones. All appends are serialized, reads never block.
+ * </p>
+ *
+ * <p>
+ *   The number of live bytes of every segment is tracked. {@link #compact()} rewrites
+ *   all but the active segment whose live ratio dropped below the compaction threshold,
+ *   usually triggered periodically using {@link #schedule(ScheduledExecutorService, long, TimeUnit)}.
+ *   Live records are copied into a new file in their original order and at a limited rate,
+ *   without holding the append lock. The new file replaces the segment atomically and the
+ *   index is switched over afterwards, before the replaced segment is closed. Reads which
+ *   looked up a blob before the switch and find its segment closed retry with the new location.
+ *   Views handed out earlier stay valid until they are garbage collected. Tombstones are
+ *   dropped once no deleted record of their identifier is left in another segment, otherwise
+ *   they are kept and count as live bytes of the rewritten segment.
+ * </p>
+ *
+ * <p>
+ *   The in-memory index is kept sorted, which allows {@link #list(String, int)} to
+ *   start at any cursor without copying identifiers before it.
+ *   The index is rebuilt by scanning all segments on startup. Incomplete
+ *   records at the end of a segment, e.g. caused by a crash during
+ *   {@link #create(InputStream, String)}, are truncated. Checksums of the records
+ *   in the last segment are verified, which also truncates records whose header
+ *   reached the disk before their data.
+ * </p>
+ *
+ * <p>
+ *   Creates and deletes return before their records have been forced to disk by default.
+ *   In durable mode they wait until their record is on disk. Forcing happens outside of
+ *   the append lock, which allows concurrent writers to share a single force (group commit).
+ *   In both modes every segment is forced completely before the next one is started,
+ *   which costs a single force per segment.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class SegmentStore extends AbstractByteStore implements ByteStore, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentStore.class);
+
+    private static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final long DEFAULT_COMPACTION_RATE = 32L * 1024 * 1024;
+
+    private static final String COMPACTING = ".compacting";
+
+    private static final FilenameFilter SEGMENTS = new FilenameFilter() {
+
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(Segment.SUFFIX);
+        }
+
+    };
+
+    private final File directory;
+
+    private final ConcurrentNavigableMap<String, Entry> index = new ConcurrentSkipListMap<String, Entry>();
+
+    private final List<Segment> segments = Lists.newArrayList();
+
+    // number of deleted blob records per identifier which are still on disk, guarded by lock
+    private final Map<String, Integer> dead = Maps.newHashMap();
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Lock compactionLock = new ReentrantLock();
+
+    private final int windowSize;
+
+    private IdGenerator generator = new UUIDGenerator();
+
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private boolean durable;
+
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private long compactionRate = DEFAULT_COMPACTION_RATE;
+
+    private Segment active;
+
+    @Inject
+    public SegmentStore(@Named(SegmentStoreConfig.DIRECTORY) File directory) throws IOException {
+        this(directory, Segment.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Opens a store whose segments are mapped in windows of the given size.
+     *
+     * @param directory the directory, created if necessary
+     * @param windowSize the size of the mapped windows in bytes
+     * @throws IOException if recovery failed
+     * @throws IllegalArgumentException if windowSize is not positive
+     */
+    SegmentStore(File directory, int windowSize) throws IOException {
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        Preconditions.checkArgument(windowSize > 0, "Window size must be positive");
+        this.windowSize = windowSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", directory));
+        }
+        recover();
+    }
+
+    @Inject(optional = true)
+    void setGenerator(@Named(StoreConfig.ID_GENERATOR) IdGenerator generator) {
+        this.generator = Preconditions.checkNotNull(generator, "Generator");
+    }
+
+    @Inject(optional = true)
+    void setSegmentSize(@Named(SegmentStoreConfig.SEGMENT_SIZE) long segmentSize) {
+        Preconditions.checkArgument(segmentSize > 0, "Segment size must be positive");
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Enables or disables durable mode, in which creates and deletes only return once
+     * their records have been forced to disk.
+     *
+     * @param durable true to force records to disk, false to leave it to the operating system
+     */
+    @Inject(optional = true)
+    void setDurable(@Named(SegmentStoreConfig.DURABLE) boolean durable) {
+        this.durable = durable;
+    }
+
+    /**
+     * Sets the live ratio below which segments are compacted.
+     *
+     * @param compactionThreshold the ratio of live bytes, between 0 and 1
+     * @throws IllegalArgumentException if compactionThreshold is not between 0 and 1
+     */
+    @Inject(optional = true)
+    void setCompactionThreshold(@Named(SegmentStoreConfig.COMPACTION_THRESHOLD) double compactionThreshold) {
+        Preconditions.checkArgument(compactionThreshold >= 0 && compactionThreshold <= 1,
+            "Compaction threshold must be between 0 and 1");
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Sets the maximum number of bytes per second copied by compaction.
+     *
+     * @param compactionRate the rate in bytes per second
+     * @throws IllegalArgumentException if compactionRate is not positive
+     */
+    @Inject(optional = true)
+    void setCompactionRate(@Named(SegmentStoreConfig.COMPACTION_RATE) long compactionRate) {
+        Preconditions.checkArgument(compactionRate > 0, "Compaction rate must be positive");
+        this.compactionRate = compactionRate;
+    }
+
+    private void recover() throws IOException {
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(COMPACTING)) {
+                LOG.warn("Removing incomplete {}", file);
+                if (!file.delete()) {
+                    throw new IOException(String.format("Unable to delete %s", file));
+                }
+            }
+        }
+        final String[] names = directory.list(SEGMENTS);
+        Arrays.sort(names);
+        for (int i = 0; i < names.length; i++) {
+            final String name = names[i];
+            final int number = Integer.parseInt(name.substring(0, name.length() - Segment.SUFFIX.length()));
+            final Segment segment = new Segment(number, new File(directory, name), windowSize);
+            // only the last segment can contain records which haven't been forced completely
+            scan(segment, i == names.length - 1);
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            active = newSegment(0);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+        LOG.info("Recovered {} entries from {} segment(s) in {}", new Object[] {
+            index.size(), segments.size(), directory
+        });
+    }
+
+    private void scan(Segment segment, boolean verify) throws IOException {
+        final long size = segment.size();
+        long position = 0;
+        while (position < size) {
+            final Segment.Record record = segment.read(position);
+            if (record == null) {
+                break;
+            }
+            if (verify && segment.checksum(record.getDataPosition(), record.getLength()) != record.getChecksum()) {
+                LOG.warn("Checksum mismatch in {} at {}", segment, position);
+                break;
+            }
+            if (record.getType() == Segment.BLOB) {
+                put(record.getIdentifier(), new Entry(segment, record.getDataPosition(),
+                    record.getLength(), record.getCreated()));
+            } else {
+                remove(record.getIdentifier());
+            }
+            position = record.getEnd();
+        }
+        if (position < size) {
+            LOG.warn("Truncating torn record in {} at {}", segment, position);
+            segment.truncate(position);
+        }
+    }
+
+    /**
+     * Adds the given entry to the index and maintains the live bytes of the affected segments.
+     */
+    private void put(String identifier, Entry entry) {
+        entry.segment.addLive(entry.size(identifier));
+        final Entry previous = index.put(identifier, entry);
+        if (previous != null) {
+            previous.segment.addLive(-previous.size(identifier));
+        }
+    }
+
+    /**
+     * Removes the given identifier from the index and maintains the live bytes of its segment.
+     */
+    private void remove(String identifier) {
+        final Entry previous = index.remove(identifier);
+        if (previous != null) {
+            previous.segment.addLive(-previous.size(identifier));
+            addDead(identifier, 1);
+        }
+    }
+
+    /**
+     * Maintains the number of deleted blob records of the given identifier which are still on disk.
+     */
+    private void addDead(String identifier, int delta) {
+        final Integer count = dead.get(identifier);
+        final int updated = (count == null ? 0 : count) + delta;
+        if (updated > 0) {
+            dead.put(identifier, updated);
+        } else {
+            dead.remove(identifier);
+        }
+    }
+
+    private Segment newSegment(int number) throws IOException {
+        final Segment segment = new Segment(number, new File(directory, Segment.fileName(number)), windowSize);
+        segments.add(segment);
+        LOG.debug("Created new {}", segment);
+        return segment;
+    }
+
+    /**
+     * Returns the segment the next record should be appended to. Has to be called
+     * while holding the lock.
+     */
+    private Segment activeSegment() throws IOException {
+        if (active.size() >= segmentSize) {
+            // recovery only verifies the last segment, regardless of durable mode
+            active.force(active.size());
+            active = newSegment(active.getNumber() + 1);
+        }
+        return active;
+    }
+
+    /**
+     * Forces the given segment up to the specified position in durable mode. Has to be
+     * called without holding the lock, so concurrent writers can join the force.
+     */
+    private void force(Segment segment, long position) throws IOException {
+        if (durable) {
+            segment.force(position);
+        }
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final String identifier = generator.generate();
+        create(stream, identifier);
+        return identifier;
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Segment segment;
+        lock.lock();
+        try {
+            Preconditions.checkState(!index.containsKey(identifier), "%s already present", identifier);
+            segment = activeSegment();
+            final long created = System.currentTimeMillis();
+            final long position = segment.append(identifier, stream, created);
+            put(identifier, new Entry(segment, position, segment.size() - position, created));
+        } finally {
+            lock.unlock();
+        }
+        force(segment, segment.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   All streams are appended while holding the lock once. The presence of all
+     *   identifiers is checked before anything is written.
+     * </p>
+     */
+    @Override
+    public void createAll(Map<String, ? extends InputStream> streams) throws IOException {
+        Preconditions.checkNotNull(streams, "Streams");
+        final Segment last;
+        lock.lock();
+        try {
+            for (Map.Entry<String, ? extends InputStream> entry : streams.entrySet()) {
+                Preconditions.checkNotNull(entry.getKey(), "Identifier");
+                Preconditions.checkNotNull(entry.getValue(), "Stream");
+                Preconditions.checkState(!index.containsKey(entry.getKey()), "%s already present", entry.getKey());
+            }
+            for (Map.Entry<String, ? extends InputStream> entry : streams.entrySet()) {
+                final Segment segment = activeSegment();
+                final long created = System.currentTimeMillis();
+                final long position = segment.append(entry.getKey(), entry.getValue(), created);
+                put(entry.getKey(), new Entry(segment, position, segment.size() - position, created));
+            }
+            last = active;
+        } finally {
+            lock.unlock();
+        }
+        // earlier segments have been forced when the active one was started
+        force(last, last.size());
+    }
+
+    @Override
+    public String create(ByteBuffer buffer) throws IOException {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final String identifier = generator.generate();
+        create(buffer, identifier);
+        return identifier;
+    }
+
+    @Override
+    public void create(ByteBuffer buffer, String identifier) throws IOException {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Segment segment;
+        lock.lock();
+        try {
+            Preconditions.checkState(!index.containsKey(identifier), "%s already present", identifier);
+            segment = activeSegment();
+            final long created = System.currentTimeMillis();
+            final long position = segment.append(identifier, buffer, created);
+            put(identifier, new Entry(segment, position, segment.size() - position, created));
+        } finally {
+            lock.unlock();
+        }
+        force(segment, segment.size());
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return index.containsKey(identifier);
+    }
+
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Entry entry = index.get(identifier);
+        Preconditions.checkState(entry != null, "%s not present", identifier);
+        return new BlobStat(identifier, entry.length, entry.created, null);
+    }
+
+    @Override
+    public ByteBuffer view(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        while (true) {
+            final Entry entry = index.get(identifier);
+            Preconditions.checkState(entry != null, "%s not present", identifier);
+            Preconditions.checkState(entry.length <= Integer.MAX_VALUE, "%s is too large to be viewed", identifier);
+            try {
+                return entry.segment.view(entry.position, (int) entry.length);
+            } catch (ClosedChannelException e) {
+                checkMoved(identifier, entry, e);
+            }
+        }
+    }
+
+    /**
+     * Rethrows the given exception unless the blob has been moved by compaction
+     * in the meantime, in which case the caller should retry.
+     */
+    private void checkMoved(String identifier, Entry entry, ClosedChannelException e) throws ClosedChannelException {
+        if (index.get(identifier) == entry) {
+            throw e;
+        }
+        LOG.trace("{} has been moved during read, retrying", identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Maps the requested range only, which also allows to view parts
+     *   of blobs larger than 2gb.
+     * </p>
+     */
+    @Override
+    public ByteBuffer view(String identifier, long offset, int length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        while (true) {
+            final Entry entry = index.get(identifier);
+            Preconditions.checkState(entry != null, "%s not present", identifier);
+            final long start = Math.min(offset, entry.length);
+            try {
+                return entry.segment.view(entry.position + start, (int) Math.min(length, entry.length - start));
+            } catch (ClosedChannelException e) {
+                checkMoved(identifier, entry, e);
+            }
+        }
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        while (true) {
+            final Entry entry = index.get(identifier);
+            Preconditions.checkState(entry != null, "%s not present", identifier);
+            try {
+                return entry.segment.transferTo(entry.position, entry.length, target);
+            } catch (ClosedChannelException e) {
+                // only thrown if nothing has been transferred yet
+                checkMoved(identifier, entry, e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Returns an unmodifiable live view of the index.
+     * </p>
+     */
+    @Override
+    public Set<String> list() throws IOException {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive");
+        final Set<String> identifiers = after == null ? index.keySet() : index.tailMap(after, false).keySet();
+        return ImmutableList.copyOf(Iterables.limit(identifiers, limit));
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Segment segment;
+        lock.lock();
+        try {
+            Preconditions.checkState(index.containsKey(identifier), "%s not present", identifier);
+            segment = activeSegment();
+            segment.appendTombstone(identifier);
+            remove(identifier);
+        } finally {
+            lock.unlock();
+        }
+        force(segment, segment.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   All tombstones are appended while holding the lock once. The presence of all
+     *   identifiers is checked before anything is written.
+     * </p>
+     */
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        final Segment last;
+        lock.lock();
+        try {
+            for (String identifier : identifiers) {
+                Preconditions.checkNotNull(identifier, "Identifier");
+                Preconditions.checkState(index.containsKey(identifier), "%s not present", identifier);
+            }
+            for (String identifier : identifiers) {
+                if (index.containsKey(identifier)) {
+                    activeSegment().appendTombstone(identifier);
+                    remove(identifier);
+                }
+            }
+            last = active;
+        } finally {
+            lock.unlock();
+        }
+        force(last, last.size());
+    }
+
+    /**
+     * Compacts all segments, except the active one, whose ratio of live bytes is below
+     * the compaction threshold. Failures are logged and skipped, so the affected segments
+     * are retried on the next run. Concurrent calls are serialized.
+     *
+     * @return the number of compacted segments
+     */
+    public int compact() {
+        compactionLock.lock();
+        try {
+            final List<Segment> candidates;
+            lock.lock();
+            try {
+                candidates = Lists.newArrayList(segments);
+                candidates.remove(active);
+            } finally {
+                lock.unlock();
+            }
+            final Throttle throttle = new Throttle(compactionRate);
+            int compacted = 0;
+            for (Segment segment : candidates) {
+                if (segment.live() >= segment.size() * compactionThreshold) {
+                    continue;
+                }
+                try {
+                    compact(segment, throttle);
+                    compacted++;
+                } catch (IOException e) {
+                    LOG.warn("Unable to compact " + segment, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOG.info("Compaction of {} has been interrupted", directory);
+                    break;
+                }
+            }
+            return compacted;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void compact(Segment segment, Throttle throttle) throws IOException, InterruptedException {
+        final boolean first;
+        lock.lock();
+        try {
+            // no older segment can contain records the tombstones of the first segment delete
+            first = segments.indexOf(segment) == 0;
+        } finally {
+            lock.unlock();
+        }
+        final long size = segment.size();
+        final Set<String> obsolete = obsoleteTombstones(segment, size);
+        final File original = segment.getFile();
+        final File file = new File(directory, original.getName() + COMPACTING);
+        final Segment target = new Segment(segment.getNumber(), file, windowSize);
+        final Map<String, Entry> copied = Maps.newHashMap();
+        final Map<String, Long> positions = Maps.newHashMap();
+        final Map<String, Integer> dropped = Maps.newHashMap();
+        long tombstones = 0;
+        boolean replaced = false;
+        try {
+            long position = 0;
+            while (position < size) {
+                final Segment.Record record = segment.read(position);
+                if (record == null) {
+                    throw new IOException(String.format("Unreadable record in %s at %s", segment, position));
+                }
+                final String identifier = record.getIdentifier();
+                if (record.getType() == Segment.TOMBSTONE) {
+                    if (!first && !obsolete.contains(identifier)) {
+                        target.appendTombstone(identifier);
+                        tombstones += record.getEnd() - position;
+                    }
+                } else {
+                    final Entry entry = index.get(identifier);
+                    if (entry != null && entry.segment == segment && entry.position == record.getDataPosition()) {
+                        if (record.getLength() > Integer.MAX_VALUE) {
+                            throw new IOException(String.format("%s is too large to be compacted", identifier));
+                        }
+                        throttle.acquire(record.getLength());
+                        final ByteBuffer data = segment.view(record.getDataPosition(), (int) record.getLength());
+                        positions.put(identifier, target.append(identifier, data, record.getCreated()));
+                        copied.put(identifier, entry);
+                    } else {
+                        final Integer count = dropped.get(identifier);
+                        dropped.put(identifier, count == null ? 1 : count + 1);
+                    }
+                }
+                position = record.getEnd();
+            }
+            // the original might have been forced, the copy has to be on disk before replacing it
+            target.force(target.size());
+            final boolean empty = target.size() == 0;
+            target.close();
+            final Segment replacement;
+            if (empty) {
+                replacement = null;
+                if (!file.delete() || !original.delete()) {
+                    throw new IOException(String.format("Unable to delete %s", original));
+                }
+            } else if (file.renameTo(original)) {
+                replacement = new Segment(segment.getNumber(), original, windowSize);
+            } else {
+                throw new IOException(String.format("Unable to rename %s to %s", file, original));
+            }
+            lock.lock();
+            try {
+                for (Map.Entry<String, Integer> entry : dropped.entrySet()) {
+                    addDead(entry.getKey(), -entry.getValue());
+                }
+                if (replacement == null) {
+                    segments.remove(segment);
+                } else {
+                    segments.set(segments.indexOf(segment), replacement);
+                    // kept tombstones are still required, compacting them again would not free anything
+                    replacement.addLive(tombstones);
+                    for (Map.Entry<String, Entry> entry : copied.entrySet()) {
+                        final String identifier = entry.getKey();
+                        final Entry previous = entry.getValue();
+                        final Entry moved = new Entry(replacement, positions.get(identifier),
+                            previous.length, previous.created);
+                        // blobs deleted in the meantime stay deleted
+                        if (index.replace(identifier, previous, moved)) {
+                            replacement.addLive(moved.size(identifier));
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            replaced = true;
+            close(segment);
+            LOG.info("Compacted {} from {} to {} bytes", new Object[] {
+                segment, size, replacement == null ? 0 : replacement.size()
+            });
+        } finally {
+            if (!replaced) {
+                target.close();
+                if (file.exists() && !file.delete()) {
+                    LOG.warn("Unable to delete {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the identifiers of all tombstones in the given segment which no longer delete
+     * anything, because none of their deleted records is left outside of the segment.
+     * Records which have been deleted since can only make this more conservative.
+     */
+    private Set<String> obsoleteTombstones(Segment segment, long size) throws IOException {
+        final Map<String, Integer> deleted = Maps.newHashMap();
+        final Set<String> tombstones = Sets.newHashSet();
+        long position = 0;
+        while (position < size) {
+            final Segment.Record record = segment.read(position);
+            if (record == null) {
+                throw new IOException(String.format("Unreadable record in %s at %s", segment, position));
+            }
+            final String identifier = record.getIdentifier();
+            if (record.getType() == Segment.TOMBSTONE) {
+                tombstones.add(identifier);
+            } else {
+                final Entry entry = index.get(identifier);
+                if (entry == null || entry.segment != segment || entry.position != record.getDataPosition()) {
+                    final Integer count = deleted.get(identifier);
+                    deleted.put(identifier, count == null ? 1 : count + 1);
+                }
+            }
+            position = record.getEnd();
+        }
+        final Set<String> obsolete = Sets.newHashSet();
+        lock.lock();
+        try {
+            for (String identifier : tombstones) {
+                final Integer total = dead.get(identifier);
+                final Integer local = deleted.get(identifier);
+                if ((total == null ? 0 : total) <= (local == null ? 0 : local)) {
+                    obsolete.add(identifier);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return obsolete;
+    }
+
+    /**
+     * Schedules {@link #compact()} to run periodically.
+     *
+     * @param executor the executor to schedule on
+     * @param period the period between two runs
+     * @param unit the unit of period
+     * @return the future of the scheduled task, used to cancel it
+     * @throws NullPointerException if executor or unit is null
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkNotNull(unit, "Unit");
+        return executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                compact();
+            }
+
+        }, period, period, unit);
+    }
+
+    /**
+     * Returns the number of bytes occupied by records which have been deleted and by
+     * tombstones which have not been kept by compaction yet, i.e. the space compaction
+     * could reclaim.
+     *
+     * @return the number of dead bytes
+     */
+    public long getDeadBytes() {
+        lock.lock();
+        try {
+            long dead = 0;
+            for (Segment segment : segments) {
+                dead += segment.size() - segment.live();
+            }
+            return dead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void close(Segment segment) {
+        try {
+            segment.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close {}", segment, e);
+        }
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                close(segment);
+            }
+            segments.clear();
+            index.clear();
+            dead.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentStore [directory=" + directory + "]";
+    }
+
+    /**
+     * Limits compaction to a number of bytes per second by sleeping
+     * whenever copying gets ahead of schedule.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Throttle {
+
+        private final long bytesPerSecond;
+
+        private final long start = System.nanoTime();
+
+        private long total;
+
+        public Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public void acquire(long bytes) throws InterruptedException {
+            total += bytes;
+            final long due = start + (long) (total * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+            final long delay = due - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
+
+    }
+
+    /**
+     * Location of a stored blob.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Entry {
+
+        private final Segment segment;
+
+        private final long position;
+
+        private final long length;
+
+        private final long created;
+
+        public Entry(Segment segment, long position, long length, long created) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.created = created;
+        }
+
+        /**
+         * Returns the size of the whole record, including its header.
+         */
+        public long size(String identifier) {
+            return Segment.HEADER_SIZE + identifier.getBytes(Charsets.UTF_8).length + length;
+        }
+
+    }
+
+}
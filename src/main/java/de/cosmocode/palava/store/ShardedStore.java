@@ -0,0 +1,355 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A {@link Store} which spreads identifiers across multiple backing stores,
+ * e.g. one per disk, using consistent hashing.
+ *
+ * <p>
+ *   Every shard owns a number of points on a hash ring, an identifier belongs
+ *   to the shard owning the next point at or after its hash. Routing only depends
+ *   on the identifier and the position of each shard in the list passed to the
+ *   constructor, which keeps generated identifiers routable across restarts.
+ *   Appending a shard only moves the identifiers it takes over, roughly
+ *   one out of the new number of shards. Moving data to new shards is up to the caller.
+ * </p>
+ *
+ * <p>
+ *   {@link #list()} and {@link #list(String, int)} query all shards, in parallel
+ *   if an {@link Executor} is given, and merge their results.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class ShardedStore extends AbstractStore {
+
+    public static final int DEFAULT_POINTS = 128;
+
+    private static final Executor SAME_THREAD = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+    };
+
+    private final List<Store> shards;
+
+    private final NavigableMap<Long, Store> ring = new TreeMap<Long, Store>();
+
+    private final Executor executor;
+
+    private IdGenerator generator = new UUIDGenerator();
+
+    /**
+     * Creates a new {@link ShardedStore} which queries shards sequentially.
+     *
+     * @param shards the backing stores, in a stable order
+     * @throws NullPointerException if shards is or contains null
+     * @throws IllegalArgumentException if shards is empty
+     */
+    public ShardedStore(List<? extends Store> shards) {
+        this(shards, SAME_THREAD);
+    }
+
+    /**
+     * Creates a new {@link ShardedStore} using {@link #DEFAULT_POINTS} points per shard.
+     *
+     * @param shards the backing stores, in a stable order
+     * @param executor the executor used to query all shards in parallel
+     * @throws NullPointerException if shards is or contains null, or executor is null
+     * @throws IllegalArgumentException if shards is empty
+     */
+    public ShardedStore(List<? extends Store> shards, Executor executor) {
+        this(shards, executor, DEFAULT_POINTS);
+    }
+
+    /**
+     * Creates a new {@link ShardedStore}.
+     *
+     * @param shards the backing stores, in a stable order
+     * @param executor the executor used to query all shards in parallel
+     * @param points the number of points per shard on the hash ring, more points
+     *        distribute identifiers more evenly
+     * @throws NullPointerException if shards is or contains null, or executor is null
+     * @throws IllegalArgumentException if shards is empty or points is not positive
+     */
+    public ShardedStore(List<? extends Store> shards, Executor executor, int points) {
+        this.shards = ImmutableList.copyOf(shards);
+        Preconditions.checkArgument(!this.shards.isEmpty(), "Shards must not be empty");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkArgument(points > 0, "Points must be positive");
+        for (int shard = 0; shard < this.shards.size(); shard++) {
+            for (int point = 0; point < points; point++) {
+                // collisions are astronomically unlikely, the first shard wins in that case
+                final Long position = Identifiers.mix((((long) shard) << 32 | point) * Identifiers.GAMMA);
+                if (!ring.containsKey(position)) {
+                    ring.put(position, this.shards.get(shard));
+                }
+            }
+        }
+    }
+
+    @Inject(optional = true)
+    void setGenerator(@Named(StoreConfig.ID_GENERATOR) IdGenerator generator) {
+        this.generator = Preconditions.checkNotNull(generator, "Generator");
+    }
+
+    /**
+     * Returns the shard responsible for the given identifier.
+     *
+     * @param identifier the identifier
+     * @return the shard of identifier
+     */
+    Store shardOf(String identifier) {
+        final Map.Entry<Long, Store> entry = ring.ceilingEntry(Identifiers.hash(identifier));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    private Map<Store, Map<String, InputStream>> partition(Map<String, ? extends InputStream> streams) {
+        final Map<Store, Map<String, InputStream>> partitions = Maps.newLinkedHashMap();
+        for (Map.Entry<String, ? extends InputStream> entry : streams.entrySet()) {
+            Preconditions.checkNotNull(entry.getKey(), "Identifier");
+            final Store shard = shardOf(entry.getKey());
+            Map<String, InputStream> partition = partitions.get(shard);
+            if (partition == null) {
+                partition = Maps.newLinkedHashMap();
+                partitions.put(shard, partition);
+            }
+            partition.put(entry.getKey(), entry.getValue());
+        }
+        return partitions;
+    }
+
+    private Map<Store, List<String>> partition(Collection<String> identifiers) {
+        final Map<Store, List<String>> partitions = Maps.newLinkedHashMap();
+        for (String identifier : identifiers) {
+            Preconditions.checkNotNull(identifier, "Identifier");
+            final Store shard = shardOf(identifier);
+            List<String> partition = partitions.get(shard);
+            if (partition == null) {
+                partition = Lists.newArrayList();
+                partitions.put(shard, partition);
+            }
+            partition.add(identifier);
+        }
+        return partitions;
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final String identifier = generator.generate();
+        create(stream, identifier);
+        return identifier;
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        shardOf(identifier).create(stream, identifier);
+    }
+
+    @Override
+    public void createAll(Map<String, ? extends InputStream> streams) throws IOException {
+        Preconditions.checkNotNull(streams, "Streams");
+        for (Map.Entry<Store, Map<String, InputStream>> entry : partition(streams).entrySet()) {
+            entry.getKey().createAll(entry.getValue());
+        }
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return shardOf(identifier).exists(identifier);
+    }
+
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return shardOf(identifier).stat(identifier);
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return shardOf(identifier).read(identifier);
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return shardOf(identifier).read(identifier, offset, length);
+    }
+
+    @Override
+    public Map<String, InputStream> readAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        final Map<String, InputStream> streams = Maps.newHashMap();
+        boolean complete = false;
+        try {
+            for (Map.Entry<Store, List<String>> entry : partition(identifiers).entrySet()) {
+                streams.putAll(entry.getKey().readAll(entry.getValue()));
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                closeAll(streams.values());
+            }
+        }
+        // restore the requested order
+        final Map<String, InputStream> ordered = Maps.newLinkedHashMap();
+        for (String identifier : identifiers) {
+            ordered.put(identifier, streams.get(identifier));
+        }
+        return ordered;
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        return shardOf(identifier).transferTo(identifier, target);
+    }
+
+    /**
+     * Runs the given call against every shard using the executor and waits for all results.
+     */
+    private <T> List<T> fanOut(final ShardCall<T> call) throws IOException {
+        final List<FutureTask<T>> tasks = Lists.newArrayListWithCapacity(shards.size());
+        for (final Store shard : shards) {
+            final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+
+                @Override
+                public T call() throws IOException {
+                    return call.call(shard);
+                }
+
+            });
+            tasks.add(task);
+            executor.execute(task);
+        }
+        final List<T> results = Lists.newArrayListWithCapacity(tasks.size());
+        for (FutureTask<T> task : tasks) {
+            try {
+                results.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new IOException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        final ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (Set<String> identifiers : fanOut(new ShardCall<Set<String>>() {
+
+            @Override
+            public Set<String> call(Store shard) throws IOException {
+                return shard.list();
+            }
+
+        })) {
+            builder.addAll(identifiers);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public List<String> list(final String after, final int limit) throws IOException {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive");
+        final List<List<String>> pages = fanOut(new ShardCall<List<String>>() {
+
+            @Override
+            public List<String> call(Store shard) throws IOException {
+                return shard.list(after, limit);
+            }
+
+        });
+        final SortedSet<String> merged = new TreeSet<String>();
+        for (List<String> page : pages) {
+            merged.addAll(page);
+        }
+        return ImmutableList.copyOf(Iterables.limit(merged, limit));
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        shardOf(identifier).delete(identifier);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> identifiers) throws IOException {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        for (Map.Entry<Store, List<String>> entry : partition(identifiers).entrySet()) {
+            entry.getKey().deleteAll(entry.getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedStore [shards=" + shards + "]";
+    }
+
+    /**
+     * A call against a single shard.
+     *
+     * @param <T> the result type
+     */
+    private interface ShardCall<T> {
+
+        T call(Store shard) throws IOException;
+
+    }
+
+}
@@ -18,6 +18,11 @@ package de.cosmocode.palava.store;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -49,6 +54,48 @@ public interface Store {
      */
     void create(InputStream stream, String identifier) throws IOException;
     
+    /**
+     * Stores all given streams in this store using their associated identifiers.
+     * Implementations are free to perform this as a single batch, e.g. using one
+     * sync or one round-trip. If this method fails, some of the streams may have been
+     * stored already.
+     * 
+     * @since 2.2
+     * @param streams the binary data being stored, mapped by the identifiers being used
+     * @throws NullPointerException if streams is null or contains null keys or values
+     * @throws IllegalStateException if one of the identifiers is already present
+     * @throws IOException if saving failed
+     */
+    void createAll(Map<String, ? extends InputStream> streams) throws IOException;
+    
+    /**
+     * Checks whether the given identifier is present, without reading its binary data.
+     * 
+     * @since 2.2
+     * @param identifier the identifier being checked
+     * @return true if identifier is present, false otherwise
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if identifier is not valid, according to restrictions
+     *         introduced by sub classes
+     * @throws IOException if checking failed
+     */
+    boolean exists(String identifier) throws IOException;
+    
+    /**
+     * Retrieves the metadata of the binary data for a given identifier. Implementations
+     * are encouraged to answer from an index instead of reading the binary data.
+     * 
+     * @since 2.2
+     * @param identifier the identifier of the binary data
+     * @return the metadata of the binary data
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if identifier is not valid, according to restrictions
+     *         introduced by sub classes
+     * @throws IllegalStateException if the identifier is not present
+     * @throws IOException if reading failed
+     */
+    BlobStat stat(String identifier) throws IOException;
+    
     /**
      * Retrieves the binary data for a given identifier.
      * 
@@ -62,6 +109,55 @@ public interface Store {
      */
     InputStream read(String identifier) throws IOException;
     
+    /**
+     * Retrieves a range of the binary data for a given identifier. The range is truncated
+     * at the end of the binary data, ranges starting beyond it are empty. Implementations
+     * are encouraged to use positional reads instead of skipping.
+     * 
+     * @since 2.2
+     * @param identifier the identifier of the binary data being retrieved
+     * @param offset the position of the first byte being retrieved
+     * @param length the maximum number of bytes being retrieved
+     * @return the InputStream providing the specified range
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if offset or length is negative or identifier is not valid,
+     *         according to restrictions introduced by sub classes
+     * @throws IllegalStateException if the identifier is not present
+     * @throws IOException if reading failed
+     */
+    InputStream read(String identifier, long offset, long length) throws IOException;
+    
+    /**
+     * Transfers the binary data for a given identifier to the specified channel.
+     * Implementations are encouraged to avoid copying the data through user-space
+     * buffers, e.g. by using {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}.
+     * 
+     * @since 2.2
+     * @param identifier the identifier of the binary data being transferred
+     * @param target the channel the binary data will be written to, should be in blocking mode
+     * @return the number of bytes transferred
+     * @throws NullPointerException if identifier or target is null
+     * @throws IllegalArgumentException if identifier is not valid, according to restrictions
+     *         introduced by sub classes
+     * @throws IllegalStateException if the identifier is not present
+     * @throws IOException if reading or writing failed
+     */
+    long transferTo(String identifier, WritableByteChannel target) throws IOException;
+    
+    /**
+     * Retrieves the binary data for all given identifiers.
+     * 
+     * @since 2.2
+     * @param identifiers the identifiers of the binary data being retrieved
+     * @return a map of identifiers to their InputStreams, in the iteration order of identifiers
+     * @throws NullPointerException if identifiers is null or contains null
+     * @throws IllegalArgumentException if one of the identifiers is not valid, according to restrictions
+     *         introduced by sub classes
+     * @throws IllegalStateException if one of the identifiers is not present
+     * @throws IOException if reading failed
+     */
+    Map<String, InputStream> readAll(Collection<String> identifiers) throws IOException;
+    
     /**
      * Provides a set of all identifiers currently present in this store.
      * Implementations are free to return a copy or an immutable live view.
@@ -72,6 +168,40 @@ public interface Store {
      */
     Set<String> list() throws IOException; 
     
+    /**
+     * Provides a single page of identifiers currently present in this store.
+     * Identifiers are ordered by their natural ordering, which allows to
+     * use the last identifier of a page as the cursor for the next one.
+     * 
+     * @since 2.2
+     * @param after the cursor, only identifiers strictly greater than this one
+     *        are returned, null to start at the first identifier
+     * @param limit the maximum number of identifiers being returned
+     * @return an ordered list of at most limit identifiers, empty if no more identifiers are present
+     * @throws IllegalArgumentException if limit is not positive
+     * @throws IOException if reading failed
+     * @throws UnsupportedOperationException if listing is not supported
+     */
+    List<String> list(String after, int limit) throws IOException;
+    
+    /**
+     * Provides a lazy iterator over all identifiers greater than the given cursor,
+     * fetching pages of the specified size using {@link Store#list(String, int)}.
+     * Unlike {@link Store#list()} this never needs to hold all identifiers in memory.
+     * The returned iterator does not support removal.
+     * 
+     * @since 2.2
+     * @param after the cursor, null to start at the first identifier
+     * @param pageSize the number of identifiers being fetched at once
+     * @return an iterator over all identifiers after the cursor, in their natural ordering.
+     *         {@link Iterator#hasNext()} throws an {@link IllegalStateException} if fetching
+     *         a subsequent page failed
+     * @throws IllegalArgumentException if pageSize is not positive
+     * @throws IOException if reading the first page failed
+     * @throws UnsupportedOperationException if listing is not supported
+     */
+    Iterator<String> iterate(String after, int pageSize) throws IOException;
+    
     /**
      * Removes binary data from this store.
      * 
@@ -84,4 +214,20 @@ public interface Store {
      */
     void delete(String identifier) throws IOException;
     
+    /**
+     * Removes the binary data of all given identifiers from this store.
+     * Implementations are free to perform this as a single batch, e.g. using one
+     * sync or one round-trip. If this method fails, some of the identifiers may have been
+     * deleted already.
+     * 
+     * @since 2.2
+     * @param identifiers the identifiers of the data being deleted
+     * @throws NullPointerException if identifiers is null or contains null
+     * @throws IllegalArgumentException if one of the identifiers is not valid, according to restrictions
+     *         introduced by sub classes
+     * @throws IllegalStateException if one of the identifiers is not present
+     * @throws IOException if deletion failed
+     */
+    void deleteAll(Collection<String> identifiers) throws IOException;
+    
 }
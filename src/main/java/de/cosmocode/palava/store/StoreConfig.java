@@ -26,6 +26,18 @@ public final class StoreConfig {
     public static final String PREFIX = "store.";
     
     public static final String ID_GENERATOR = PREFIX + "idGenerator";
+
+    public static final String BACKEND = PREFIX + "backend";
+
+    public static final String SHARDS = PREFIX + "shards";
+
+    public static final String CODEC = PREFIX + "codec";
+
+    public static final String CACHE_SIZE = PREFIX + "cacheSize";
+
+    public static final String STATISTICS = PREFIX + "statistics";
+
+    public static final String ASYNC_THREADS = PREFIX + "async.threads";
     
     private StoreConfig() {
         
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+/**
+ * A sink for measurements taken by {@link InstrumentedStore}s.
+ * Implementations have to be thread-safe and should return quickly,
+ * because they are called inline on every store operation.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public interface StoreMetrics {
+
+    /**
+     * Records a single call.
+     *
+     * @param operation the called operation
+     * @param nanos the duration of the call in nanoseconds
+     * @param failed true if the call threw an exception, false otherwise
+     */
+    void recordCall(StoreOperation operation, long nanos, boolean failed);
+
+    /**
+     * Records binary data passing through an operation. Streams returned by
+     * {@link Store#read(String)} are recorded once they are closed.
+     *
+     * @param operation the operation
+     * @param bytes the number of bytes written to or read from the store
+     */
+    void recordBytes(StoreOperation operation, long bytes);
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.TypeConverter;
+
+/**
+ * Binds {@link Store}, {@link ByteStore}, {@link AsyncStore} and {@link AsyncByteStore}
+ * to a store stack declared entirely using {@link StoreConfig} keys, e.g.:
+ *
+ * <pre>
+ * store.backend = segment
+ * store.segment.directory = /var/lib/store
+ * store.shards = 4
+ * store.codec = deflate
+ * store.cacheSize = 268435456
+ * store.statistics = blobs
+ * store.async.threads = 16
+ * </pre>
+ *
+ * <p>
+ *   Only {@link StoreConfig#BACKEND} and the directory of the backend are required.
+ *   Supported codecs are {@code deflate} ({@link DeflateCodec}), {@code deflate:<level>}
+ *   or the fully qualified name of a {@link Codec} implementation providing a public
+ *   no-arg constructor. {@link IdGeneratorModule} has to be installed separately in order
+ *   to configure {@link StoreConfig#ID_GENERATOR}.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class StoreModule implements Module {
+
+    @Override
+    public void configure(Binder binder) {
+        binder.convertToTypes(Matchers.only(TypeLiteral.get(Codec.class)), new CodecConverter());
+        binder.bind(StoreStack.class);
+    }
+
+    @Provides
+    Store getStore(StoreStack stack) throws IOException {
+        return stack.getStore();
+    }
+
+    @Provides
+    ByteStore getByteStore(StoreStack stack) throws IOException {
+        return stack.getByteStore();
+    }
+
+    @Provides
+    AsyncStore getAsyncStore(StoreStack stack) throws IOException {
+        return stack.getAsyncStore();
+    }
+
+    @Provides
+    AsyncByteStore getAsyncByteStore(StoreStack stack) throws IOException {
+        return stack.getAsyncByteStore();
+    }
+
+    /**
+     * Converts config values into {@link Codec}s.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class CodecConverter implements TypeConverter {
+
+        private static final String DEFLATE = "deflate";
+
+        @Override
+        public Object convert(String value, TypeLiteral<?> toType) {
+            if (DEFLATE.equalsIgnoreCase(value)) {
+                return new DeflateCodec();
+            } else if (value.toLowerCase().startsWith(DEFLATE + ":")) {
+                return new DeflateCodec(Integer.parseInt(value.substring(DEFLATE.length() + 1)));
+            } else {
+                try {
+                    return Class.forName(value).asSubclass(Codec.class).newInstance();
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalArgumentException(e);
+                } catch (InstantiationException e) {
+                    throw new IllegalArgumentException(e);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "CodecConverter";
+        }
+
+    }
+
+}
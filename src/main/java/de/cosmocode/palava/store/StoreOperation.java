@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+/**
+ * The operations of a {@link Store} recorded by {@link StoreMetrics}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public enum StoreOperation {
+
+    /**
+     * {@link Store#create(java.io.InputStream)} and its variants.
+     */
+    CREATE,
+
+    /**
+     * {@link Store#exists(String)} and {@link Store#stat(String)}.
+     */
+    STAT,
+
+    /**
+     * {@link Store#read(String)} and {@link Store#readAll(java.util.Collection)}.
+     */
+    READ,
+
+    /**
+     * {@link ByteStore#view(String)}.
+     */
+    VIEW,
+
+    /**
+     * {@link Store#transferTo(String, java.nio.channels.WritableByteChannel)}.
+     */
+    TRANSFER,
+
+    /**
+     * {@link Store#list()} and its variants.
+     */
+    LIST,
+
+    /**
+     * {@link Store#delete(String)} and {@link Store#deleteAll(java.util.Collection)}.
+     */
+    DELETE;
+
+}
@@ -0,0 +1,285 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.JMException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Assembles the store stack configured using {@link StoreConfig} keys and owns
+ * all parts of it which have not been created by the injector.
+ *
+ * <p>
+ *   From the inside out, the stack consists of the backend ({@code segment}, {@code file} or
+ *   the fully qualified name of a {@link Store} implementation), a {@link ShardedStore} if more than
+ *   one shard is configured, a {@link CompressingStore} if a codec is configured, a
+ *   {@link CachingByteStore} if a cache size is configured and an {@link InstrumentedStore}
+ *   registered with the platform MBean server if a statistics name is configured.
+ *   Shards of the built-in backends live in numbered sub directories of the configured directory
+ *   and receive all other configuration of their backend, e.g. {@link SegmentStoreConfig#DURABLE}.
+ * </p>
+ *
+ * <p>
+ *   The stack is built on first access. Caching requires a {@link ByteStore} below it,
+ *   which sharded stacks only provide if a codec is configured.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+@Singleton
+final class StoreStack implements Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StoreStack.class);
+
+    private final Injector injector;
+
+    private final String backend;
+
+    private final List<Disposable> owned = Lists.newArrayList();
+
+    private int shards = 1;
+
+    private Codec codec;
+
+    private long cacheSize;
+
+    private String statistics;
+
+    private int asyncThreads = Runtime.getRuntime().availableProcessors();
+
+    private Store store;
+
+    private ExecutorService executor;
+
+    @Inject
+    StoreStack(Injector injector, @Named(StoreConfig.BACKEND) String backend) {
+        this.injector = Preconditions.checkNotNull(injector, "Injector");
+        this.backend = Preconditions.checkNotNull(backend, "Backend");
+    }
+
+    @Inject(optional = true)
+    void setShards(@Named(StoreConfig.SHARDS) int shards) {
+        Preconditions.checkArgument(shards > 0, "Shards must be positive");
+        this.shards = shards;
+    }
+
+    @Inject(optional = true)
+    void setCodec(@Named(StoreConfig.CODEC) Codec codec) {
+        this.codec = Preconditions.checkNotNull(codec, "Codec");
+    }
+
+    @Inject(optional = true)
+    void setCacheSize(@Named(StoreConfig.CACHE_SIZE) long cacheSize) {
+        Preconditions.checkArgument(cacheSize >= 0, "Cache size must not be negative");
+        this.cacheSize = cacheSize;
+    }
+
+    @Inject(optional = true)
+    void setStatistics(@Named(StoreConfig.STATISTICS) String statistics) {
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+    }
+
+    @Inject(optional = true)
+    void setAsyncThreads(@Named(StoreConfig.ASYNC_THREADS) int asyncThreads) {
+        Preconditions.checkArgument(asyncThreads > 0, "Async threads must be positive");
+        this.asyncThreads = asyncThreads;
+    }
+
+    /**
+     * Returns the configured stack, building it if necessary.
+     *
+     * @return the outermost store of the stack
+     * @throws IllegalStateException if the configuration is inconsistent
+     * @throws IllegalArgumentException if the backend is unknown
+     * @throws IOException if opening the backend failed
+     */
+    synchronized Store getStore() throws IOException {
+        if (store == null) {
+            store = build();
+            LOG.info("Assembled store stack {}", store);
+        }
+        return store;
+    }
+
+    /**
+     * Returns the configured stack as a {@link ByteStore}.
+     *
+     * @return the outermost store of the stack
+     * @throws IllegalStateException if the stack doesn't support views
+     * @throws IOException if opening the backend failed
+     */
+    ByteStore getByteStore() throws IOException {
+        final Store current = getStore();
+        Preconditions.checkState(current instanceof ByteStore, "%s is not a ByteStore", current);
+        return (ByteStore) current;
+    }
+
+    /**
+     * Returns an {@link AsyncStore} running operations of the stack on a thread pool
+     * of the configured size.
+     *
+     * @return an asynchronous view of the stack
+     * @throws IOException if opening the backend failed
+     */
+    AsyncStore getAsyncStore() throws IOException {
+        final Store current = getStore();
+        return current instanceof ByteStore ?
+            new ExecutorAsyncByteStore((ByteStore) current, getExecutor()) :
+            new ExecutorAsyncStore(current, getExecutor());
+    }
+
+    /**
+     * Returns an {@link AsyncByteStore} running operations of the stack on a thread pool
+     * of the configured size.
+     *
+     * @return an asynchronous view of the stack
+     * @throws IllegalStateException if the stack doesn't support views
+     * @throws IOException if opening the backend failed
+     */
+    AsyncByteStore getAsyncByteStore() throws IOException {
+        return new ExecutorAsyncByteStore(getByteStore(), getExecutor());
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(asyncThreads);
+        }
+        return executor;
+    }
+
+    private Store build() throws IOException {
+        Store current;
+        if (shards == 1) {
+            current = backend(-1);
+        } else {
+            final List<Store> list = Lists.newArrayListWithCapacity(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                list.add(backend(shard));
+            }
+            final ShardedStore sharded = new ShardedStore(list);
+            // generates the identifiers instead of the shards
+            injector.injectMembers(sharded);
+            current = sharded;
+        }
+        if (codec != null) {
+            current = new CompressingStore(current, codec);
+        }
+        if (cacheSize > 0) {
+            Preconditions.checkState(current instanceof ByteStore,
+                "Caching requires a ByteStore, but %s is none", current);
+            current = new CachingByteStore((ByteStore) current, cacheSize);
+        }
+        if (statistics != null) {
+            final StoreStatistics metrics = new StoreStatistics();
+            try {
+                metrics.register(ManagementFactory.getPlatformMBeanServer(), statistics);
+            } catch (JMException e) {
+                throw new IllegalStateException(e);
+            }
+            owned.add(new Disposable() {
+
+                @Override
+                public void dispose() throws LifecycleException {
+                    try {
+                        metrics.unregister(ManagementFactory.getPlatformMBeanServer(), statistics);
+                    } catch (JMException e) {
+                        throw new LifecycleException(e);
+                    }
+                }
+
+            });
+            current = current instanceof ByteStore ?
+                new InstrumentedByteStore((ByteStore) current, metrics) :
+                new InstrumentedStore(current, metrics);
+        }
+        return current;
+    }
+
+    /**
+     * Opens the given shard of the configured backend, -1 for the only one.
+     */
+    private Store backend(int shard) throws IOException {
+        final Store opened;
+        if ("segment".equalsIgnoreCase(backend)) {
+            opened = new SegmentStore(directory(SegmentStoreConfig.DIRECTORY, shard));
+        } else if ("file".equalsIgnoreCase(backend)) {
+            opened = new FileStore(directory(FileStoreConfig.DIRECTORY, shard));
+        } else {
+            Preconditions.checkState(shard == -1, "Custom backend %s can't be sharded", backend);
+            try {
+                // created and managed by the injector
+                return injector.getInstance(Class.forName(backend).asSubclass(Store.class));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        // applies the optional configuration of the backend
+        injector.injectMembers(opened);
+        owned.add((Disposable) opened);
+        return opened;
+    }
+
+    private File directory(String key, int shard) {
+        final File directory = injector.getInstance(Key.get(File.class, Names.named(key)));
+        return shard == -1 ? directory : new File(directory, Integer.toString(shard));
+    }
+
+    @Override
+    public synchronized void dispose() throws LifecycleException {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        for (Disposable disposable : Lists.reverse(owned)) {
+            try {
+                disposable.dispose();
+            } catch (LifecycleException e) {
+                LOG.warn("Unable to dispose " + disposable, e);
+            }
+        }
+        owned.clear();
+        store = null;
+    }
+
+    @Override
+    public String toString() {
+        return "StoreStack [backend=" + backend + ", shards=" + shards + ", codec=" + codec +
+            ", cacheSize=" + cacheSize + ", statistics=" + statistics + "]";
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The default {@link StoreMetrics} implementation which keeps
+ * {@link OperationStatistics} per {@link StoreOperation} and
+ * exposes them through JMX.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class StoreStatistics implements StoreMetrics {
+
+    public static final String DOMAIN = "de.cosmocode.palava.store";
+
+    private final Map<StoreOperation, OperationStatistics> statistics =
+        new EnumMap<StoreOperation, OperationStatistics>(StoreOperation.class);
+
+    public StoreStatistics() {
+        for (StoreOperation operation : StoreOperation.values()) {
+            statistics.put(operation, new OperationStatistics());
+        }
+    }
+
+    @Override
+    public void recordCall(StoreOperation operation, long nanos, boolean failed) {
+        get(operation).recordCall(nanos, failed);
+    }
+
+    @Override
+    public void recordBytes(StoreOperation operation, long bytes) {
+        get(operation).recordBytes(bytes);
+    }
+
+    /**
+     * Provides the statistics of the given operation.
+     *
+     * @param operation the operation
+     * @return the statistics of operation
+     * @throws NullPointerException if operation is null
+     */
+    public OperationStatistics get(StoreOperation operation) {
+        Preconditions.checkNotNull(operation, "Operation");
+        return statistics.get(operation);
+    }
+
+    /**
+     * Registers one MBean per operation, named
+     * {@code de.cosmocode.palava.store:type=Store,name=<name>,operation=<operation>}.
+     *
+     * @param server the server to register with
+     * @param name the name of the instrumented store
+     * @throws JMException if registration failed
+     */
+    public void register(MBeanServer server, String name) throws JMException {
+        Preconditions.checkNotNull(server, "Server");
+        Preconditions.checkNotNull(name, "Name");
+        for (Map.Entry<StoreOperation, OperationStatistics> entry : statistics.entrySet()) {
+            server.registerMBean(entry.getValue(), objectName(name, entry.getKey()));
+        }
+    }
+
+    /**
+     * Unregisters all MBeans previously registered using {@link #register(MBeanServer, String)}.
+     *
+     * @param server the server to unregister from
+     * @param name the name of the instrumented store
+     * @throws JMException if unregistration failed
+     */
+    public void unregister(MBeanServer server, String name) throws JMException {
+        Preconditions.checkNotNull(server, "Server");
+        Preconditions.checkNotNull(name, "Name");
+        for (StoreOperation operation : statistics.keySet()) {
+            final ObjectName objectName = objectName(name, operation);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        }
+    }
+
+    static ObjectName objectName(String name, StoreOperation operation) throws JMException {
+        return new ObjectName(String.format("%s:type=Store,name=%s,operation=%s",
+            DOMAIN, ObjectName.quote(name), operation.name().toLowerCase(Locale.ENGLISH)));
+    }
+
+    @Override
+    public String toString() {
+        return "StoreStatistics " + statistics;
+    }
+
+}
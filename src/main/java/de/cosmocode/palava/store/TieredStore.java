@@ -0,0 +1,498 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * A {@link ByteStore} which combines a fast, small hot tier with a slow, large cold tier.
+ *
+ * <p>
+ *   New blobs are written to the hot tier. {@link #demote()} moves blobs which have not been
+ *   accessed for the configured age to the cold tier, usually triggered periodically using
+ *   {@link #schedule(ScheduledExecutorService, long, TimeUnit)}. Accessing a cold blob
+ *   promotes it back into the hot tier, while the cold copy is kept, which makes demoting
+ *   it again cheap.
+ * </p>
+ *
+ * <p>
+ *   Blobs are copied before they are removed from their former tier and {@link #list()}
+ *   queries the hot tier before the cold tier, so listings always see every blob which is
+ *   neither being created nor deleted concurrently. {@link #delete(String)} removes blobs
+ *   from both tiers.
+ * </p>
+ *
+ * <p>
+ *   Access times are kept in memory. After a restart, all blobs of the hot tier
+ *   count as accessed at startup.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class TieredStore extends AbstractByteStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredStore.class);
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final ByteStore hot;
+
+    private final Store cold;
+
+    private final long maxAge;
+
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+    private final IdentifierLocks locks = new IdentifierLocks();
+
+    private IdGenerator generator = new UUIDGenerator();
+
+    /**
+     * Creates a new {@link TieredStore}.
+     *
+     * @param hot the hot tier
+     * @param cold the cold tier
+     * @param maxAge the time after the last access after which blobs are demoted
+     * @param unit the unit of maxAge
+     * @throws NullPointerException if hot, cold or unit is null
+     * @throws IllegalArgumentException if maxAge is negative
+     * @throws IOException if listing the hot tier failed
+     */
+    public TieredStore(ByteStore hot, Store cold, long maxAge, TimeUnit unit) throws IOException {
+        this.hot = Preconditions.checkNotNull(hot, "Hot");
+        this.cold = Preconditions.checkNotNull(cold, "Cold");
+        Preconditions.checkArgument(maxAge >= 0, "Max age must not be negative");
+        Preconditions.checkNotNull(unit, "Unit");
+        this.maxAge = unit.toMillis(maxAge);
+        final Iterator<String> iterator = hot.iterate(null, PAGE_SIZE);
+        while (iterator.hasNext()) {
+            // whether a cold copy exists is unknown after a restart
+            entries.put(iterator.next(), new Entry(false));
+        }
+        LOG.info("Loaded {} hot identifiers", entries.size());
+    }
+
+    @Inject(optional = true)
+    void setGenerator(@Named(StoreConfig.ID_GENERATOR) IdGenerator generator) {
+        this.generator = Preconditions.checkNotNull(generator, "Generator");
+    }
+
+    @Override
+    public String create(InputStream stream) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        final String identifier = generator.generate();
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            // generated identifiers are unique, no need to check the cold tier
+            hot.create(stream, identifier);
+            entries.put(identifier, new Entry(false));
+        } finally {
+            lock.unlock();
+        }
+        return identifier;
+    }
+
+    @Override
+    public void create(InputStream stream, String identifier) throws IOException {
+        Preconditions.checkNotNull(stream, "Stream");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            Preconditions.checkState(!entries.containsKey(identifier), "%s already present", identifier);
+            Preconditions.checkState(!cold.exists(identifier), "%s already present", identifier);
+            hot.create(stream, identifier);
+            entries.put(identifier, new Entry(false));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String create(ByteBuffer buffer) throws IOException {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        final String identifier = generator.generate();
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            hot.create(buffer, identifier);
+            entries.put(identifier, new Entry(false));
+        } finally {
+            lock.unlock();
+        }
+        return identifier;
+    }
+
+    @Override
+    public void create(ByteBuffer buffer, String identifier) throws IOException {
+        Preconditions.checkNotNull(buffer, "Buffer");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            Preconditions.checkState(!entries.containsKey(identifier), "%s already present", identifier);
+            Preconditions.checkState(!cold.exists(identifier), "%s already present", identifier);
+            hot.create(buffer, identifier);
+            entries.put(identifier, new Entry(false));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure the given identifier is present in the hot tier, promoting it if necessary.
+     * Has to be called while holding the lock of identifier.
+     */
+    private void promote(String identifier) throws IOException {
+        Entry entry = entries.get(identifier);
+        if (entry == null) {
+            final InputStream stream = cold.read(identifier);
+            try {
+                hot.create(stream, identifier);
+            } finally {
+                stream.close();
+            }
+            entry = new Entry(true);
+            entries.put(identifier, entry);
+            LOG.trace("Promoted {}", identifier);
+        }
+        entry.touch();
+    }
+
+    @Override
+    public boolean exists(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        return entries.containsKey(identifier) || cold.exists(identifier);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     *   Does not count as an access, cold blobs are not promoted. Promoted blobs report
+     *   the creation time of their cold copy.
+     * </p>
+     */
+    @Override
+    public BlobStat stat(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            final Entry entry = entries.get(identifier);
+            return entry == null || entry.cold ? cold.stat(identifier) : hot.stat(identifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer view(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Entry entry = entries.get(identifier);
+        if (entry != null) {
+            entry.touch();
+            try {
+                return hot.view(identifier);
+            } catch (IllegalStateException e) {
+                LOG.trace("{} has been demoted concurrently", identifier);
+            }
+        }
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            promote(identifier);
+            return hot.view(identifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer view(String identifier, long offset, int length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        final Entry entry = entries.get(identifier);
+        if (entry != null) {
+            entry.touch();
+            try {
+                return hot.view(identifier, offset, length);
+            } catch (IllegalStateException e) {
+                LOG.trace("{} has been demoted concurrently", identifier);
+            }
+        }
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            promote(identifier);
+            return hot.view(identifier, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        hot.release(buffer);
+    }
+
+    @Override
+    public InputStream read(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Entry entry = entries.get(identifier);
+        if (entry != null) {
+            entry.touch();
+            try {
+                return hot.read(identifier);
+            } catch (IllegalStateException e) {
+                LOG.trace("{} has been demoted concurrently", identifier);
+            }
+        }
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            promote(identifier);
+            return hot.read(identifier);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public InputStream read(String identifier, long offset, long length) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        checkRange(offset, length);
+        final Entry entry = entries.get(identifier);
+        if (entry != null) {
+            entry.touch();
+            try {
+                return hot.read(identifier, offset, length);
+            } catch (IllegalStateException e) {
+                LOG.trace("{} has been demoted concurrently", identifier);
+            }
+        }
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            promote(identifier);
+            return hot.read(identifier, offset, length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long transferTo(String identifier, WritableByteChannel target) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkNotNull(target, "Target");
+        final Entry entry = entries.get(identifier);
+        if (entry != null) {
+            entry.touch();
+            try {
+                return hot.transferTo(identifier, target);
+            } catch (IllegalStateException e) {
+                LOG.trace("{} has been demoted concurrently", identifier);
+            }
+        }
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            promote(identifier);
+            return hot.transferTo(identifier, target);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> list() throws IOException {
+        // hot before cold, blobs are copied to cold before they leave hot
+        final Set<String> identifiers = hot.list();
+        return ImmutableSet.<String>builder().addAll(identifiers).addAll(cold.list()).build();
+    }
+
+    @Override
+    public List<String> list(String after, int limit) throws IOException {
+        Preconditions.checkArgument(limit > 0, "Limit must be positive");
+        final SortedSet<String> merged = new TreeSet<String>(hot.list(after, limit));
+        merged.addAll(cold.list(after, limit));
+        return ImmutableList.copyOf(Iterables.limit(merged, limit));
+    }
+
+    @Override
+    public void delete(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final Lock lock = locks.get(identifier);
+        lock.lock();
+        try {
+            if (entries.containsKey(identifier)) {
+                hot.delete(identifier);
+                entries.remove(identifier);
+                try {
+                    cold.delete(identifier);
+                } catch (IllegalStateException e) {
+                    LOG.trace("{} has never been demoted", identifier);
+                }
+            } else {
+                cold.delete(identifier);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves all blobs which have not been accessed for the configured age to the cold tier.
+     * Failures are logged and skipped, so the affected blobs are retried on the next run.
+     *
+     * @return the number of demoted blobs
+     */
+    public int demote() {
+        return demote(System.currentTimeMillis() - maxAge);
+    }
+
+    int demote(long cutoff) {
+        int demoted = 0;
+        for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+            if (candidate.getValue().accessed >= cutoff) {
+                continue;
+            }
+            final String identifier = candidate.getKey();
+            final Lock lock = locks.get(identifier);
+            lock.lock();
+            try {
+                final Entry entry = entries.get(identifier);
+                if (entry == null || entry.accessed >= cutoff) {
+                    continue;
+                }
+                if (!entry.cold) {
+                    copyToCold(identifier);
+                }
+                hot.delete(identifier);
+                entries.remove(identifier);
+                demoted++;
+            } catch (IOException e) {
+                LOG.warn("Unable to demote " + identifier, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (demoted > 0) {
+            LOG.debug("Demoted {} blobs", demoted);
+        }
+        return demoted;
+    }
+
+    private void copyToCold(String identifier) throws IOException {
+        final InputStream stream = hot.read(identifier);
+        try {
+            cold.create(stream, identifier);
+        } catch (IllegalStateException e) {
+            // promoted before a restart, the cold copy is still there
+            LOG.trace("{} already present in cold tier", identifier);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Schedules {@link #demote()} to run periodically.
+     *
+     * @param executor the executor to schedule on
+     * @param period the period between two runs
+     * @param unit the unit of period
+     * @return the future of the scheduled task, used to cancel it
+     * @throws NullPointerException if executor or unit is null
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkNotNull(unit, "Unit");
+        return executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                demote();
+            }
+
+        }, period, period, unit);
+    }
+
+    /**
+     * Returns the number of blobs currently held by the hot tier.
+     *
+     * @return the number of hot blobs
+     */
+    public int getHotCount() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "TieredStore [hot=" + hot + ", cold=" + cold + ", maxAge=" + maxAge + "ms]";
+    }
+
+    /**
+     * Access information of a hot blob.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Entry {
+
+        // true if the cold tier is known to contain a copy
+        private final boolean cold;
+
+        private volatile long accessed = System.currentTimeMillis();
+
+        public Entry(boolean cold) {
+            this.cold = cold;
+        }
+
+        public void touch() {
+            accessed = System.currentTimeMillis();
+        }
+
+    }
+
+}
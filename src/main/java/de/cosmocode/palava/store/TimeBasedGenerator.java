@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Time ordered, lock-free implementation of the {@link IdGenerator} interface.
+ *
+ * <p>
+ *   Identifiers consist of 26 characters of Crockford's base 32 (ULID layout) encoding
+ *   a 48 bit millisecond timestamp, a 16 bit sequence and 64 pseudo random bits.
+ *   Identifiers generated by the same instance are strictly increasing, even
+ *   if generated within the same millisecond, and sort lexicographically by creation time.
+ *   The random bits are not suitable for cryptographic purposes.
+ * </p>
+ *
+ * <p>
+ *   Stores using this generator receive identifiers in creation order, which keeps
+ *   recently created blobs close together and allows range scans by age using
+ *   {@link Store#list(String, int)} and {@link Store#iterate(String, int)}:
+ *   {@code store.iterate(TimeBasedGenerator.cursor(t), pageSize)} iterates all identifiers
+ *   created at or after {@code t}, while iterating from {@code null} yields all identifiers
+ *   created before {@code t} until the first one greater than {@code cursor(t)}.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class TimeBasedGenerator implements IdGenerator {
+
+    private static final int SEQUENCE_BITS = 16;
+
+    private static final int LENGTH = 26;
+
+    /**
+     * The first 10 characters encode 50 bits, two leading zero bits and the 48 bit timestamp.
+     */
+    private static final int TIMESTAMP_LENGTH = 10;
+
+    private final AtomicLong last = new AtomicLong();
+
+    private final AtomicLong random = new AtomicLong(Identifiers.seed());
+
+    @Override
+    public String generate() {
+        long current;
+        long next;
+        do {
+            current = last.get();
+            final long candidate = System.currentTimeMillis() << SEQUENCE_BITS;
+            next = candidate > current ? candidate : current + 1;
+        } while (!last.compareAndSet(current, next));
+        return Identifiers.base32(next, Identifiers.mix(random.addAndGet(Identifiers.GAMMA)));
+    }
+
+    /**
+     * Provides a cursor which sorts directly before all identifiers generated
+     * at or after the given timestamp.
+     *
+     * @param timestamp the timestamp in milliseconds since the epoch
+     * @return a cursor suitable for {@link Store#list(String, int)} and {@link Store#iterate(String, int)}
+     * @throws IllegalArgumentException if timestamp is not positive
+     */
+    public static String cursor(long timestamp) {
+        Preconditions.checkArgument(timestamp > 0, "Timestamp must be positive");
+        return Identifiers.base32((timestamp << SEQUENCE_BITS) - 1, -1L);
+    }
+
+    /**
+     * Extracts the creation timestamp of an identifier generated by this class.
+     *
+     * @param identifier the identifier
+     * @return the timestamp in milliseconds since the epoch
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalArgumentException if identifier has not been generated by this class
+     */
+    public static long timestampOf(String identifier) {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkArgument(identifier.length() == LENGTH, "%s is not a valid identifier", identifier);
+        return Identifiers.decodeBase32(identifier, TIMESTAMP_LENGTH);
+    }
+
+}
@@ -28,7 +28,8 @@ public final class UUIDBaseGenerator implements IdGenerator {
 
     @Override
     public String generate() {
-        return UUID.randomUUID().toString().replace("-", "");
+        final UUID uuid = UUID.randomUUID();
+        return Identifiers.hex(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
     }
 
 }
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Chunked, resumable uploads on top of {@link Store#create(InputStream, String)}.
+ *
+ * <p>
+ *   An upload session is opened for an identifier, receives chunks at arbitrary offsets,
+ *   in any order and in parallel, and is committed once all chunks are present. Every chunk
+ *   is streamed into a file of its own in the session's directory, which becomes visible
+ *   once complete. Committing streams all chunks in order into the store under the
+ *   identifier and removes the session.
+ * </p>
+ *
+ * <p>
+ *   Sessions live on disk and survive restarts. {@link #sessions()} and {@link #chunks(String)}
+ *   tell clients which sessions exist and which chunks have been received, so interrupted
+ *   uploads only need to send the missing chunks. Abandoned sessions can be removed using
+ *   {@link #purge(long, TimeUnit)}.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class UploadSessions {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UploadSessions.class);
+
+    private static final Pattern SESSION = Pattern.compile("[0-9a-f\\-]+");
+
+    private static final String IDENTIFIER = "identifier";
+
+    private static final String CHUNK = ".chunk";
+
+    private static final String COMMITTING = ".committing";
+
+    private final Store store;
+
+    private final File directory;
+
+    /**
+     * Creates a new {@link UploadSessions} which keeps sessions in the given directory.
+     * Sessions which were being committed during a crash are reopened, unless
+     * their identifier is already present in the store, i.e. the crash happened
+     * after storing the upload, in which case they are removed.
+     *
+     * @param store the store uploads are committed to
+     * @param directory the directory sessions are kept in
+     * @throws NullPointerException if store or directory is null
+     * @throws IOException if the directory could not be created or recovering sessions failed
+     */
+    public UploadSessions(Store store, File directory) throws IOException {
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create directory %s", directory));
+        }
+        for (File file : directory.listFiles()) {
+            final String name = file.getName();
+            if (!name.endsWith(COMMITTING)) {
+                continue;
+            }
+            final File identifier = new File(file, IDENTIFIER);
+            if (!identifier.isFile() || store.exists(FileUtils.readFileToString(identifier, Charsets.UTF_8.name()))) {
+                LOG.info("Removing completed commit {}", file);
+                FileUtils.deleteDirectory(file);
+            } else {
+                final File reopened = new File(directory, name.substring(0, name.length() - COMMITTING.length()));
+                LOG.warn("Reopening interrupted commit of {}", reopened);
+                if (!file.renameTo(reopened)) {
+                    throw new IOException(String.format("Unable to rename %s to %s", file, reopened));
+                }
+            }
+        }
+    }
+
+    private File sessionDirectory(String session) {
+        Preconditions.checkNotNull(session, "Session");
+        Preconditions.checkArgument(SESSION.matcher(session).matches(), "%s is not a valid session", session);
+        final File file = new File(directory, session);
+        Preconditions.checkState(file.isDirectory(), "%s not present", session);
+        return file;
+    }
+
+    /**
+     * Opens a new upload session for the given identifier.
+     *
+     * @param identifier the identifier the upload will be stored under
+     * @return the new session
+     * @throws NullPointerException if identifier is null
+     * @throws IllegalStateException if the identifier is already present in the store
+     * @throws IOException if creating the session failed
+     */
+    public String open(String identifier) throws IOException {
+        Preconditions.checkNotNull(identifier, "Identifier");
+        Preconditions.checkState(!store.exists(identifier), "%s already present", identifier);
+        final String session = UUID.randomUUID().toString();
+        final File file = new File(directory, session);
+        if (!file.mkdir()) {
+            throw new IOException(String.format("Unable to create directory %s", file));
+        }
+        FileUtils.writeStringToFile(new File(file, IDENTIFIER), identifier, Charsets.UTF_8.name());
+        LOG.debug("Opened session {} for {}", session, identifier);
+        return session;
+    }
+
+    /**
+     * Returns all open sessions.
+     *
+     * @return the open sessions
+     */
+    public Set<String> sessions() {
+        final ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (String name : directory.list()) {
+            if (SESSION.matcher(name).matches()) {
+                builder.add(name);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the identifier the given session will be stored under.
+     *
+     * @param session the session
+     * @return the identifier of session
+     * @throws NullPointerException if session is null
+     * @throws IllegalArgumentException if session is not a valid session
+     * @throws IllegalStateException if session is not present
+     * @throws IOException if reading the session failed
+     */
+    public String identifierOf(String session) throws IOException {
+        return FileUtils.readFileToString(new File(sessionDirectory(session), IDENTIFIER), Charsets.UTF_8.name());
+    }
+
+    /**
+     * Writes a chunk of the upload starting at the given offset. The chunk only
+     * becomes part of the session once the stream has been consumed completely.
+     * Writing a chunk at the same offset again replaces it.
+     *
+     * @param session the session
+     * @param offset the offset of the chunk in the uploaded blob
+     * @param stream the binary data of the chunk
+     * @return the number of bytes written
+     * @throws NullPointerException if session or stream is null
+     * @throws IllegalArgumentException if session is not a valid session or offset is negative
+     * @throws IllegalStateException if session is not present
+     * @throws IOException if writing failed
+     */
+    public long write(String session, long offset, InputStream stream) throws IOException {
+        final File file = sessionDirectory(session);
+        Preconditions.checkArgument(offset >= 0, "Offset must not be negative");
+        Preconditions.checkNotNull(stream, "Stream");
+        final File temporary = File.createTempFile(".chunk", null, file);
+        boolean written = false;
+        try {
+            final OutputStream output = new FileOutputStream(temporary);
+            final long length;
+            try {
+                length = IOUtils.copyLarge(stream, output);
+            } finally {
+                output.close();
+            }
+            final File chunk = new File(file, String.format("%020d%s", offset, CHUNK));
+            if (!temporary.renameTo(chunk)) {
+                // the target might exist, or the session has been committed or aborted concurrently
+                if (!chunk.delete() || !temporary.renameTo(chunk)) {
+                    throw new IOException(String.format("Unable to rename %s to %s", temporary, chunk));
+                }
+            }
+            written = true;
+            LOG.trace("Received {} bytes at {} for {}", new Object[] {length, offset, session});
+            return length;
+        } finally {
+            if (!written && temporary.exists() && !temporary.delete()) {
+                LOG.warn("Unable to delete {}", temporary);
+            }
+        }
+    }
+
+    /**
+     * Returns the offsets and lengths of all chunks received so far.
+     *
+     * @param session the session
+     * @return a map of chunk offsets to chunk lengths
+     * @throws NullPointerException if session is null
+     * @throws IllegalArgumentException if session is not a valid session
+     * @throws IllegalStateException if session is not present
+     */
+    public SortedMap<Long, Long> chunks(String session) {
+        return chunks(sessionDirectory(session));
+    }
+
+    private SortedMap<Long, Long> chunks(File file) {
+        final SortedMap<Long, Long> chunks = Maps.newTreeMap();
+        for (File chunk : file.listFiles()) {
+            final String name = chunk.getName();
+            if (name.endsWith(CHUNK) && !name.startsWith(".")) {
+                chunks.put(Long.parseLong(name.substring(0, name.length() - CHUNK.length())), chunk.length());
+            }
+        }
+        return ImmutableSortedMap.copyOfSorted(chunks);
+    }
+
+    /**
+     * Returns the number of bytes received without gaps or overlaps from the start of
+     * the upload, i.e. the offset a sequential upload should be resumed at. Like
+     * {@link #commit(String)}, this only accepts chunks starting exactly where the
+     * previous one ended.
+     *
+     * @param session the session
+     * @return the length of the contiguous prefix received so far
+     * @throws NullPointerException if session is null
+     * @throws IllegalArgumentException if session is not a valid session
+     * @throws IllegalStateException if session is not present
+     */
+    public long received(String session) {
+        long end = 0;
+        for (Map.Entry<Long, Long> chunk : chunks(session).entrySet()) {
+            if (chunk.getKey() != end) {
+                break;
+            }
+            end += chunk.getValue();
+        }
+        return end;
+    }
+
+    /**
+     * Commits the given session by storing all chunks in order under its identifier
+     * and removes the session. Chunks being written concurrently are not part of the
+     * upload and fail.
+     *
+     * @param session the session
+     * @return the identifier the upload has been stored under
+     * @throws NullPointerException if session is null
+     * @throws IllegalArgumentException if session is not a valid session
+     * @throws IllegalStateException if session is not present, chunks are missing or overlap,
+     *         or the identifier is already present in the store; the session stays open
+     *         except in the first case
+     * @throws IOException if storing failed, the session stays open in this case
+     */
+    public String commit(String session) throws IOException {
+        final File file = sessionDirectory(session);
+        final String identifier = identifierOf(session);
+        final File committing = new File(directory, session + COMMITTING);
+        // makes concurrent commits fail and prevents new chunks from being added
+        Preconditions.checkState(file.renameTo(committing), "%s not present", session);
+        boolean committed = false;
+        try {
+            final SortedMap<Long, Long> chunks = chunks(committing);
+            long end = 0;
+            for (Map.Entry<Long, Long> chunk : chunks.entrySet()) {
+                Preconditions.checkState(chunk.getKey() <= end, "%s is missing bytes at %s", session, end);
+                Preconditions.checkState(chunk.getKey() == end, "Chunks of %s overlap at %s", session, chunk.getKey());
+                end += chunk.getValue();
+            }
+            final InputStream stream = new SequenceInputStream(new ChunkStreams(committing, chunks.keySet()));
+            try {
+                store.create(stream, identifier);
+            } finally {
+                stream.close();
+            }
+            committed = true;
+            LOG.debug("Committed {} bytes of session {} to {}", new Object[] {end, session, identifier});
+        } finally {
+            if (!committed && !committing.renameTo(file)) {
+                LOG.warn("Unable to reopen {}", session);
+            }
+        }
+        try {
+            FileUtils.deleteDirectory(committing);
+        } catch (IOException e) {
+            // the upload has been stored, the remains are removed on the next start
+            LOG.warn("Unable to remove committed session " + session, e);
+        }
+        return identifier;
+    }
+
+    /**
+     * Aborts the given session and removes all chunks received so far.
+     *
+     * @param session the session
+     * @throws NullPointerException if session is null
+     * @throws IllegalArgumentException if session is not a valid session
+     * @throws IllegalStateException if session is not present
+     * @throws IOException if deleting failed
+     */
+    public void abort(String session) throws IOException {
+        FileUtils.deleteDirectory(sessionDirectory(session));
+        LOG.debug("Aborted session {}", session);
+    }
+
+    /**
+     * Aborts all sessions which have not received a chunk for the given age.
+     *
+     * @param age the age after which sessions are considered abandoned
+     * @param unit the unit of age
+     * @return the number of aborted sessions
+     * @throws NullPointerException if unit is null
+     */
+    public int purge(long age, TimeUnit unit) {
+        final long cutoff = System.currentTimeMillis() - unit.toMillis(age);
+        int purged = 0;
+        for (String session : sessions()) {
+            final File file = new File(directory, session);
+            long modified = file.lastModified();
+            final File[] files = file.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File chunk : files) {
+                modified = Math.max(modified, chunk.lastModified());
+            }
+            if (modified >= cutoff) {
+                continue;
+            }
+            try {
+                FileUtils.deleteDirectory(file);
+                purged++;
+            } catch (IOException e) {
+                LOG.warn("Unable to purge " + session, e);
+            }
+        }
+        return purged;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadSessions [store=" + store + ", directory=" + directory + "]";
+    }
+
+    /**
+     * Opens the chunks of a session one after another.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class ChunkStreams implements Enumeration<InputStream> {
+
+        private final File directory;
+
+        private final Iterator<Long> offsets;
+
+        public ChunkStreams(File directory, Set<Long> offsets) {
+            this.directory = directory;
+            this.offsets = offsets.iterator();
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+            return offsets.hasNext();
+        }
+
+        @Override
+        public InputStream nextElement() {
+            if (!offsets.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final File chunk = new File(directory, String.format("%020d%s", offsets.next(), CHUNK));
+            try {
+                return new FileInputStream(chunk);
+            } catch (FileNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
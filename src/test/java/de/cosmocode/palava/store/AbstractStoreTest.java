@@ -20,14 +20,31 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.IOUtils;
 import org.easymock.EasyMock;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
 import com.google.inject.internal.Sets;
 
 import de.cosmocode.junit.UnitProvider;
@@ -59,6 +76,23 @@ public abstract class AbstractStoreTest implements UnitProvider<Store> {
         return true;
     }
     
+    /**
+     * Hook to adjust the workloads run by {@link #mixedWorkload()} and {@link #mixedWorkloadTiny()},
+     * e.g. to scale them up for soak tests or down for slow implementations.
+     * 
+     * @since 2.2
+     * @param workload the workload to configure
+     */
+    protected void configure(StoreWorkload workload) {
+        
+    }
+    
+    private StoreWorkload workload(Store unit) {
+        final StoreWorkload workload = new StoreWorkload(unit);
+        workload.setList(supportsList());
+        return workload;
+    }
+    
     /**
      * Tests {@link Store#create(InputStream)} with a null stream.
      * 
@@ -88,6 +122,30 @@ public abstract class AbstractStoreTest implements UnitProvider<Store> {
         EasyMock.verify(generator);
     }
     
+    /**
+     * Tests {@link Store#create(InputStream)} with a {@link TimeBasedGenerator},
+     * whose identifiers have to be listed in creation order and allow range scans by age.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createTimeBasedGenerator() throws IOException {
+        final Store unit = unitWithGenerator(new TimeBasedGenerator());
+        final byte[] emptyByteArray = {};
+        final String first = unit.create(new ByteArrayInputStream(emptyByteArray));
+        final String second = unit.create(new ByteArrayInputStream(emptyByteArray));
+        final String third = unit.create(new ByteArrayInputStream(emptyByteArray));
+        if (supportsList()) {
+            Assert.assertEquals(ImmutableList.of(first, second, third), unit.list(null, 10));
+            final long timestamp = TimeBasedGenerator.timestampOf(second);
+            final List<String> createdSince = unit.list(TimeBasedGenerator.cursor(timestamp), 10);
+            for (String identifier : ImmutableList.of(first, second, third)) {
+                final boolean expected = TimeBasedGenerator.timestampOf(identifier) >= timestamp;
+                Assert.assertEquals(expected, createdSince.contains(identifier));
+            }
+        }
+    }
+    
     /**
      * Tests {@link Store#create(InputStream)}.
      * 
@@ -186,6 +244,61 @@ public abstract class AbstractStoreTest implements UnitProvider<Store> {
         ));
     }
 
+    /**
+     * Tests {@link Store#createAll(Map)} with a null map.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void createAllNull() throws IOException {
+        unit().createAll(null);
+    }
+    
+    /**
+     * Tests {@link Store#createAll(Map)} and {@link Store#readAll(java.util.Collection)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createAllReadAll() throws IOException {
+        final Store unit = unit();
+        final String first = UUID.randomUUID().toString();
+        final String second = UUID.randomUUID().toString();
+        unit.createAll(ImmutableMap.of(
+            first, new ByteArrayInputStream("first".getBytes(UTF_8)),
+            second, new ByteArrayInputStream("second".getBytes(UTF_8))
+        ));
+        final Map<String, InputStream> streams = unit.readAll(Arrays.asList(first, second));
+        Assert.assertEquals(2, streams.size());
+        Assert.assertEquals("first", IOUtils.toString(streams.get(first), UTF_8));
+        Assert.assertEquals("second", IOUtils.toString(streams.get(second), UTF_8));
+    }
+    
+    /**
+     * Tests {@link Store#createAll(Map)} with an identifier which is already present.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalStateException.class)
+    public void createAllDuplicate() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.createAll(Collections.singletonMap(identifier, new ByteArrayInputStream("data".getBytes(UTF_8))));
+    }
+    
+    /**
+     * Tests {@link Store#readAll(java.util.Collection)} with an identifier which
+     * does not point to an existing entry.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void readAllMissing() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.readAll(Arrays.asList(identifier, UUID.randomUUID().toString()));
+    }
+    
     /**
      * Tests {@link Store#read(String)} with a null identifier.
      * 
@@ -223,6 +336,185 @@ public abstract class AbstractStoreTest implements UnitProvider<Store> {
         unit().read(UUID.randomUUID().toString());
     }
     
+    /**
+     * Tests {@link Store#exists(String)} with a null identifier.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void existsNull() throws IOException {
+        unit().exists(null);
+    }
+    
+    /**
+     * Tests {@link Store#exists(String)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void exists() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        Assert.assertTrue(unit.exists(identifier));
+        Assert.assertFalse(unit.exists(UUID.randomUUID().toString()));
+        unit.delete(identifier);
+        Assert.assertFalse(unit.exists(identifier));
+    }
+    
+    /**
+     * Tests {@link Store#stat(String)} with a null identifier.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void statNull() throws IOException {
+        unit().stat(null);
+    }
+    
+    /**
+     * Tests {@link Store#stat(String)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void stat() throws IOException {
+        final Store unit = unit();
+        final long before = System.currentTimeMillis() - 1000;
+        final String identifier = unit.create(new ByteArrayInputStream("0123456789".getBytes(UTF_8)));
+        final BlobStat stat = unit.stat(identifier);
+        Assert.assertEquals(identifier, stat.getIdentifier());
+        Assert.assertEquals(10, stat.getSize());
+        Assert.assertTrue(stat.getCreated() == BlobStat.UNKNOWN || stat.getCreated() >= before);
+    }
+    
+    /**
+     * Tests {@link Store#stat(String)} using an identifier which does not
+     * point to an existing entry.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void statMissing() throws IOException {
+        unit().stat(UUID.randomUUID().toString());
+    }
+    
+    /**
+     * Tests {@link Store#read(String, long, long)} with a null identifier.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void readRangeNull() throws IOException {
+        unit().read(null, 0, 1);
+    }
+    
+    /**
+     * Tests {@link Store#read(String, long, long)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readRange() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("0123456789".getBytes(UTF_8)));
+        Assert.assertEquals("345", IOUtils.toString(unit.read(identifier, 3, 3), UTF_8));
+        Assert.assertEquals("0123456789", IOUtils.toString(unit.read(identifier, 0, 10), UTF_8));
+        Assert.assertEquals("", IOUtils.toString(unit.read(identifier, 4, 0), UTF_8));
+    }
+    
+    /**
+     * Tests {@link Store#read(String, long, long)} with ranges exceeding the binary data.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readRangeTruncated() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("0123456789".getBytes(UTF_8)));
+        Assert.assertEquals("789", IOUtils.toString(unit.read(identifier, 7, Long.MAX_VALUE), UTF_8));
+        Assert.assertEquals("", IOUtils.toString(unit.read(identifier, 10, 5), UTF_8));
+        Assert.assertEquals("", IOUtils.toString(unit.read(identifier, 100, 5), UTF_8));
+    }
+    
+    /**
+     * Tests {@link Store#read(String, long, long)} with a negative offset.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void readRangeNegative() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.read(identifier, -1, 1);
+    }
+    
+    /**
+     * Tests {@link Store#read(String, long, long)} using an identifier which does not
+     * point to an existing entry.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void readRangeMissing() throws IOException {
+        unit().read(UUID.randomUUID().toString(), 0, 1);
+    }
+    
+    /**
+     * Tests {@link Store#transferTo(String, java.nio.channels.WritableByteChannel)}
+     * with a null identifier.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void transferToNull() throws IOException {
+        unit().transferTo(null, Channels.newChannel(new ByteArrayOutputStream()));
+    }
+    
+    /**
+     * Tests {@link Store#transferTo(String, java.nio.channels.WritableByteChannel)}
+     * with a null target.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void transferToTargetNull() throws IOException {
+        final Store unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.transferTo(identifier, null);
+    }
+    
+    /**
+     * Tests {@link Store#transferTo(String, java.nio.channels.WritableByteChannel)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void transferTo() throws IOException {
+        final Store unit = unit();
+        final InputStream stream = getClass().getClassLoader().getResourceAsStream("willi.png");
+        Assert.assertNotNull(stream);
+        final String identifier = unit.create(stream);
+        stream.close();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long transferred = unit.transferTo(identifier, Channels.newChannel(out));
+        Assert.assertEquals(out.size(), transferred);
+        Assert.assertTrue(IOUtils.contentEquals(
+            getClass().getClassLoader().getResourceAsStream("willi.png"), 
+            new ByteArrayInputStream(out.toByteArray())
+        ));
+    }
+    
+    /**
+     * Tests {@link Store#transferTo(String, java.nio.channels.WritableByteChannel)}
+     * using an identifier which does not point to an existing entry.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void transferToMissing() throws IOException {
+        unit().transferTo(UUID.randomUUID().toString(), Channels.newChannel(new ByteArrayOutputStream()));
+    }
+    
     /**
      * Tests {@link Store#list()} without adding anything.
      * 
@@ -253,6 +545,83 @@ public abstract class AbstractStoreTest implements UnitProvider<Store> {
         }
     }
     
+    /**
+     * Tests {@link Store#list(String, int)} without adding anything.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void listPageEmpty() throws IOException {
+        if (supportsList()) {
+            Assert.assertTrue(unit().list(null, 10).isEmpty());
+        }
+    }
+    
+    /**
+     * Tests {@link Store#list(String, int)} using the last identifier of a page
+     * as the cursor for the next one.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void listPage() throws IOException {
+        if (supportsList()) {
+            final Store unit = unit();
+            final List<String> identifiers = Lists.newArrayList();
+            final byte[] emptyByteArray = {};
+            for (int i = 0; i < 5; i++) {
+                identifiers.add(unit.create(new ByteArrayInputStream(emptyByteArray)));
+            }
+            final List<String> sorted = Ordering.natural().sortedCopy(identifiers);
+            final List<String> first = unit.list(null, 2);
+            Assert.assertEquals(sorted.subList(0, 2), first);
+            final List<String> second = unit.list(first.get(1), 2);
+            Assert.assertEquals(sorted.subList(2, 4), second);
+            final List<String> third = unit.list(second.get(1), 2);
+            Assert.assertEquals(sorted.subList(4, 5), third);
+            Assert.assertTrue(unit.list(third.get(0), 2).isEmpty());
+        }
+    }
+    
+    /**
+     * Tests {@link Store#list(String, int)} with a non positive limit.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void listPageIllegalLimit() throws IOException {
+        if (supportsList()) {
+            try {
+                unit().list(null, 0);
+                Assert.fail("Expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    
+    /**
+     * Tests {@link Store#iterate(String, int)} over multiple pages.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void iterate() throws IOException {
+        if (supportsList()) {
+            final Store unit = unit();
+            final List<String> identifiers = Lists.newArrayList();
+            final byte[] emptyByteArray = {};
+            for (int i = 0; i < 7; i++) {
+                identifiers.add(unit.create(new ByteArrayInputStream(emptyByteArray)));
+            }
+            final List<String> sorted = Ordering.natural().sortedCopy(identifiers);
+            Assert.assertEquals(sorted, ImmutableList.copyOf(unit.iterate(null, 3)));
+            Assert.assertEquals(sorted.subList(3, 7), ImmutableList.copyOf(unit.iterate(sorted.get(2), 2)));
+            final Iterator<String> empty = unit.iterate(sorted.get(6), 3);
+            Assert.assertFalse(empty.hasNext());
+        }
+    }
+    
     /**
      * Tests {@link Store#delete(String)} with a null identifier.
      * 
@@ -287,4 +656,161 @@ public abstract class AbstractStoreTest implements UnitProvider<Store> {
         unit().delete(UUID.randomUUID().toString());
     }
     
+    /**
+     * Tests {@link Store#deleteAll(java.util.Collection)} with a null collection.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test(expected = NullPointerException.class)
+    public void deleteAllNull() throws IOException {
+        unit().deleteAll(null);
+    }
+    
+    /**
+     * Tests {@link Store#deleteAll(java.util.Collection)}.
+     * 
+     * @throws IOException should not happen
+     */
+    @Test
+    public void deleteAll() throws IOException {
+        final Store unit = unit();
+        final String first = unit.create(new ByteArrayInputStream("first".getBytes(UTF_8)));
+        final String second = unit.create(new ByteArrayInputStream("second".getBytes(UTF_8)));
+        final String third = unit.create(new ByteArrayInputStream("third".getBytes(UTF_8)));
+        unit.deleteAll(Arrays.asList(first, second));
+        if (supportsList()) {
+            Assert.assertEquals(ImmutableSet.of(third), unit.list());
+        }
+        Assert.assertEquals("third", IOUtils.toString(unit.read(third), UTF_8));
+    }
+    
+    /**
+     * Tests {@link Store#deleteAll(java.util.Collection)} using an identifier which does
+     * not point to an existing entry.
+     * 
+     * @throws IOException expected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void deleteAllMissing() throws IOException {
+        unit().deleteAll(Collections.singleton(UUID.randomUUID().toString()));
+    }
+    
+    /**
+     * Tests {@link Store#create(InputStream, String)} using the same identifier
+     * from multiple threads at once. Exactly one of them has to succeed.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void createConcurrentDuplicate() throws Exception {
+        final Store unit = unit();
+        final String identifier = UUID.randomUUID().toString();
+        final int threads = 8;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ExecutorService service = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                final String data = "data" + i;
+                futures.add(service.submit(new Callable<Void>() {
+                    
+                    @Override
+                    public Void call() throws Exception {
+                        latch.await();
+                        unit.create(new ByteArrayInputStream(data.getBytes(UTF_8)), identifier);
+                        return null;
+                    }
+                    
+                }));
+            }
+            latch.countDown();
+            int created = 0;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                    created++;
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            Assert.assertEquals(1, created);
+            Assert.assertTrue(IOUtils.toString(unit.read(identifier), UTF_8).startsWith("data"));
+        } finally {
+            service.shutdownNow();
+        }
+    }
+    
+    /**
+     * Tests {@link Store#create(InputStream)}, {@link Store#read(String)} and
+     * {@link Store#delete(String)} on distinct identifiers from multiple threads at once.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void createReadDeleteConcurrent() throws Exception {
+        final Store unit = unit();
+        final int threads = 8;
+        final int iterations = 50;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ExecutorService service = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                futures.add(service.submit(new Callable<Void>() {
+                    
+                    @Override
+                    public Void call() throws Exception {
+                        latch.await();
+                        for (int j = 0; j < iterations; j++) {
+                            final String data = thread + "-" + j;
+                            final String identifier = unit.create(new ByteArrayInputStream(data.getBytes(UTF_8)));
+                            Assert.assertEquals(data, IOUtils.toString(unit.read(identifier), UTF_8));
+                            unit.delete(identifier);
+                        }
+                        return null;
+                    }
+                    
+                }));
+            }
+            latch.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            if (supportsList()) {
+                Assert.assertTrue(unit.list().isEmpty());
+            }
+        } finally {
+            service.shutdownNow();
+        }
+    }
+    
+    /**
+     * Runs a mixed {@link StoreWorkload} of tiny and large payloads from multiple threads.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void mixedWorkload() throws Exception {
+        final StoreWorkload workload = workload(unit());
+        configure(workload);
+        workload.run();
+    }
+    
+    /**
+     * Runs a mixed {@link StoreWorkload} of tiny payloads only from many threads,
+     * which maximizes contention on shared structures.
+     * 
+     * @throws Exception should not happen
+     */
+    @Test
+    public void mixedWorkloadTiny() throws Exception {
+        final StoreWorkload workload = workload(unit());
+        workload.setThreads(16);
+        workload.setOperations(500);
+        workload.setLargeRatio(0);
+        configure(workload);
+        workload.run();
+    }
+    
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link BufferPool}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class BufferPoolTest {
+
+    /**
+     * Tests that acquired buffers are direct, cleared and limited to the requested size.
+     */
+    @Test
+    public void acquire() {
+        final ByteBuffer buffer = new BufferPool().acquire(5000);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(0, buffer.position());
+        Assert.assertEquals(5000, buffer.limit());
+        Assert.assertEquals(8192, buffer.capacity());
+    }
+
+    /**
+     * Tests {@link BufferPool#acquire(int)} with a negative size.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void acquireNegative() {
+        new BufferPool().acquire(-1);
+    }
+
+    /**
+     * Tests that released buffers are reused.
+     */
+    @Test
+    public void reuse() {
+        final BufferPool pool = new BufferPool();
+        final ByteBuffer buffer = pool.acquire(100);
+        buffer.put((byte) 1);
+        Assert.assertTrue(pool.release(buffer));
+        Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getRetained());
+        final ByteBuffer reused = pool.acquire(200);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(200, reused.limit());
+        Assert.assertEquals(0, pool.getRetained());
+    }
+
+    /**
+     * Tests that foreign buffers and duplicate releases are ignored.
+     */
+    @Test
+    public void releaseForeign() {
+        final BufferPool pool = new BufferPool();
+        Assert.assertFalse(pool.release(ByteBuffer.allocateDirect(BufferPool.MIN_BUFFER_SIZE)));
+        final ByteBuffer buffer = pool.acquire(100);
+        Assert.assertFalse(pool.release(buffer.duplicate()));
+        Assert.assertTrue(pool.release(buffer));
+        Assert.assertFalse(pool.release(buffer));
+        Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getRetained());
+    }
+
+    /**
+     * Tests that buffers beyond the retained limit and oversized buffers are not kept.
+     */
+    @Test
+    public void limits() {
+        final BufferPool pool = new BufferPool(BufferPool.MIN_BUFFER_SIZE, BufferPool.MIN_BUFFER_SIZE);
+        final ByteBuffer first = pool.acquire(10);
+        final ByteBuffer second = pool.acquire(10);
+        final ByteBuffer large = pool.acquire(BufferPool.MIN_BUFFER_SIZE + 1);
+        Assert.assertTrue(pool.release(first));
+        Assert.assertTrue(pool.release(second));
+        Assert.assertFalse(pool.release(large));
+        Assert.assertEquals(BufferPool.MIN_BUFFER_SIZE, pool.getRetained());
+    }
+
+}
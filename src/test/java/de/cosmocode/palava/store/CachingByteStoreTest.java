@@ -0,0 +1,246 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link CachingByteStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class CachingByteStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    @Override
+    public CachingByteStore unit() {
+        return new CachingByteStore(stores.open(), 1024 * 1024);
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final SegmentStore store = stores.open();
+        store.setGenerator(generator);
+        return new CachingByteStore(store, 1024 * 1024);
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    /**
+     * Tests that a second {@link CachingByteStore#view(String)} is served from the cache.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void viewCached() throws IOException {
+        final CachingByteStore unit = new CachingByteStore(stores.open(), 1024, true);
+        final String identifier = unit.create(ByteBuffer.wrap("data".getBytes(UTF_8)));
+        Assert.assertEquals(ByteBuffer.wrap("data".getBytes(UTF_8)), unit.view(identifier));
+        Assert.assertEquals(ByteBuffer.wrap("data".getBytes(UTF_8)), unit.view(identifier));
+        Assert.assertEquals(1, unit.getMissCount());
+        Assert.assertEquals(1, unit.getHitCount());
+        Assert.assertEquals(4, unit.getWeight());
+    }
+
+    /**
+     * Tests that {@link CachingByteStore#delete(String)} invalidates the cached entry.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalStateException.class)
+    public void deleteInvalidates() throws IOException {
+        final CachingByteStore unit = unit();
+        final String identifier = unit.create(ByteBuffer.wrap("data".getBytes(UTF_8)));
+        unit.view(identifier);
+        unit.delete(identifier);
+        Assert.assertEquals(0, unit.getWeight());
+        unit.view(identifier);
+    }
+
+    /**
+     * Tests that the least recently used entries are evicted once the capacity is exceeded.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void evict() throws IOException {
+        final CachingByteStore unit = new CachingByteStore(stores.open(), 10);
+        final String first = unit.create(new ByteArrayInputStream("first".getBytes(UTF_8)));
+        final String second = unit.create(new ByteArrayInputStream("second".getBytes(UTF_8)));
+        final String large = unit.create(new ByteArrayInputStream("larger than ten".getBytes(UTF_8)));
+        unit.view(first);
+        unit.view(second);
+        Assert.assertEquals(6, unit.getWeight());
+        unit.view(large);
+        Assert.assertEquals(6, unit.getWeight());
+        unit.view(second);
+        Assert.assertEquals(1, unit.getHitCount());
+        unit.view(first);
+        Assert.assertEquals(5, unit.getWeight());
+    }
+
+    /**
+     * Tests that concurrent misses for the same identifier result in a single
+     * call to the backing store.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void coalesceMisses() throws Exception {
+        final SegmentStore store = stores.open();
+        final String identifier = store.create(ByteBuffer.wrap("data".getBytes(UTF_8)));
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger views = new AtomicInteger();
+        final CachingByteStore unit = new CachingByteStore(new ForwardingByteStore() {
+
+            @Override
+            protected ByteStore delegate() {
+                return store;
+            }
+
+            @Override
+            public ByteBuffer view(String id) throws IOException {
+                views.incrementAndGet();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.view(id);
+            }
+
+        }, 1024);
+
+        final List<Thread> threads = Lists.newArrayList();
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            final Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        if (!ByteBuffer.wrap("data".getBytes(UTF_8)).equals(unit.view(identifier))) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(100);
+        latch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(1, views.get());
+    }
+
+    /**
+     * Tests that {@link CachingByteStore#view(String, long, int)} slices cached entries
+     * and does not load missing ones.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void viewRange() throws IOException {
+        final CachingByteStore unit = unit();
+        final String identifier = unit.create(ByteBuffer.wrap("0123456789".getBytes(UTF_8)));
+        Assert.assertEquals(ByteBuffer.wrap("345".getBytes(UTF_8)), unit.view(identifier, 3, 3));
+        Assert.assertEquals(0, unit.getWeight());
+        unit.view(identifier);
+        Assert.assertEquals(ByteBuffer.wrap("89".getBytes(UTF_8)), unit.view(identifier, 8, 5));
+        Assert.assertEquals(1, unit.getHitCount());
+        Assert.assertEquals(2, unit.getMissCount());
+    }
+
+    /**
+     * Tests that views of blobs which are too large to be cached return to the
+     * backing store, when released directly and when read as a stream.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void releaseUncached() throws IOException {
+        final BufferPool pool = new BufferPool();
+        final SegmentStore segments = stores.open();
+        final ByteStore pooled = new ForwardingByteStore() {
+
+            @Override
+            protected ByteStore delegate() {
+                return segments;
+            }
+
+            @Override
+            public ByteBuffer view(String identifier) throws IOException {
+                final ByteBuffer source = super.view(identifier);
+                final ByteBuffer buffer = pool.acquire(source.remaining());
+                buffer.put(source).flip();
+                return buffer;
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+
+        };
+        final CachingByteStore unit = new CachingByteStore(pooled, 16);
+        final String identifier = unit.create(ByteBuffer.wrap(new byte[1024]));
+        final ByteBuffer view = unit.view(identifier);
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(1024, view.remaining());
+        unit.release(view);
+        final long retained = pool.getRetained();
+        Assert.assertTrue(retained > 0);
+        final InputStream stream = unit.read(identifier);
+        Assert.assertEquals(1024, IOUtils.toByteArray(stream).length);
+        Assert.assertEquals(0, pool.getRetained());
+        stream.close();
+        Assert.assertEquals(retained, pool.getRetained());
+    }
+
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link CompressingStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class CompressingStoreTest extends AbstractStoreTest {
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    @Override
+    public CompressingStore unit() {
+        return new CompressingStore(stores.open(), new DeflateCodec());
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final SegmentStore store = stores.open();
+        store.setGenerator(generator);
+        return new CompressingStore(store, new DeflateCodec());
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    /**
+     * Tests that compressible data is stored encoded.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void compressible() throws IOException {
+        final SegmentStore store = stores.open();
+        final CompressingStore unit = new CompressingStore(store, new DeflateCodec(1));
+        final byte[] data = new byte[256 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        final String identifier = unit.create(new ByteArrayInputStream(data));
+        Assert.assertEquals(CompressingStore.ENCODED, store.view(identifier).get(0));
+        Assert.assertTrue(store.view(identifier).remaining() < data.length / 10);
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(unit.read(identifier)));
+        Assert.assertEquals(ByteBuffer.wrap(data), unit.view(identifier));
+    }
+
+    /**
+     * Tests that incompressible data is stored raw.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void incompressible() throws IOException {
+        final SegmentStore store = stores.open();
+        final CompressingStore unit = new CompressingStore(store, new DeflateCodec());
+        final byte[] data = new byte[256 * 1024];
+        new Random(0).nextBytes(data);
+        final String identifier = unit.create(new ByteArrayInputStream(data));
+        Assert.assertEquals(CompressingStore.RAW, store.view(identifier).get(0));
+        Assert.assertEquals(data.length + 1, store.view(identifier).remaining());
+        final InputStream stream = unit.read(identifier);
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(stream));
+    }
+
+    /**
+     * Tests that {@link CompressingStore#stat(String)} reports the uncompressed size
+     * of raw and encoded blobs without decoding them.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void statWithoutDecoding() throws IOException {
+        final Codec codec = new DeflateCodec();
+        final CompressingStore unit = new CompressingStore(stores.open(), new Codec() {
+
+            @Override
+            public InputStream encode(InputStream stream) throws IOException {
+                return codec.encode(stream);
+            }
+
+            @Override
+            public InputStream decode(InputStream stream) throws IOException {
+                throw new AssertionError("Unexpected decode");
+            }
+
+        });
+        final byte[] compressible = new byte[300 * 1024];
+        Arrays.fill(compressible, (byte) 'a');
+        final byte[] incompressible = new byte[100 * 1024];
+        new Random(0).nextBytes(incompressible);
+        Assert.assertEquals(compressible.length,
+            unit.stat(unit.create(new ByteArrayInputStream(compressible))).getSize());
+        Assert.assertEquals(incompressible.length,
+            unit.stat(unit.create(new ByteArrayInputStream(incompressible))).getSize());
+        Assert.assertEquals(0, unit.stat(unit.create(new ByteArrayInputStream(new byte[0]))).getSize());
+    }
+
+    /**
+     * Tests that range reads of raw blobs use range reads of the backing store.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readRangeRaw() throws IOException {
+        final SegmentStore store = stores.open();
+        final CompressingStore unit = new CompressingStore(new ForwardingStore() {
+
+            @Override
+            protected Store delegate() {
+                return store;
+            }
+
+            @Override
+            public InputStream read(String identifier) throws IOException {
+                throw new AssertionError("Unexpected full read");
+            }
+
+        }, new DeflateCodec());
+        final byte[] data = new byte[100 * 1024];
+        new Random(0).nextBytes(data);
+        final String identifier = unit.create(new ByteArrayInputStream(data));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 1100),
+            IOUtils.toByteArray(unit.read(identifier, 1000, 100)));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, data.length - 10, data.length),
+            IOUtils.toByteArray(unit.read(identifier, data.length - 10, 100)));
+        Assert.assertEquals(0, IOUtils.toByteArray(unit.read(identifier, Long.MAX_VALUE, 1)).length);
+    }
+
+    /**
+     * Tests that reads and views of encoded blobs only make the necessary calls
+     * to the backing store.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void backendCalls() throws IOException {
+        final SegmentStore store = stores.open();
+        final AtomicInteger calls = new AtomicInteger();
+        final CompressingStore unit = new CompressingStore(new ForwardingStore() {
+
+            @Override
+            protected Store delegate() {
+                return store;
+            }
+
+            @Override
+            public BlobStat stat(String identifier) throws IOException {
+                calls.incrementAndGet();
+                return super.stat(identifier);
+            }
+
+            @Override
+            public InputStream read(String identifier) throws IOException {
+                calls.incrementAndGet();
+                return super.read(identifier);
+            }
+
+            @Override
+            public InputStream read(String identifier, long offset, long length) throws IOException {
+                calls.incrementAndGet();
+                return super.read(identifier, offset, length);
+            }
+
+        }, new DeflateCodec());
+        final byte[] data = new byte[300 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        final String identifier = unit.create(new ByteArrayInputStream(data));
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(unit.read(identifier)));
+        Assert.assertEquals(1, calls.getAndSet(0));
+        final ByteBuffer view = unit.view(identifier);
+        Assert.assertEquals(ByteBuffer.wrap(data), view);
+        unit.release(view);
+        // read, stat and trailer
+        Assert.assertEquals(3, calls.get());
+    }
+
+    /**
+     * Tests that views are allocated from the given pool and return to it on release.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void viewRelease() throws IOException {
+        final BufferPool pool = new BufferPool();
+        final CompressingStore unit = new CompressingStore(stores.open(), new DeflateCodec(), 0.9, pool);
+        final byte[] data = new byte[200 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        final String identifier = unit.create(new ByteArrayInputStream(data));
+        final ByteBuffer view = unit.view(identifier);
+        Assert.assertTrue(view.isDirect());
+        Assert.assertTrue(view.isReadOnly());
+        Assert.assertEquals(ByteBuffer.wrap(data), view);
+        final long retained = pool.getRetained();
+        unit.release(view);
+        Assert.assertEquals(retained + view.capacity(), pool.getRetained());
+        unit.release(unit.view(identifier));
+        Assert.assertEquals(retained + view.capacity(), pool.getRetained());
+    }
+
+    /**
+     * Tests that range views and ranged streams return their views to the pool.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void rangeViewRelease() throws IOException {
+        final BufferPool pool = new BufferPool();
+        final CompressingStore unit = new CompressingStore(stores.open(), new DeflateCodec(), 0.9, pool);
+        final byte[] data = new byte[200 * 1024];
+        Arrays.fill(data, (byte) 'a');
+        final String identifier = unit.create(new ByteArrayInputStream(data));
+        final long retained = pool.getRetained();
+        final ByteBuffer slice = unit.view(identifier, 10, 100);
+        Assert.assertEquals(100, slice.remaining());
+        unit.release(slice);
+        final long released = pool.getRetained();
+        Assert.assertTrue(released > retained);
+        final InputStream stream = unit.read(identifier, 10, 100);
+        Assert.assertEquals(100, IOUtils.toByteArray(stream).length);
+        stream.close();
+        Assert.assertEquals(released, pool.getRetained());
+    }
+
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link DeduplicatingStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class DeduplicatingStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    @Override
+    public DeduplicatingStore unit() {
+        try {
+            return new DeduplicatingStore(stores.open(), stores.open());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final DeduplicatingStore unit = unit();
+        unit.setGenerator(generator);
+        return unit;
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    /**
+     * Tests that identical binary data is stored only once and only deleted
+     * with its last reference.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void deduplicate() throws IOException {
+        final SegmentStore contents = stores.open();
+        final DeduplicatingStore unit = new DeduplicatingStore(stores.open(), contents);
+        final String first = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        final String second = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        final String other = unit.create(new ByteArrayInputStream("other".getBytes(UTF_8)));
+        Assert.assertEquals(3, unit.list().size());
+        Assert.assertEquals(2, contents.list().size());
+
+        unit.delete(first);
+        Assert.assertEquals(2, contents.list().size());
+        Assert.assertEquals("data", IOUtils.toString(unit.read(second), UTF_8));
+
+        unit.delete(second);
+        Assert.assertEquals(1, contents.list().size());
+        Assert.assertEquals("other", IOUtils.toString(unit.read(other), UTF_8));
+    }
+
+    /**
+     * Tests that reference counts are rebuilt from the references store.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void rebuildCounts() throws IOException {
+        final SegmentStore references = stores.open();
+        final SegmentStore contents = stores.open();
+        final DeduplicatingStore unit = new DeduplicatingStore(references, contents);
+        final String first = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+
+        final DeduplicatingStore rebuilt = new DeduplicatingStore(references, contents);
+        Assert.assertEquals(1, rebuilt.getContentCount());
+        rebuilt.delete(first);
+        Assert.assertEquals(1, contents.list().size());
+    }
+
+    /**
+     * Tests that content which lost its last reference without being deleted,
+     * e.g. due to a crash, is adopted by the next reference to the same data.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void adoptOrphan() throws IOException {
+        final SegmentStore references = stores.open();
+        final SegmentStore contents = stores.open();
+        final String orphaned = new DeduplicatingStore(references, contents).create(
+            new ByteArrayInputStream("data".getBytes(UTF_8)));
+        references.delete(orphaned);
+
+        final DeduplicatingStore unit = new DeduplicatingStore(references, contents);
+        Assert.assertEquals(0, unit.getContentCount());
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        Assert.assertEquals(1, unit.getContentCount());
+        Assert.assertEquals("data", IOUtils.toString(unit.read(identifier), UTF_8));
+        unit.delete(identifier);
+        Assert.assertTrue(contents.list().isEmpty());
+    }
+
+    /**
+     * Tests that content which could not be deleted is no longer counted and
+     * gets adopted by the next upload of the same data.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void deleteContentFailure() throws IOException {
+        final SegmentStore contents = stores.open();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        final DeduplicatingStore unit = new DeduplicatingStore(stores.open(), new ForwardingStore() {
+
+            @Override
+            protected Store delegate() {
+                return contents;
+            }
+
+            @Override
+            public void delete(String identifier) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("Failing on purpose");
+                }
+                super.delete(identifier);
+            }
+
+        });
+        unit.delete(unit.create(new ByteArrayInputStream("data".getBytes(UTF_8))));
+        Assert.assertEquals(0, unit.getContentCount());
+        Assert.assertEquals(1, contents.list().size());
+
+        failing.set(false);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        Assert.assertEquals(1, unit.getContentCount());
+        unit.delete(identifier);
+        Assert.assertEquals(0, unit.getContentCount());
+        Assert.assertTrue(contents.list().isEmpty());
+    }
+
+    /**
+     * Tests that {@link DeduplicatingStore#stat(String)} provides the content hash.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void statHash() throws IOException {
+        final DeduplicatingStore unit = unit();
+        final String first = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        final String second = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        Assert.assertEquals(64, unit.stat(first).getHash().length());
+        Assert.assertEquals(unit.stat(first).getHash(), unit.stat(second).getHash());
+        Assert.assertEquals(4, unit.stat(second).getSize());
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests {@link ExecutorAsyncByteStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class ExecutorAsyncByteStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    private AsyncByteStore unit() {
+        return new ExecutorAsyncByteStore(stores.open(), executor);
+    }
+
+    /**
+     * Shuts down the executor and removes all stores.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        stores.dispose();
+    }
+
+    /**
+     * Tests creating, reading, viewing, listing and deleting.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void roundtrip() throws Exception {
+        final AsyncByteStore unit = unit();
+        final String first = unit.create(new ByteArrayInputStream("first".getBytes(UTF_8))).get();
+        final String second = unit.create(ByteBuffer.wrap("second".getBytes(UTF_8))).get();
+        Assert.assertEquals("first", IOUtils.toString(unit.read(first).get(), UTF_8));
+        Assert.assertEquals(ByteBuffer.wrap("second".getBytes(UTF_8)), unit.view(second).get());
+        Assert.assertEquals(ImmutableSet.of(first, second), unit.list().get());
+        unit.delete(first).get();
+        Assert.assertEquals(ImmutableSet.of(second), unit.list().get());
+    }
+
+    /**
+     * Tests that failures are provided by the returned future.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void viewMissing() throws InterruptedException {
+        try {
+            unit().view(UUID.randomUUID().toString()).get();
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    /**
+     * Tests that null arguments are rejected immediately.
+     */
+    @Test(expected = NullPointerException.class)
+    public void viewNull() {
+        unit().view(null);
+    }
+
+    /**
+     * Tests that rejected operations result in failed futures.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void rejected() throws InterruptedException {
+        final AsyncByteStore unit = unit();
+        executor.shutdown();
+        try {
+            unit.list().get();
+            Assert.fail("Expected ExecutionException");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+}
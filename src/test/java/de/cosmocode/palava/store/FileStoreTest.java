@@ -0,0 +1,267 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link FileStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class FileStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final List<File> directories = Lists.newArrayList();
+
+    private final List<FileStore> stores = Lists.newArrayList();
+
+    private File newDirectory() {
+        try {
+            final File directory = File.createTempFile("files", "");
+            if (!directory.delete() || !directory.mkdir()) {
+                throw new IllegalStateException("Unable to create " + directory);
+            }
+            directories.add(directory);
+            return directory;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private FileStore open(File directory) {
+        try {
+            final FileStore store = new FileStore(directory);
+            stores.add(store);
+            return store;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public FileStore unit() {
+        return open(newDirectory());
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final FileStore unit = unit();
+        unit.setGenerator(generator);
+        return unit;
+    }
+
+    /**
+     * Disposes all opened stores and removes all temporary directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        for (FileStore store : stores) {
+            store.dispose();
+        }
+        stores.clear();
+        for (File directory : directories) {
+            FileUtils.deleteDirectory(directory);
+        }
+        directories.clear();
+    }
+
+    /**
+     * Tests {@link FileStore#create(java.io.InputStream, String)} with an identifier
+     * which would escape the store directory.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void createInvalidIdentifier() throws IOException {
+        unit().create(new ByteArrayInputStream("data".getBytes(UTF_8)), "../data");
+    }
+
+    /**
+     * Tests {@link FileStore#create(java.io.InputStream, String)} with identifiers
+     * which are too short to be used as temporary file prefixes.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createShortIdentifier() throws IOException {
+        final FileStore unit = unit();
+        unit.create(new ByteArrayInputStream("a".getBytes(UTF_8)), "a");
+        unit.create(new ByteArrayInputStream("id".getBytes(UTF_8)), "id");
+        Assert.assertEquals("a", IOUtils.toString(unit.read("a"), UTF_8));
+        Assert.assertEquals("id", IOUtils.toString(unit.read("id"), UTF_8));
+        Assert.assertEquals(ImmutableSet.of("a", "id"), unit.list());
+    }
+
+    /**
+     * Tests that a stalled upload doesn't block creates and deletes of other identifiers
+     * guarded by the same stripe.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void createSlowDoesNotBlockStripe() throws Exception {
+        final FileStore unit = unit();
+        String neighbour = "neighbour";
+        for (int i = 0; unit.lockFor(neighbour) != unit.lockFor("slow"); i++) {
+            neighbour = "neighbour" + i;
+        }
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final InputStream stalled = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+
+        };
+        final ExecutorService service = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> slow = service.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    unit.create(stalled, "slow");
+                    return null;
+                }
+
+            });
+            Assert.assertTrue(reading.await(5, TimeUnit.SECONDS));
+            unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)), neighbour);
+            unit.delete(neighbour);
+            release.countDown();
+            slow.get(5, TimeUnit.SECONDS);
+            Assert.assertTrue(unit.exists("slow"));
+        } finally {
+            release.countDown();
+            service.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a published file is removed again if it can't be indexed.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createIndexFailure() throws IOException {
+        final File directory = newDirectory();
+        final FileStore unit = open(directory);
+        unit.dispose();
+        stores.remove(unit);
+        try {
+            unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)), "unindexed");
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            // expected, the index is closed
+        }
+        Assert.assertFalse(new File(directory, "unindexed").exists());
+    }
+
+    /**
+     * Tests that leftovers of incomplete writes are removed and not listed.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void reopen() throws IOException {
+        final File directory = newDirectory();
+        final FileStore unit = open(directory);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        final File incomplete = new File(new File(directory, ".tmp"), "incomplete");
+        FileUtils.writeStringToFile(incomplete, "incomplete", UTF_8);
+        unit.dispose();
+        stores.remove(unit);
+
+        final FileStore reopened = open(directory);
+        Assert.assertFalse(incomplete.exists());
+        Assert.assertEquals(ImmutableSet.of(identifier), reopened.list());
+    }
+
+    /**
+     * Tests that a properly disposed store answers listings from its index
+     * instead of scanning the directory.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void reopenUsesIndex() throws IOException {
+        final File directory = newDirectory();
+        final FileStore unit = open(directory);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.dispose();
+        stores.remove(unit);
+        FileUtils.writeStringToFile(new File(directory, "foreign"), "foreign", UTF_8);
+
+        final FileStore reopened = open(directory);
+        Assert.assertEquals(ImmutableSet.of(identifier), reopened.list());
+        Assert.assertFalse(reopened.exists("foreign"));
+        reopened.reindex();
+        Assert.assertEquals(ImmutableSet.of(identifier, "foreign"), reopened.list());
+        Assert.assertEquals(2, reopened.size());
+    }
+
+    /**
+     * Tests that the index is rebuilt after an unclean shutdown.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void reopenWithoutDispose() throws IOException {
+        final File directory = newDirectory();
+        final FileStore unit = open(directory);
+        final String kept = unit.create(new ByteArrayInputStream("kept".getBytes(UTF_8)));
+        final String deleted = unit.create(new ByteArrayInputStream("deleted".getBytes(UTF_8)));
+        FileUtils.writeStringToFile(new File(directory, "foreign"), "foreign", UTF_8);
+        Assert.assertTrue(new File(directory, deleted).delete());
+
+        final FileStore reopened = open(directory);
+        Assert.assertEquals(ImmutableSet.of(kept, "foreign"), reopened.list());
+        Assert.assertFalse(reopened.exists(deleted));
+    }
+
+}
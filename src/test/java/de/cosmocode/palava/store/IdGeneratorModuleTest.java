@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
+/**
+ * Tests {@link IdGeneratorModule}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class IdGeneratorModuleTest {
+
+    private IdGenerator generator(final String value) {
+        return Guice.createInjector(new IdGeneratorModule(), new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bindConstant().annotatedWith(Names.named(StoreConfig.ID_GENERATOR)).to(value);
+            }
+
+        }).getInstance(Key.get(IdGenerator.class, Names.named(StoreConfig.ID_GENERATOR)));
+    }
+
+    /**
+     * Tests the supported short names.
+     */
+    @Test
+    public void names() {
+        Assert.assertTrue(generator("uuid") instanceof UUIDGenerator);
+        Assert.assertTrue(generator("uuidBase") instanceof UUIDBaseGenerator);
+        Assert.assertTrue(generator("timeBased") instanceof TimeBasedGenerator);
+        Assert.assertTrue(generator("random") instanceof RandomGenerator);
+    }
+
+    /**
+     * Tests a fully qualified class name.
+     */
+    @Test
+    public void className() {
+        Assert.assertTrue(generator(RandomGenerator.class.getName()) instanceof RandomGenerator);
+    }
+
+}
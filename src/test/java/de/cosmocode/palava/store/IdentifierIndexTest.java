@@ -0,0 +1,271 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests {@link IdentifierIndex}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class IdentifierIndexTest {
+
+    private File directory;
+
+    /**
+     * Creates a temporary directory.
+     *
+     * @throws IOException if creation failed
+     */
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("index", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IllegalStateException("Unable to create " + directory);
+        }
+    }
+
+    /**
+     * Removes the temporary directory.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Tests put, get, contains and remove.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void putRemove() throws IOException {
+        final IdentifierIndex unit = new IdentifierIndex(directory);
+        Assert.assertFalse(unit.contains("a"));
+        Assert.assertEquals(-1L, unit.get("a"));
+        unit.put("a", 1L);
+        unit.put("b", 2L);
+        unit.put("a", 3L);
+        Assert.assertTrue(unit.contains("a"));
+        Assert.assertEquals(3L, unit.get("a"));
+        Assert.assertEquals(2, unit.size());
+        Assert.assertTrue(unit.remove("a"));
+        Assert.assertFalse(unit.remove("a"));
+        Assert.assertFalse(unit.contains("a"));
+        Assert.assertEquals(1, unit.size());
+        unit.close();
+    }
+
+    /**
+     * Tests {@link IdentifierIndex#put(String, long)} with a negative value.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void putNegative() throws IOException {
+        new IdentifierIndex(directory).put("a", -1L);
+    }
+
+    /**
+     * Tests that listings merge table and changes in order.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void list() throws IOException {
+        final IdentifierIndex unit = new IdentifierIndex(directory);
+        unit.put("b", 0L);
+        unit.put("d", 0L);
+        unit.put("f", 0L);
+        unit.checkpoint();
+        unit.put("a", 0L);
+        unit.put("e", 0L);
+        unit.remove("d");
+        Assert.assertEquals(ImmutableList.of("a", "b", "e", "f"), unit.list(null, 10));
+        Assert.assertEquals(ImmutableList.of("a", "b"), unit.list(null, 2));
+        Assert.assertEquals(ImmutableList.of("e", "f"), unit.list("b", 10));
+        Assert.assertEquals(ImmutableList.of("e"), unit.list("c", 1));
+        Assert.assertEquals(ImmutableList.of(), unit.list("f", 10));
+        unit.close();
+    }
+
+    /**
+     * Tests that automatic checkpoints preserve all entries.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void checkpointThreshold() throws IOException {
+        final IdentifierIndex unit = new IdentifierIndex(directory, 10);
+        for (int i = 0; i < 100; i++) {
+            unit.put(String.format("%03d", i), i);
+        }
+        for (int i = 0; i < 100; i += 2) {
+            unit.remove(String.format("%03d", i));
+        }
+        Assert.assertEquals(50, unit.size());
+        Assert.assertEquals(ImmutableList.of("001", "003", "005"), unit.list(null, 3));
+        Assert.assertEquals(97L, unit.get("097"));
+        Assert.assertTrue(new File(directory, IdentifierIndex.JOURNAL).length() < 10 * 32);
+        unit.close();
+    }
+
+    /**
+     * Tests that the checkpoint threshold grows with the table.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void checkpointThresholdScales() throws IOException {
+        final IdentifierIndex unit = new IdentifierIndex(directory, 10);
+        for (int i = 0; i < 1000; i++) {
+            unit.put(String.format("%04d", i), i);
+        }
+        unit.checkpoint();
+        final File journal = new File(directory, IdentifierIndex.JOURNAL);
+        Assert.assertEquals(0L, journal.length());
+        for (int i = 0; i < 100; i++) {
+            unit.put(String.format("%04d", i), i + 1);
+        }
+        // 100 changes stay below an eighth of the table
+        Assert.assertEquals(100L * (13 + 4), journal.length());
+        Assert.assertEquals(1000, unit.size());
+        unit.close();
+    }
+
+    /**
+     * Tests that modifications made by concurrent writers during checkpoints survive
+     * reopening.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void concurrentCheckpoints() throws Exception {
+        final IdentifierIndex unit = new IdentifierIndex(directory, 10);
+        final int threads = 4;
+        final int count = 500;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            unit.put(String.format("%d-%04d", thread, i), i);
+                            if (i % 3 == 0) {
+                                unit.remove(String.format("%d-%04d", thread, i));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertEquals(ImmutableList.of(), failures);
+        final int expected = threads * (count - (count + 2) / 3);
+        Assert.assertEquals(expected, unit.size());
+        unit.close();
+
+        final IdentifierIndex reopened = new IdentifierIndex(directory);
+        Assert.assertEquals(expected, reopened.size());
+        Assert.assertEquals(expected, reopened.list(null, Integer.MAX_VALUE).size());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(i % 3 == 0 ? -1L : i, reopened.get(String.format("%d-%04d", t, i)));
+            }
+        }
+        reopened.close();
+    }
+
+    /**
+     * Tests that the index survives reopening, with and without a checkpoint.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void reopen() throws IOException {
+        final IdentifierIndex unit = new IdentifierIndex(directory);
+        unit.put("a", 1L);
+        unit.put("b", 2L);
+        unit.checkpoint();
+        unit.put("c", 3L);
+        unit.remove("a");
+        unit.close();
+
+        final IdentifierIndex reopened = new IdentifierIndex(directory);
+        Assert.assertEquals(ImmutableList.of("b", "c"), reopened.list(null, 10));
+        Assert.assertEquals(3L, reopened.get("c"));
+        Assert.assertEquals(2, reopened.size());
+        reopened.close();
+    }
+
+    /**
+     * Tests that a torn journal record is dropped on startup.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void recoverTornJournal() throws IOException {
+        final IdentifierIndex unit = new IdentifierIndex(directory);
+        unit.put("a", 1L);
+        // simulates a crash, changes are in the journal only
+        final File journal = new File(directory, IdentifierIndex.JOURNAL);
+        final long size = journal.length();
+        final RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.seek(size);
+            file.write(new byte[] {1, 0, 0, 0, 5, 0, 0});
+        } finally {
+            file.close();
+        }
+
+        final IdentifierIndex reopened = new IdentifierIndex(directory);
+        Assert.assertEquals(ImmutableList.of("a"), reopened.list(null, 10));
+        Assert.assertEquals(size, journal.length());
+        reopened.put("b", 2L);
+        reopened.close();
+    }
+
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import javax.management.MBeanServer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link InstrumentedByteStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class InstrumentedByteStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    @Override
+    public InstrumentedByteStore unit() {
+        return new InstrumentedByteStore(stores.open(), new StoreStatistics());
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final SegmentStore store = stores.open();
+        store.setGenerator(generator);
+        return new InstrumentedByteStore(store, new StoreStatistics());
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    private static OperationStatistics statisticsOf(InstrumentedStore unit, StoreOperation operation) {
+        return StoreStatistics.class.cast(unit.getMetrics()).get(operation);
+    }
+
+    /**
+     * Tests that calls and bytes of creates, reads and views are recorded.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void recordCallsAndBytes() throws IOException {
+        final InstrumentedByteStore unit = unit();
+        final String first = unit.create(new ByteArrayInputStream("first".getBytes(UTF_8)));
+        final String second = unit.create(ByteBuffer.wrap("second".getBytes(UTF_8)));
+        Assert.assertEquals(2, statisticsOf(unit, StoreOperation.CREATE).getCount());
+        Assert.assertEquals(11, statisticsOf(unit, StoreOperation.CREATE).getBytes());
+
+        final InputStream stream = unit.read(first);
+        Assert.assertEquals(1, statisticsOf(unit, StoreOperation.READ).getCount());
+        Assert.assertEquals(0, statisticsOf(unit, StoreOperation.READ).getBytes());
+        Assert.assertEquals("first", IOUtils.toString(stream, UTF_8));
+        stream.close();
+        Assert.assertEquals(5, statisticsOf(unit, StoreOperation.READ).getBytes());
+
+        unit.view(second);
+        Assert.assertEquals(1, statisticsOf(unit, StoreOperation.VIEW).getCount());
+        Assert.assertEquals(6, statisticsOf(unit, StoreOperation.VIEW).getBytes());
+
+        unit.list();
+        unit.delete(first);
+        Assert.assertEquals(1, statisticsOf(unit, StoreOperation.LIST).getCount());
+        Assert.assertEquals(1, statisticsOf(unit, StoreOperation.DELETE).getCount());
+        Assert.assertEquals(0, statisticsOf(unit, StoreOperation.DELETE).getErrorCount());
+    }
+
+    /**
+     * Tests that failing calls are recorded as errors.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void recordErrors() throws IOException {
+        final InstrumentedByteStore unit = unit();
+        try {
+            unit.read(UUID.randomUUID().toString());
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            final OperationStatistics statistics = statisticsOf(unit, StoreOperation.READ);
+            Assert.assertEquals(1, statistics.getCount());
+            Assert.assertEquals(1, statistics.getErrorCount());
+            Assert.assertEquals(1.0, statistics.getErrorRate(), 0.0);
+        }
+    }
+
+    /**
+     * Tests {@link OperationStatistics#getPercentileTime(double)}.
+     */
+    @Test
+    public void percentiles() {
+        final OperationStatistics statistics = new OperationStatistics();
+        for (int i = 0; i < 99; i++) {
+            statistics.recordCall(100, false);
+        }
+        statistics.recordCall(100000, false);
+        Assert.assertEquals(127, statistics.getMedianTime());
+        Assert.assertEquals(127, statistics.get99thPercentileTime());
+        Assert.assertEquals(100000, statistics.getPercentileTime(100.0));
+        Assert.assertEquals(100000, statistics.getMaxTime());
+        Assert.assertEquals(1099, statistics.getMeanTime());
+    }
+
+    /**
+     * Tests {@link StoreStatistics#register(MBeanServer, String)}.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void register() throws Exception {
+        final InstrumentedByteStore unit = unit();
+        final StoreStatistics statistics = StoreStatistics.class.cast(unit.getMetrics());
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final String name = UUID.randomUUID().toString();
+        statistics.register(server, name);
+        try {
+            unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+            Assert.assertEquals(1L, server.getAttribute(
+                StoreStatistics.objectName(name, StoreOperation.CREATE), "Count"));
+        } finally {
+            statistics.unregister(server, name);
+        }
+        Assert.assertFalse(server.isRegistered(StoreStatistics.objectName(name, StoreOperation.CREATE)));
+    }
+
+}
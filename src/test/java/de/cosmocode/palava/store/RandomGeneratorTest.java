@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Tests {@link RandomGenerator}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class RandomGeneratorTest {
+
+    /**
+     * Tests that generated identifiers are unique lowercase hex strings.
+     */
+    @Test
+    public void generate() {
+        final IdGenerator unit = new RandomGenerator();
+        final Set<String> identifiers = Sets.newHashSet();
+        for (int i = 0; i < 10000; i++) {
+            final String identifier = unit.generate();
+            Assert.assertTrue(identifier, identifier.matches("[0-9a-f]{32}"));
+            identifiers.add(identifier);
+        }
+        Assert.assertEquals(10000, identifiers.size());
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link ReplicatedStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class ReplicatedStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private static final int REPLICAS = 3;
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private List<Store> replicas(int count) {
+        final List<Store> replicas = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            replicas.add(stores.open());
+        }
+        return replicas;
+    }
+
+    @Override
+    public ReplicatedStore unit() {
+        return new ReplicatedStore(replicas(REPLICAS), executor);
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final ReplicatedStore unit = unit();
+        unit.setGenerator(generator);
+        return unit;
+    }
+
+    /**
+     * Closes all opened stores, removes their directories and stops the executor.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        stores.dispose();
+    }
+
+    /**
+     * Tests that creates are mirrored to every replica.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createMirrors() throws IOException {
+        final List<Store> replicas = replicas(REPLICAS);
+        final ReplicatedStore unit = new ReplicatedStore(replicas, executor, REPLICAS);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        for (Store replica : replicas) {
+            Assert.assertEquals("data", IOUtils.toString(replica.read(identifier), UTF_8));
+        }
+    }
+
+    /**
+     * Tests that a create succeeds with a failing replica as long as the quorum is reached.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createQuorum() throws IOException {
+        final List<Store> replicas = replicas(2);
+        replicas.add(new FailingStore(stores.open()));
+        final ReplicatedStore unit = new ReplicatedStore(replicas, executor, 2);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        Assert.assertEquals("data", IOUtils.toString(unit.read(identifier), UTF_8));
+        Assert.assertTrue(unit.exists(identifier));
+        unit.delete(identifier);
+        Assert.assertFalse(unit.exists(identifier));
+    }
+
+    /**
+     * Tests that successful writes are rolled back if the quorum is not reached.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createQuorumFailed() throws IOException {
+        final List<Store> replicas = Lists.newArrayList();
+        replicas.add(stores.open());
+        replicas.add(new FailingStore(stores.open()));
+        replicas.add(new FailingStore(stores.open()));
+        final ReplicatedStore unit = new ReplicatedStore(replicas, executor, 2);
+        try {
+            unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)), "data");
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            Assert.assertFalse(replicas.get(0).exists("data"));
+        }
+    }
+
+    /**
+     * Tests {@link ReplicatedStore#ReplicatedStore(List, java.util.concurrent.Executor, int)}
+     * with a quorum larger than the number of replicas.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void quorumTooLarge() {
+        new ReplicatedStore(replicas(2), executor, 3);
+    }
+
+    /**
+     * Tests that reads fall back to other replicas if the identifier is missing.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readMissingReplica() throws IOException {
+        final List<Store> replicas = replicas(REPLICAS);
+        final ReplicatedStore unit = new ReplicatedStore(replicas, executor, REPLICAS);
+        replicas.get(0).create(new ByteArrayInputStream("other".getBytes(UTF_8)), "other");
+        replicas.get(2).create(new ByteArrayInputStream("data".getBytes(UTF_8)), "data");
+        Assert.assertEquals("data", IOUtils.toString(unit.read("data"), UTF_8));
+        Assert.assertEquals(ImmutableSet.of("data", "other"), unit.list());
+        Assert.assertEquals(ImmutableList.of("other"), unit.list("data", 10));
+    }
+
+    /**
+     * Tests that a slow replica doesn't stall reads.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readHedged() throws IOException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Store> replicas = Lists.newArrayList();
+        replicas.add(new SlowStore(stores.open(), release));
+        replicas.addAll(replicas(1));
+        final ReplicatedStore unit = new ReplicatedStore(replicas, executor, 2);
+        unit.setHedgeDelay(10, TimeUnit.MILLISECONDS);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        try {
+            Assert.assertEquals("data", IOUtils.toString(unit.read(identifier), UTF_8));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * A store which fails to create anything.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class FailingStore extends ForwardingStore {
+
+        private final Store delegate;
+
+        public FailingStore(Store delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected Store delegate() {
+            return delegate;
+        }
+
+        @Override
+        public void create(InputStream stream, String identifier) throws IOException {
+            throw new IOException("Failing " + identifier);
+        }
+
+    }
+
+    /**
+     * A store whose reads block until released.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class SlowStore extends ForwardingStore {
+
+        private final Store delegate;
+
+        private final CountDownLatch release;
+
+        public SlowStore(Store delegate, CountDownLatch release) {
+            this.delegate = delegate;
+            this.release = release;
+        }
+
+        @Override
+        protected Store delegate() {
+            return delegate;
+        }
+
+        @Override
+        public InputStream read(String identifier) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return super.read(identifier);
+        }
+
+    }
+
+}
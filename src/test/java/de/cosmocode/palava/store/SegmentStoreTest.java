@@ -0,0 +1,501 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link SegmentStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class SegmentStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    @Override
+    public SegmentStore unit() {
+        return stores.open();
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final SegmentStore unit = unit();
+        unit.setGenerator(generator);
+        return unit;
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    /**
+     * Tests that {@link SegmentStore#view(String)} returns read-only buffers.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = ReadOnlyBufferException.class)
+    public void viewReadOnly() throws IOException {
+        final SegmentStore unit = unit();
+        final String identifier = unit.create(ByteBuffer.wrap("data".getBytes(UTF_8)));
+        unit.view(identifier).put((byte) 0);
+    }
+
+    /**
+     * Tests that {@link SegmentStore#view(String)} covers exactly the stored blob
+     * across segment boundaries.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void viewAcrossSegments() throws IOException {
+        final SegmentStore unit = unit();
+        unit.setSegmentSize(16);
+        final String first = unit.create(new ByteArrayInputStream("first".getBytes(UTF_8)));
+        final String second = unit.create(ByteBuffer.wrap("second".getBytes(UTF_8)));
+        final String third = unit.create(new ByteArrayInputStream("third".getBytes(UTF_8)));
+        Assert.assertEquals(ByteBuffer.wrap("first".getBytes(UTF_8)), unit.view(first));
+        Assert.assertEquals(ByteBuffer.wrap("second".getBytes(UTF_8)), unit.view(second));
+        Assert.assertEquals(ByteBuffer.wrap("third".getBytes(UTF_8)), unit.view(third));
+    }
+
+    /**
+     * Tests that creates and deletes survive reopening the store.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void reopen() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        final String kept = unit.create(new ByteArrayInputStream("kept".getBytes(UTF_8)));
+        final String deleted = unit.create(new ByteArrayInputStream("deleted".getBytes(UTF_8)));
+        unit.delete(deleted);
+        final BlobStat stat = unit.stat(kept);
+        unit.dispose();
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.of(kept), reopened.list());
+        Assert.assertEquals(ByteBuffer.wrap("kept".getBytes(UTF_8)), reopened.view(kept));
+        Assert.assertEquals(stat, reopened.stat(kept));
+    }
+
+    /**
+     * Tests that a torn record at the end of a segment is dropped on recovery.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void recoverTornRecord() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.dispose();
+
+        final File segment = new File(directory, Segment.fileName(0));
+        final long size = segment.length();
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(size);
+            file.write(new byte[] {Segment.INCOMPLETE, 0, 0, 0, 4, 0, 0});
+        } finally {
+            file.close();
+        }
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.of(identifier), reopened.list());
+        Assert.assertEquals(size, segment.length());
+        final String next = reopened.create(new ByteArrayInputStream("next".getBytes(UTF_8)));
+        Assert.assertEquals(ByteBuffer.wrap("next".getBytes(UTF_8)), reopened.view(next));
+    }
+
+    /**
+     * Tests {@link SegmentStore#create(ByteBuffer)} with a heap buffer larger than
+     * a single write chunk.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void createLargeHeapBuffer() throws IOException {
+        final SegmentStore unit = unit();
+        final byte[] data = new byte[300 * 1024 + 7];
+        new Random(0).nextBytes(data);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final String identifier = unit.create(buffer);
+        Assert.assertEquals(data.length, buffer.position());
+        Assert.assertEquals(data.length, buffer.limit());
+        Assert.assertEquals(ByteBuffer.wrap(data), unit.view(identifier));
+    }
+
+    /**
+     * Tests {@link SegmentStore#view(String, long, int)}.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void viewRange() throws IOException {
+        final SegmentStore unit = unit();
+        unit.create(new ByteArrayInputStream("before".getBytes(UTF_8)));
+        final String identifier = unit.create(new ByteArrayInputStream("0123456789".getBytes(UTF_8)));
+        unit.create(new ByteArrayInputStream("after".getBytes(UTF_8)));
+        Assert.assertEquals(ByteBuffer.wrap("345".getBytes(UTF_8)), unit.view(identifier, 3, 3));
+        Assert.assertEquals(ByteBuffer.wrap("89".getBytes(UTF_8)), unit.view(identifier, 8, 10));
+        Assert.assertEquals(0, unit.view(identifier, 20, 10).remaining());
+    }
+
+    /**
+     * Tests that a record whose data doesn't match its checksum is dropped on recovery.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void recoverChecksumMismatch() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        final String kept = unit.create(new ByteArrayInputStream("kept".getBytes(UTF_8)));
+        final long size = new File(directory, Segment.fileName(0)).length();
+        unit.create(new ByteArrayInputStream("corrupt".getBytes(UTF_8)), "corrupt");
+        unit.dispose();
+
+        final File segment = new File(directory, Segment.fileName(0));
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(segment.length() - 1);
+            file.write('x');
+        } finally {
+            file.close();
+        }
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.of(kept), reopened.list());
+        Assert.assertEquals(size, segment.length());
+    }
+
+    /**
+     * Tests concurrent creates in durable mode across segment boundaries.
+     *
+     * @throws IOException should not happen
+     * @throws InterruptedException should not happen
+     * @throws ExecutionException should not happen
+     */
+    @Test
+    public void createDurableConcurrent() throws IOException, InterruptedException, ExecutionException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        unit.setDurable(true);
+        unit.setSegmentSize(1024);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<String>> futures = Lists.newArrayList();
+        try {
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+
+                    @Override
+                    public String call() throws IOException {
+                        return unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+                    }
+
+                }));
+            }
+            final ImmutableSet.Builder<String> identifiers = ImmutableSet.builder();
+            for (Future<String> future : futures) {
+                identifiers.add(future.get());
+            }
+            unit.dispose();
+            Assert.assertEquals(identifiers.build(), stores.open(directory).list());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that {@link SegmentStore#compact()} reclaims the space of deleted blobs
+     * and that the result survives reopening without resurrecting deleted blobs.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void compact() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        unit.setSegmentSize(256);
+        final List<String> kept = Lists.newArrayList();
+        final List<String> deleted = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            final String identifier = unit.create(new ByteArrayInputStream(("data" + i).getBytes(UTF_8)));
+            if (i % 3 == 0) {
+                kept.add(identifier);
+            } else {
+                deleted.add(identifier);
+            }
+        }
+        final ByteBuffer view = unit.view(kept.get(0));
+        unit.deleteAll(deleted);
+        final long dead = unit.getDeadBytes();
+
+        Assert.assertTrue(unit.compact() > 0);
+        Assert.assertTrue(unit.getDeadBytes() < dead);
+        Assert.assertEquals(ByteBuffer.wrap("data0".getBytes(UTF_8)), view);
+        Assert.assertEquals(ImmutableSet.copyOf(kept), unit.list());
+        for (int i = 0; i < kept.size(); i++) {
+            Assert.assertEquals(ByteBuffer.wrap(("data" + i * 3).getBytes(UTF_8)), unit.view(kept.get(i)));
+        }
+        final String next = unit.create(new ByteArrayInputStream("next".getBytes(UTF_8)));
+        kept.add(next);
+        unit.dispose();
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.copyOf(kept), reopened.list());
+        Assert.assertEquals(ByteBuffer.wrap("next".getBytes(UTF_8)), reopened.view(next));
+    }
+
+    /**
+     * Tests that blobs deleted after being recreated stay deleted after compacting
+     * and reopening, which requires tombstones to keep their order.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void compactRecreated() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        unit.setSegmentSize(64);
+        unit.setCompactionThreshold(1.0);
+        unit.create(new ByteArrayInputStream("first".getBytes(UTF_8)), "blob");
+        unit.delete("blob");
+        unit.create(new ByteArrayInputStream("second".getBytes(UTF_8)), "blob");
+        unit.create(new ByteArrayInputStream("other".getBytes(UTF_8)), "other");
+        unit.delete("other");
+        unit.create(new ByteArrayInputStream("filler".getBytes(UTF_8)), "filler");
+        unit.compact();
+        unit.compact();
+        unit.dispose();
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.of("blob", "filler"), reopened.list());
+        Assert.assertEquals(ByteBuffer.wrap("second".getBytes(UTF_8)), reopened.view("blob"));
+    }
+
+    /**
+     * Tests that compaction drops tombstones once the records they delete are gone.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void compactTombstones() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        unit.setSegmentSize(64);
+        // keeps the first segment, whose tombstones could be dropped anyway
+        final String first = unit.create(new ByteArrayInputStream(new byte[64]));
+        final List<String> identifiers = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            identifiers.add(unit.create(new ByteArrayInputStream(("data" + i).getBytes(UTF_8))));
+        }
+        unit.deleteAll(identifiers);
+        final String last = unit.create(new ByteArrayInputStream("last".getBytes(UTF_8)));
+
+        Assert.assertTrue(unit.compact() > 0);
+        Assert.assertEquals(0, unit.getDeadBytes());
+        Assert.assertEquals(0, unit.compact());
+        Assert.assertEquals(2, directory.list().length);
+        unit.dispose();
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.of(first, last), reopened.list());
+    }
+
+    /**
+     * Tests that tombstones which are still required are kept and that segments
+     * consisting of such tombstones are not compacted over and over again.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void compactKeptTombstones() throws IOException {
+        final File directory = stores.newDirectory();
+        final SegmentStore unit = stores.open(directory);
+        unit.setSegmentSize(256);
+        unit.create(new ByteArrayInputStream("x".getBytes(UTF_8)), "x");
+        unit.create(new ByteArrayInputStream(new byte[300]), "big");
+        unit.delete("x");
+        unit.create(new ByteArrayInputStream(new byte[300]), "filler");
+        unit.delete("filler");
+
+        Assert.assertEquals(1, unit.compact());
+        Assert.assertEquals(0, unit.compact());
+        unit.dispose();
+
+        final SegmentStore reopened = stores.open(directory);
+        Assert.assertEquals(ImmutableSet.of("big"), reopened.list());
+    }
+
+    /**
+     * Tests that compaction respects its rate limit.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void compactRateLimited() throws IOException {
+        final SegmentStore unit = unit();
+        unit.setSegmentSize(16 * 1024);
+        unit.setCompactionThreshold(1.0);
+        unit.setCompactionRate(32 * 1024);
+        final String kept = unit.create(ByteBuffer.wrap(new byte[2048]));
+        unit.delete(unit.create(ByteBuffer.wrap(new byte[8192])));
+        unit.create(ByteBuffer.wrap(new byte[8192]));
+        // starts the next segment
+        unit.create(ByteBuffer.wrap(new byte[1]));
+        final long start = System.nanoTime();
+        Assert.assertEquals(1, unit.compact());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        Assert.assertEquals(ByteBuffer.wrap(new byte[2048]), unit.view(kept));
+    }
+
+    /**
+     * Tests that readers see consistent data while segments are being compacted.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void compactConcurrentReads() throws Exception {
+        final SegmentStore unit = unit();
+        unit.setSegmentSize(512);
+        final List<String> identifiers = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            final String identifier = unit.create(new ByteArrayInputStream(("data" + i).getBytes(UTF_8)));
+            if (i % 2 == 0) {
+                identifiers.add(identifier);
+            } else {
+                unit.delete(identifier);
+            }
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<Integer>> futures = Lists.newArrayList();
+        try {
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+
+                    @Override
+                    public Integer call() throws IOException {
+                        int reads = 0;
+                        while (running.get() || reads == 0) {
+                            for (int i = 0; i < identifiers.size(); i++) {
+                                final ByteBuffer expected = ByteBuffer.wrap(("data" + i * 2).getBytes(UTF_8));
+                                Assert.assertEquals(expected, unit.view(identifiers.get(i)));
+                                reads++;
+                            }
+                        }
+                        return reads;
+                    }
+
+                }));
+            }
+            Assert.assertTrue(unit.compact() > 0);
+            unit.setCompactionThreshold(1.0);
+            unit.compact();
+            running.set(false);
+            for (Future<Integer> future : futures) {
+                Assert.assertTrue(future.get() > 0);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Provides length bytes of a pattern depending on seed and position.
+     */
+    private static InputStream pattern(final int seed, final int length) {
+        return new InputStream() {
+
+            private int position;
+
+            @Override
+            public int read() {
+                return position < length ? patternAt(seed, position++) & 0xFF : -1;
+            }
+
+        };
+    }
+
+    private static byte patternAt(int seed, int position) {
+        return (byte) (seed * 31 + position * 7 + (position >>> 13));
+    }
+
+    /**
+     * Tests views of blobs within, across and after complete mapping windows
+     * of a segment.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void viewAcrossWindows() throws IOException {
+        final int windowSize = 4 * 1024;
+        final SegmentStore unit = stores.open(stores.newDirectory(), windowSize);
+        final int length = windowSize / 2 + 1;
+        final List<String> identifiers = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            identifiers.add(unit.create(new BufferedInputStream(pattern(i, length))));
+            // views of blobs in the window being appended to, mapped on their own
+            Assert.assertEquals(patternAt(i, length - 1), unit.view(identifiers.get(i)).get(length - 1));
+        }
+        unit.create(new ByteArrayInputStream(new byte[windowSize]));
+        for (int i = 0; i < 3; i++) {
+            final ByteBuffer view = unit.view(identifiers.get(i));
+            Assert.assertEquals(length, view.remaining());
+            for (int position = 0; position < length; position += 7) {
+                Assert.assertEquals(patternAt(i, position), view.get(position));
+            }
+            Assert.assertEquals(patternAt(i, length - 1), view.get(length - 1));
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+
+/**
+ * Tests {@link ShardedStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class ShardedStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private static final int SHARDS = 3;
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(SHARDS);
+
+    private List<Store> shards(int count) {
+        final List<Store> shards = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            shards.add(stores.open());
+        }
+        return shards;
+    }
+
+    @Override
+    public ShardedStore unit() {
+        return new ShardedStore(shards(SHARDS), executor);
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final ShardedStore unit = unit();
+        unit.setGenerator(generator);
+        return unit;
+    }
+
+    /**
+     * Closes all opened stores, removes their directories and stops the executor.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        stores.dispose();
+    }
+
+    /**
+     * Tests that identifiers are spread evenly and stored on the shard they route to.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void distribution() throws IOException {
+        final List<Store> shards = shards(SHARDS);
+        final ShardedStore unit = new ShardedStore(shards, executor);
+        final int count = 3000;
+        for (int i = 0; i < count; i++) {
+            final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+            Assert.assertEquals("data", IOUtils.toString(unit.shardOf(identifier).read(identifier), UTF_8));
+        }
+        for (Store shard : shards) {
+            final int size = shard.list().size();
+            Assert.assertTrue("unbalanced: " + size, size > count / SHARDS / 2 && size < count / SHARDS * 2);
+        }
+    }
+
+    /**
+     * Tests that appending a shard only moves identifiers to the new shard.
+     */
+    @Test
+    public void appendShard() {
+        final List<Store> shards = shards(SHARDS + 1);
+        final ShardedStore before = new ShardedStore(shards.subList(0, SHARDS), executor);
+        final ShardedStore after = new ShardedStore(shards, executor);
+        final Store added = shards.get(SHARDS);
+        final UUIDGenerator generator = new UUIDGenerator();
+        int moved = 0;
+        final int count = 4000;
+        for (int i = 0; i < count; i++) {
+            final String identifier = generator.generate();
+            final Store shard = after.shardOf(identifier);
+            if (shard == added) {
+                moved++;
+            } else {
+                Assert.assertSame(before.shardOf(identifier), shard);
+            }
+        }
+        Assert.assertTrue("moved: " + moved, moved > count / (SHARDS + 1) / 2 && moved < count / (SHARDS + 1) * 2);
+    }
+
+    /**
+     * Tests {@link ShardedStore#readAll(java.util.Collection)} preserves the requested order
+     * across shards.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readAllOrder() throws IOException {
+        final ShardedStore unit = unit();
+        final Map<String, ByteArrayInputStream> streams = Maps.newLinkedHashMap();
+        for (int i = 0; i < 20; i++) {
+            streams.put("id" + i, new ByteArrayInputStream(("data" + i).getBytes(UTF_8)));
+        }
+        unit.createAll(streams);
+        final List<String> identifiers = Lists.reverse(ImmutableList.copyOf(streams.keySet()));
+        Assert.assertEquals(identifiers, ImmutableList.copyOf(unit.readAll(identifiers).keySet()));
+    }
+
+    /**
+     * Tests that the {@link IdGenerator} is configurable using {@link StoreConfig#ID_GENERATOR}.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void injectGenerator() throws IOException {
+        final ShardedStore unit = unit();
+        Guice.createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(IdGenerator.class).annotatedWith(Names.named(StoreConfig.ID_GENERATOR)).toInstance(
+                    new IdGenerator() {
+
+                        @Override
+                        public String generate() {
+                            return "injected";
+                        }
+
+                    });
+            }
+
+        }).injectMembers(unit);
+        Assert.assertEquals("injected", unit.create(new ByteArrayInputStream("data".getBytes(UTF_8))));
+    }
+
+    /**
+     * Tests that {@link ShardedStore#readAll(java.util.Collection)} closes all streams
+     * it opened if reading a later identifier fails.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void readAllMissingClosesStreams() throws IOException {
+        final AtomicInteger open = new AtomicInteger();
+        final List<Store> shards = Lists.newArrayList();
+        for (final Store shard : shards(SHARDS)) {
+            // compressing stores inherit readAll from AbstractStore
+            shards.add(new CompressingStore(new ForwardingStore() {
+
+                @Override
+                protected Store delegate() {
+                    return shard;
+                }
+
+                @Override
+                public InputStream read(String identifier) throws IOException {
+                    final InputStream stream = super.read(identifier);
+                    open.incrementAndGet();
+                    return new FilterInputStream(stream) {
+
+                        private boolean closed;
+
+                        @Override
+                        public void close() throws IOException {
+                            if (!closed) {
+                                closed = true;
+                                open.decrementAndGet();
+                            }
+                            super.close();
+                        }
+
+                    };
+                }
+
+            }, new DeflateCodec()));
+        }
+        final ShardedStore unit = new ShardedStore(shards, executor);
+        final List<String> identifiers = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            identifiers.add(unit.create(new ByteArrayInputStream(("data" + i).getBytes(UTF_8))));
+        }
+        identifiers.add("missing");
+        try {
+            unit.readAll(identifiers);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(0, open.get());
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.ProvisionException;
+import com.google.inject.name.Names;
+
+/**
+ * Tests {@link StoreModule}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class StoreModuleTest {
+
+    private final TemporarySegmentStores temporary = new TemporarySegmentStores();
+
+    private final List<StoreStack> stacks = Lists.newArrayList();
+
+    /**
+     * Disposes all stacks and removes their directories.
+     *
+     * @throws IOException if removing a directory failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        for (StoreStack stack : stacks) {
+            stack.dispose();
+        }
+        temporary.dispose();
+    }
+
+    private Injector injector(final File directory, final String... config) {
+        final Injector injector = Guice.createInjector(new StoreModule(), new IdGeneratorModule(), new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(File.class).annotatedWith(Names.named(SegmentStoreConfig.DIRECTORY)).toInstance(directory);
+                bind(File.class).annotatedWith(Names.named(FileStoreConfig.DIRECTORY)).toInstance(directory);
+                for (int i = 0; i < config.length; i += 2) {
+                    bindConstant().annotatedWith(Names.named(config[i])).to(config[i + 1]);
+                }
+            }
+
+        });
+        stacks.add(injector.getInstance(StoreStack.class));
+        return injector;
+    }
+
+    private void roundTrip(Store store) throws IOException {
+        final byte[] data = "hello store stack, hello store stack".getBytes();
+        final String identifier = store.create(new ByteArrayInputStream(data));
+        Assert.assertTrue(store.exists(identifier));
+        Assert.assertArrayEquals(data, IOUtils.toByteArray(store.read(identifier)));
+        store.delete(identifier);
+        Assert.assertFalse(store.exists(identifier));
+    }
+
+    /**
+     * Tests a stack consisting of a single segment store.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void segment() throws IOException {
+        final Injector injector = injector(temporary.newDirectory(),
+            StoreConfig.BACKEND, "segment",
+            SegmentStoreConfig.DURABLE, "true");
+        final Store store = injector.getInstance(Store.class);
+        Assert.assertTrue(store instanceof SegmentStore);
+        Assert.assertSame(store, injector.getInstance(ByteStore.class));
+        roundTrip(store);
+    }
+
+    /**
+     * Tests a stack using every decorator.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void full() throws Exception {
+        final File directory = temporary.newDirectory();
+        final Injector injector = injector(directory,
+            StoreConfig.BACKEND, "segment",
+            StoreConfig.SHARDS, "2",
+            StoreConfig.CODEC, "deflate:1",
+            StoreConfig.CACHE_SIZE, "65536",
+            StoreConfig.STATISTICS, "StoreModuleTest",
+            StoreConfig.ASYNC_THREADS, "2");
+        final ByteStore store = injector.getInstance(ByteStore.class);
+        Assert.assertTrue(store instanceof InstrumentedByteStore);
+        Assert.assertTrue(new File(directory, "0").isDirectory());
+        Assert.assertTrue(new File(directory, "1").isDirectory());
+        roundTrip(store);
+
+        final AsyncByteStore async = injector.getInstance(AsyncByteStore.class);
+        final String identifier = async.create(new ByteArrayInputStream(new byte[] {1, 2, 3})).get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(store.exists(identifier));
+
+        final ObjectName name = StoreStatistics.objectName("StoreModuleTest", StoreOperation.CREATE);
+        Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        stacks.remove(injector.getInstance(StoreStack.class));
+        injector.getInstance(StoreStack.class).dispose();
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    /**
+     * Tests that caching a stack which is no {@link ByteStore} fails.
+     */
+    @Test(expected = ProvisionException.class)
+    public void cacheWithoutByteStore() {
+        injector(temporary.newDirectory(),
+            StoreConfig.BACKEND, "segment",
+            StoreConfig.SHARDS, "2",
+            StoreConfig.CACHE_SIZE, "65536").getInstance(Store.class);
+    }
+
+    /**
+     * Tests a sharded file store stack.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void file() throws IOException {
+        final Injector injector = injector(temporary.newDirectory(),
+            StoreConfig.BACKEND, "file",
+            StoreConfig.SHARDS, "3");
+        final Store store = injector.getInstance(Store.class);
+        Assert.assertTrue(store instanceof ShardedStore);
+        roundTrip(store);
+        Assert.assertTrue(store.list(null, 10).isEmpty());
+    }
+
+    /**
+     * Tests that a sharded stack generates identifiers using the configured generator.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void shardedGenerator() throws IOException {
+        final Injector injector = injector(temporary.newDirectory(),
+            StoreConfig.BACKEND, "segment",
+            StoreConfig.SHARDS, "2",
+            StoreConfig.ID_GENERATOR, "timeBased");
+        final Store store = injector.getInstance(Store.class);
+        final long before = System.currentTimeMillis();
+        final String identifier = store.create(new ByteArrayInputStream(new byte[] {1, 2, 3}));
+        Assert.assertTrue(TimeBasedGenerator.timestampOf(identifier) >= before);
+    }
+
+    /**
+     * Tests a custom codec class name.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void codecClassName() throws IOException {
+        final Injector injector = injector(temporary.newDirectory(),
+            StoreConfig.BACKEND, "file",
+            StoreConfig.CODEC, DeflateCodec.class.getName());
+        final Store store = injector.getInstance(Store.class);
+        Assert.assertTrue(store instanceof CompressingStore);
+        roundTrip(store);
+    }
+
+}
@@ -0,0 +1,697 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Test utility which runs a mixed, concurrent workload against a {@link Store}
+ * and verifies every observed result.
+ *
+ * <p>
+ *   Every thread performs a random mix of create, read, range read, view (if the store
+ *   is a {@link ByteStore}), stat, delete and list operations using tiny and large payloads.
+ *   Payloads are self describing: they start with the seed used to generate the remaining
+ *   bytes, which allows detecting torn, truncated or mixed up data.
+ * </p>
+ *
+ * <p>
+ *   Most identifiers are owned by a single thread, which therefore knows their exact
+ *   state at any time and verifies every result against it. A few shared identifiers are
+ *   created, deleted and read by all threads concurrently. For those, the start and end of
+ *   every successful create, delete and read is recorded. Successful creates and deletes have
+ *   to alternate in every order consistent with those times, i.e. no two creates may both
+ *   complete before a delete started in between and vice versa, the final balance has to match
+ *   the final state, and every read has to return the payload of a create which could have been
+ *   the latest one, i.e. which started before the read ended and was not followed by a delete
+ *   which completed before the read started.
+ * </p>
+ *
+ * <p>
+ *   A workload which doesn't finish within the configured timeout fails with the
+ *   stack traces of all its threads, which usually points directly at a deadlock.
+ * </p>
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class StoreWorkload {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StoreWorkload.class);
+
+    private static final int HEADER = 8;
+
+    private final Store store;
+
+    private int threads = 8;
+
+    private int operations = 250;
+
+    private int sharedIdentifiers = 4;
+
+    private int tinySize = 64;
+
+    private int largeSize = 256 * 1024;
+
+    private double largeRatio = 0.05;
+
+    private boolean list = true;
+
+    private long timeout = 60;
+
+    private TimeUnit timeoutUnit = TimeUnit.SECONDS;
+
+    private long seed = System.nanoTime();
+
+    private final List<String> shared = Lists.newArrayList();
+
+    private final Map<String, List<Event>> histories = Maps.newHashMap();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    public StoreWorkload(Store store) {
+        this.store = Preconditions.checkNotNull(store, "Store");
+    }
+
+    public void setThreads(int threads) {
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        this.threads = threads;
+    }
+
+    public void setOperations(int operations) {
+        Preconditions.checkArgument(operations > 0, "Operations must be positive");
+        this.operations = operations;
+    }
+
+    public void setSharedIdentifiers(int sharedIdentifiers) {
+        Preconditions.checkArgument(sharedIdentifiers >= 0, "Shared identifiers must not be negative");
+        this.sharedIdentifiers = sharedIdentifiers;
+    }
+
+    public void setTinySize(int tinySize) {
+        Preconditions.checkArgument(tinySize >= 0, "Tiny size must not be negative");
+        this.tinySize = tinySize;
+    }
+
+    public void setLargeSize(int largeSize) {
+        Preconditions.checkArgument(largeSize >= 0, "Large size must not be negative");
+        this.largeSize = largeSize;
+    }
+
+    public void setLargeRatio(double largeRatio) {
+        Preconditions.checkArgument(largeRatio >= 0 && largeRatio <= 1, "Large ratio must be in [0, 1]");
+        this.largeRatio = largeRatio;
+    }
+
+    public void setList(boolean list) {
+        this.list = list;
+    }
+
+    public void setTimeout(long timeout, TimeUnit unit) {
+        Preconditions.checkArgument(timeout > 0, "Timeout must be positive");
+        this.timeout = timeout;
+        this.timeoutUnit = Preconditions.checkNotNull(unit, "Unit");
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Runs the workload and verifies the final state of the store.
+     *
+     * @return the measured throughput
+     * @throws Exception if any operation failed or returned a wrong result
+     */
+    public Report run() throws Exception {
+        LOG.info("Running workload with seed {} against {}", seed, store);
+        for (int i = 0; i < sharedIdentifiers; i++) {
+            final String identifier = "shared-" + seed + "-" + i;
+            shared.add(identifier);
+            histories.put(identifier, Collections.synchronizedList(Lists.<Event>newArrayList()));
+        }
+        final Set<String> before = list ? store.list() : null;
+        final ConcurrentMap<String, Long> owned = Maps.newConcurrentMap();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ExecutorService service = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "store-workload-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        try {
+            final List<Future<Map<String, Long>>> futures = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                futures.add(service.submit(new Worker(i, new Random(seed + i), latch)));
+            }
+            final long start = System.nanoTime();
+            latch.countDown();
+            final long deadline = start + timeoutUnit.toNanos(timeout);
+            for (Future<Map<String, Long>> future : futures) {
+                try {
+                    owned.putAll(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    throw new AssertionError("Workload with seed " + seed + " did not finish within " +
+                        timeout + " " + timeoutUnit + ", possible deadlock:\n" + dump());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    } else {
+                        throw (Error) e.getCause();
+                    }
+                }
+            }
+            final long nanos = System.nanoTime() - start;
+            verify(before, owned);
+            final Report report = new Report((long) threads * operations,
+                bytesWritten.get(), bytesRead.get(), nanos);
+            LOG.info("{}: {}", store, report);
+            return report;
+        } finally {
+            service.shutdownNow();
+        }
+    }
+
+    private void verify(Set<String> before, Map<String, Long> owned) throws IOException {
+        final Set<String> expected = Sets.newHashSet(owned.keySet());
+        for (Map.Entry<String, Long> entry : owned.entrySet()) {
+            check(store.exists(entry.getKey()), "%s lost", entry.getKey());
+            verify(entry.getKey(), read(store.read(entry.getKey())), entry.getValue());
+        }
+        for (String identifier : shared) {
+            final List<Event> history = histories.get(identifier);
+            final List<Event> creates = eventsOf(history, Event.CREATE);
+            final List<Event> deletes = eventsOf(history, Event.DELETE);
+            final int balance = creates.size() - deletes.size();
+            check(balance == 0 || balance == 1, "%s created %s times, but deleted %s times",
+                identifier, creates.size(), deletes.size());
+            check(store.exists(identifier) == (balance == 1), "%s exists after %s creates and %s deletes",
+                identifier, creates.size(), deletes.size());
+            if (balance == 1) {
+                final long start = System.nanoTime();
+                final long payloadSeed = seedOf(identifier, read(store.read(identifier)));
+                history.add(new Event(Event.READ, start, System.nanoTime(), payloadSeed));
+                expected.add(identifier);
+            }
+            verifyAlternating(identifier, "creates", creates, deletes, 1);
+            verifyAlternating(identifier, "deletes", deletes, creates, 0);
+            for (Event event : eventsOf(history, Event.READ)) {
+                verifyRead(identifier, event, creates, deletes);
+            }
+        }
+        if (list) {
+            expected.addAll(before);
+            final Set<String> actual = store.list();
+            check(actual.equals(expected), "List contains %s unexpected identifiers and misses %s",
+                Sets.difference(actual, expected).size(), Sets.difference(expected, actual).size());
+        }
+    }
+
+    private String dump() {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            builder.append('"').append(entry.getKey().getName()).append("\" ");
+            builder.append(entry.getKey().getState()).append('\n');
+            for (StackTraceElement element : entry.getValue()) {
+                builder.append("    at ").append(element).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    private byte[] payload(long payloadSeed, int size) {
+        final byte[] payload = new byte[HEADER + size];
+        ByteBuffer.wrap(payload).putLong(payloadSeed);
+        final byte[] body = new byte[size];
+        new Random(payloadSeed).nextBytes(body);
+        System.arraycopy(body, 0, payload, HEADER, size);
+        return payload;
+    }
+
+    private byte[] read(InputStream stream) throws IOException {
+        try {
+            final byte[] bytes = IOUtils.toByteArray(stream);
+            bytesRead.addAndGet(bytes.length);
+            return bytes;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Checks that the given bytes are an intact payload and returns its seed.
+     */
+    private long seedOf(String identifier, byte[] bytes) {
+        check(bytes.length >= HEADER, "%s is truncated to %s bytes", identifier, bytes.length);
+        final long payloadSeed = ByteBuffer.wrap(bytes).getLong();
+        final byte[] expected = payload(payloadSeed, bytes.length - HEADER);
+        check(Arrays.equals(expected, bytes), "%s is corrupt", identifier);
+        return payloadSeed;
+    }
+
+    private void verify(String identifier, byte[] bytes, long expected) {
+        final long actual = seedOf(identifier, bytes);
+        check(actual == expected, "%s contains the payload of %s instead of %s", identifier, actual, expected);
+    }
+
+    private List<Event> eventsOf(List<Event> history, int type) {
+        final List<Event> events = Lists.newArrayList();
+        synchronized (history) {
+            for (Event event : history) {
+                if (event.type == type) {
+                    events.add(event);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Checks that no more operations completed than the alternation allows. Whenever an operation
+     * completes, the completed operations of its kind must not exceed the started operations of
+     * the other kind by more than the given allowance.
+     */
+    private void verifyAlternating(String identifier, String kind, List<Event> completed, List<Event> others,
+        int allowed) {
+        final long[] ends = new long[completed.size()];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = completed.get(i).end;
+        }
+        Arrays.sort(ends);
+        final long[] starts = new long[others.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = others.get(i).start;
+        }
+        Arrays.sort(starts);
+        for (int i = 0; i < ends.length; i++) {
+            final int started = countUntil(starts, ends[i]);
+            check(i + 1 - started <= allowed, "%s completed %s successful %s while only %s of the opposite started",
+                identifier, i + 1, kind, started);
+        }
+    }
+
+    /**
+     * Counts the values in the sorted array which are not greater than the given limit.
+     */
+    private int countUntil(long[] sorted, long limit) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] <= limit) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Checks that the given read returned the payload of a create which could have been
+     * the latest one before the read.
+     */
+    private void verifyRead(String identifier, Event read, List<Event> creates, List<Event> deletes) {
+        for (Event create : creates) {
+            if (create.payloadSeed != read.payloadSeed || create.start > read.end) {
+                continue;
+            }
+            boolean superseded = false;
+            for (Event delete : deletes) {
+                if (delete.start > create.end && delete.end < read.start) {
+                    superseded = true;
+                    break;
+                }
+            }
+            if (!superseded) {
+                return;
+            }
+        }
+        throw new AssertionError(String.format("%s returned the payload %s, which was not the latest",
+            identifier, read.payloadSeed) + " (seed " + seed + ")");
+    }
+
+    private void check(boolean condition, String message, Object... arguments) {
+        if (!condition) {
+            throw new AssertionError(String.format(message, arguments) + " (seed " + seed + ")");
+        }
+    }
+
+    /**
+     * A single thread of the workload, returning the identifiers it owns at the end.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private final class Worker implements Callable<Map<String, Long>> {
+
+        private final int index;
+
+        private final Random random;
+
+        private final CountDownLatch latch;
+
+        private final Map<String, Long> seeds = Maps.newHashMap();
+
+        private final List<String> identifiers = Lists.newArrayList();
+
+        private final Set<String> deleted = Sets.newHashSet();
+
+        private int counter;
+
+        public Worker(int index, Random random, CountDownLatch latch) {
+            this.index = index;
+            this.random = random;
+            this.latch = latch;
+        }
+
+        @Override
+        public Map<String, Long> call() throws Exception {
+            latch.await();
+            for (int operation = 0; operation < operations; operation++) {
+                final int choice = random.nextInt(100);
+                try {
+                    if (choice < 10 && !shared.isEmpty()) {
+                        shared(shared.get(random.nextInt(shared.size())));
+                    } else if (choice < 35 || identifiers.isEmpty()) {
+                        create();
+                    } else if (choice < 55) {
+                        read(pick());
+                    } else if (choice < 65) {
+                        readRange(pick());
+                    } else if (choice < 75) {
+                        view(pick());
+                    } else if (choice < 80) {
+                        stat(pick());
+                    } else if (choice < 97) {
+                        delete(pick());
+                    } else {
+                        list();
+                    }
+                } catch (Exception e) {
+                    throw failure(operation, e);
+                } catch (AssertionError e) {
+                    throw failure(operation, e);
+                }
+            }
+            return seeds;
+        }
+
+        private AssertionError failure(int operation, Throwable cause) {
+            final AssertionError error = new AssertionError("Thread " + index +
+                " failed at operation " + operation + ": " + cause);
+            error.initCause(cause);
+            return error;
+        }
+
+        private String pick() {
+            return identifiers.get(random.nextInt(identifiers.size()));
+        }
+
+        private byte[] newPayload(long payloadSeed) {
+            final boolean large = random.nextDouble() < largeRatio;
+            final int size = random.nextInt((large ? largeSize : tinySize) + 1);
+            final byte[] payload = payload(payloadSeed, size);
+            bytesWritten.addAndGet(payload.length);
+            return payload;
+        }
+
+        private void create() throws IOException {
+            final long payloadSeed = random.nextLong();
+            final byte[] payload = newPayload(payloadSeed);
+            final String identifier;
+            if (random.nextBoolean()) {
+                identifier = store.create(new ByteArrayInputStream(payload));
+            } else {
+                identifier = "owned-" + seed + "-" + index + "-" + counter++;
+                store.create(new ByteArrayInputStream(payload), identifier);
+            }
+            check(!seeds.containsKey(identifier), "%s generated twice", identifier);
+            seeds.put(identifier, payloadSeed);
+            identifiers.add(identifier);
+            deleted.remove(identifier);
+        }
+
+        private void read(String identifier) throws IOException {
+            verify(identifier, StoreWorkload.this.read(store.read(identifier)), seeds.get(identifier));
+        }
+
+        private void readRange(String identifier) throws IOException {
+            final byte[] full = StoreWorkload.this.read(store.read(identifier));
+            verify(identifier, full, seeds.get(identifier));
+            final int offset = random.nextInt(full.length + 1);
+            final int length = random.nextInt(full.length - offset + 1);
+            final byte[] range = StoreWorkload.this.read(store.read(identifier, offset, length));
+            check(Arrays.equals(Arrays.copyOfRange(full, offset, offset + length), range),
+                "%s returned a wrong range [%s, %s)", identifier, offset, offset + length);
+        }
+
+        private void view(String identifier) throws IOException {
+            if (store instanceof ByteStore) {
+                final ByteStore byteStore = (ByteStore) store;
+                final ByteBuffer buffer = byteStore.view(identifier);
+                try {
+                    final byte[] bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                    bytesRead.addAndGet(bytes.length);
+                    verify(identifier, bytes, seeds.get(identifier));
+                } finally {
+                    byteStore.release(buffer);
+                }
+            } else {
+                read(identifier);
+            }
+        }
+
+        private void stat(String identifier) throws IOException {
+            check(store.exists(identifier), "%s vanished", identifier);
+            final BlobStat stat = store.stat(identifier);
+            check(identifier.equals(stat.getIdentifier()), "%s reported as %s", identifier, stat.getIdentifier());
+            final long size = StoreWorkload.this.read(store.read(identifier)).length;
+            check(stat.getSize() == size, "%s reported %s bytes instead of %s", identifier, stat.getSize(), size);
+        }
+
+        private void delete(String identifier) throws IOException {
+            store.delete(identifier);
+            seeds.remove(identifier);
+            identifiers.remove(identifier);
+            deleted.add(identifier);
+            check(!store.exists(identifier), "%s still exists after delete", identifier);
+            try {
+                store.read(identifier).close();
+                throw new AssertionError(identifier + " still readable after delete");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+
+        private void list() throws IOException {
+            if (!list) {
+                return;
+            }
+            final Set<String> listed = store.list();
+            for (String identifier : identifiers) {
+                check(listed.contains(identifier), "%s not listed", identifier);
+            }
+            for (String identifier : deleted) {
+                check(!listed.contains(identifier), "%s listed after delete", identifier);
+            }
+        }
+
+        private void shared(String identifier) throws IOException {
+            switch (random.nextInt(3)) {
+                case 0: {
+                    final long payloadSeed = random.nextLong();
+                    final byte[] payload = newPayload(payloadSeed);
+                    final long start = System.nanoTime();
+                    try {
+                        store.create(new ByteArrayInputStream(payload), identifier);
+                        histories.get(identifier).add(new Event(Event.CREATE, start, System.nanoTime(), payloadSeed));
+                    } catch (IllegalStateException e) {
+                        // already present
+                    }
+                    break;
+                }
+                case 1: {
+                    final long start = System.nanoTime();
+                    try {
+                        store.delete(identifier);
+                        histories.get(identifier).add(new Event(Event.DELETE, start, System.nanoTime(), 0));
+                    } catch (IllegalStateException e) {
+                        // not present
+                    }
+                    break;
+                }
+                default: {
+                    final long start = System.nanoTime();
+                    final InputStream stream;
+                    try {
+                        stream = store.read(identifier);
+                    } catch (IllegalStateException e) {
+                        // not present
+                        break;
+                    }
+                    final long payloadSeed = seedOf(identifier, StoreWorkload.this.read(stream));
+                    histories.get(identifier).add(new Event(Event.READ, start, System.nanoTime(), payloadSeed));
+                    break;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * A successful operation on a shared identifier.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    private static final class Event {
+
+        public static final int CREATE = 0;
+
+        public static final int DELETE = 1;
+
+        public static final int READ = 2;
+
+        private final int type;
+
+        private final long start;
+
+        private final long end;
+
+        // the payload of creates and reads
+        private final long payloadSeed;
+
+        public Event(int type, long start, long end, long payloadSeed) {
+            this.type = type;
+            this.start = start;
+            this.end = end;
+            this.payloadSeed = payloadSeed;
+        }
+
+    }
+
+    /**
+     * Throughput measured by {@link StoreWorkload#run()}.
+     *
+     * @since 2.2
+     * @author Willi Schoenborn
+     */
+    public static final class Report {
+
+        private final long operations;
+
+        private final long bytesWritten;
+
+        private final long bytesRead;
+
+        private final long nanos;
+
+        Report(long operations, long bytesWritten, long bytesRead, long nanos) {
+            this.operations = operations;
+            this.bytesWritten = bytesWritten;
+            this.bytesRead = bytesRead;
+            this.nanos = nanos;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the number of operations per second.
+         *
+         * @return operations per second
+         */
+        public double getOperationsPerSecond() {
+            return operations / seconds();
+        }
+
+        /**
+         * Returns the number of bytes written and read per second.
+         *
+         * @return bytes per second
+         */
+        public double getBytesPerSecond() {
+            return (bytesWritten + bytesRead) / seconds();
+        }
+
+        private double seconds() {
+            return Math.max(nanos, 1) / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d operations in %.3fs (%.0f ops/s, %.1f MB/s written, %.1f MB/s read)",
+                operations, seconds(), getOperationsPerSecond(),
+                bytesWritten / seconds() / (1024 * 1024), bytesRead / seconds() / (1024 * 1024));
+        }
+
+    }
+
+}
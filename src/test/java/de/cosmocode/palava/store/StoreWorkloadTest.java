@@ -0,0 +1,134 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Tests that {@link StoreWorkload} detects stores which violate the alternation
+ * of creates and deletes or return stale data.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class StoreWorkloadTest {
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    private void assertDetected(Store store) throws Exception {
+        final StoreWorkload workload = new StoreWorkload(store);
+        workload.setThreads(4);
+        workload.setOperations(1000);
+        workload.setSharedIdentifiers(1);
+        workload.setLargeRatio(0);
+        workload.setSeed(0);
+        try {
+            workload.run();
+        } catch (AssertionError e) {
+            return;
+        }
+        Assert.fail("Expected AssertionError");
+    }
+
+    /**
+     * Tests a store which accepts creates of present identifiers by replacing them.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void duplicateCreates() throws Exception {
+        final SegmentStore store = stores.open();
+        assertDetected(new ForwardingStore() {
+
+            @Override
+            protected Store delegate() {
+                return store;
+            }
+
+            @Override
+            public synchronized void create(InputStream stream, String identifier) throws IOException {
+                if (store.exists(identifier)) {
+                    store.delete(identifier);
+                }
+                store.create(stream, identifier);
+            }
+
+            @Override
+            public synchronized void delete(String identifier) throws IOException {
+                store.delete(identifier);
+            }
+
+        });
+    }
+
+    /**
+     * Tests a store which keeps returning the first payload it read of an identifier.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void staleReads() throws Exception {
+        final SegmentStore store = stores.open();
+        final ConcurrentMap<String, byte[]> cache = Maps.newConcurrentMap();
+        assertDetected(new ForwardingStore() {
+
+            @Override
+            protected Store delegate() {
+                return store;
+            }
+
+            @Override
+            public InputStream read(String identifier) throws IOException {
+                final byte[] cached = cache.get(identifier);
+                if (cached != null && store.exists(identifier)) {
+                    return new ByteArrayInputStream(cached);
+                }
+                final InputStream stream = store.read(identifier);
+                final byte[] bytes;
+                try {
+                    bytes = IOUtils.toByteArray(stream);
+                } finally {
+                    stream.close();
+                }
+                cache.putIfAbsent(identifier, bytes);
+                return new ByteArrayInputStream(bytes);
+            }
+
+        });
+    }
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Test utility which opens {@link SegmentStore}s in temporary directories
+ * and removes them again on {@link #dispose()}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+final class TemporarySegmentStores {
+
+    private final List<File> directories = Lists.newArrayList();
+
+    private final List<SegmentStore> stores = Lists.newArrayList();
+
+    /**
+     * Creates a new empty temporary directory.
+     *
+     * @return the new directory
+     */
+    File newDirectory() {
+        try {
+            final File directory = File.createTempFile("segments", "");
+            if (!directory.delete() || !directory.mkdir()) {
+                throw new IllegalStateException("Unable to create " + directory);
+            }
+            directories.add(directory);
+            return directory;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Opens a store in the given directory.
+     *
+     * @param directory the directory
+     * @return a new store
+     */
+    SegmentStore open(File directory) {
+        return open(directory, Segment.DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Opens a store in the given directory, mapping segments in windows of the given size.
+     *
+     * @param directory the directory
+     * @param windowSize the window size in bytes
+     * @return a new store
+     */
+    SegmentStore open(File directory, int windowSize) {
+        try {
+            final SegmentStore store = new SegmentStore(directory, windowSize);
+            stores.add(store);
+            return store;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Opens a store in a new temporary directory.
+     *
+     * @return a new empty store
+     */
+    SegmentStore open() {
+        return open(newDirectory());
+    }
+
+    /**
+     * Closes all opened stores and removes all temporary directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    void dispose() throws IOException {
+        for (SegmentStore store : stores) {
+            store.dispose();
+        }
+        stores.clear();
+        for (File directory : directories) {
+            FileUtils.deleteDirectory(directory);
+        }
+        directories.clear();
+    }
+
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests {@link TieredStore}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class TieredStoreTest extends AbstractStoreTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    private FileStore newCold() {
+        return newCold(stores.newDirectory());
+    }
+
+    private FileStore newCold(File directory) {
+        try {
+            return new FileStore(directory);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private TieredStore newUnit(SegmentStore hot, Store cold) {
+        try {
+            return new TieredStore(hot, cold, 1, TimeUnit.DAYS);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public TieredStore unit() {
+        return newUnit(stores.open(), newCold());
+    }
+
+    @Override
+    protected Store unitWithGenerator(IdGenerator generator) {
+        final TieredStore unit = unit();
+        unit.setGenerator(generator);
+        return unit;
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    /**
+     * Tests that demoted blobs move to the cold tier and stay visible.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void demote() throws IOException {
+        final SegmentStore hot = stores.open();
+        final FileStore cold = newCold();
+        final TieredStore unit = newUnit(hot, cold);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        Assert.assertEquals(0, unit.demote());
+        Assert.assertEquals(1, unit.demote(Long.MAX_VALUE));
+        Assert.assertEquals(0, unit.getHotCount());
+        Assert.assertTrue(hot.list().isEmpty());
+        Assert.assertEquals(ImmutableSet.of(identifier), cold.list());
+        Assert.assertEquals(ImmutableSet.of(identifier), unit.list());
+    }
+
+    /**
+     * Tests that reading a cold blob promotes it while keeping the cold copy.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void promote() throws IOException {
+        final SegmentStore hot = stores.open();
+        final FileStore cold = newCold();
+        final TieredStore unit = newUnit(hot, cold);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.demote(Long.MAX_VALUE);
+        Assert.assertEquals("data", IOUtils.toString(unit.read(identifier), UTF_8));
+        Assert.assertEquals(ImmutableSet.of(identifier), hot.list());
+        Assert.assertEquals(ImmutableSet.of(identifier), cold.list());
+        Assert.assertEquals(ImmutableSet.of(identifier), unit.list());
+        Assert.assertEquals(1, unit.demote(Long.MAX_VALUE));
+        Assert.assertTrue(hot.list().isEmpty());
+    }
+
+    /**
+     * Tests that deleting a promoted blob removes it from both tiers.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void deletePromoted() throws IOException {
+        final SegmentStore hot = stores.open();
+        final FileStore cold = newCold();
+        final TieredStore unit = newUnit(hot, cold);
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        unit.demote(Long.MAX_VALUE);
+        unit.view(identifier);
+        unit.delete(identifier);
+        Assert.assertTrue(hot.list().isEmpty());
+        Assert.assertTrue(cold.list().isEmpty());
+    }
+
+    /**
+     * Tests {@link TieredStore#create(java.io.InputStream, String)} using an
+     * identifier which is only present in the cold tier.
+     *
+     * @throws IOException expected
+     */
+    @Test(expected = IllegalStateException.class)
+    public void createDuplicateCold() throws IOException {
+        final TieredStore unit = unit();
+        unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)), "identifier");
+        unit.demote(Long.MAX_VALUE);
+        unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)), "identifier");
+    }
+
+    /**
+     * Tests that hot blobs are demoted correctly after a restart, including
+     * promoted ones which already have a cold copy.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void reopen() throws IOException {
+        final File hotDirectory = stores.newDirectory();
+        final File coldDirectory = stores.newDirectory();
+        final SegmentStore hot = stores.open(hotDirectory);
+        final TieredStore unit = newUnit(hot, newCold(coldDirectory));
+        final String fresh = unit.create(new ByteArrayInputStream("fresh".getBytes(UTF_8)));
+        final String promoted = unit.create(new ByteArrayInputStream("promoted".getBytes(UTF_8)));
+        unit.demote(Long.MAX_VALUE);
+        unit.read(promoted).close();
+        final String hotOnly = unit.create(new ByteArrayInputStream("hot".getBytes(UTF_8)));
+        hot.dispose();
+
+        final FileStore cold = newCold(coldDirectory);
+        final TieredStore reopened = newUnit(stores.open(hotDirectory), cold);
+        Assert.assertEquals(2, reopened.getHotCount());
+        Assert.assertEquals(2, reopened.demote(Long.MAX_VALUE));
+        Assert.assertEquals(ImmutableSet.of(fresh, promoted, hotOnly), cold.list());
+        Assert.assertEquals("hot", IOUtils.toString(reopened.read(hotOnly), UTF_8));
+    }
+
+    /**
+     * Tests that {@link TieredStore#transferTo(String, java.nio.channels.WritableByteChannel)}
+     * survives concurrent demotions of the same blob.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void transferToConcurrentDemote() throws Exception {
+        final TieredStore unit = unit();
+        final String identifier = unit.create(new ByteArrayInputStream("data".getBytes(UTF_8)));
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final Thread demoter = new Thread() {
+
+            @Override
+            public void run() {
+                while (running.get()) {
+                    unit.demote(Long.MAX_VALUE);
+                }
+            }
+
+        };
+        demoter.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                Assert.assertEquals(4L, unit.transferTo(identifier, Channels.newChannel(output)));
+                Assert.assertEquals("data", output.toString(UTF_8));
+            }
+        } finally {
+            running.set(false);
+            demoter.join();
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+
+/**
+ * Tests {@link TimeBasedGenerator}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class TimeBasedGeneratorTest {
+
+    /**
+     * Tests that generated identifiers are unique, have a fixed length and
+     * are strictly increasing.
+     */
+    @Test
+    public void generate() {
+        final IdGenerator unit = new TimeBasedGenerator();
+        final List<String> identifiers = Lists.newArrayList();
+        for (int i = 0; i < 10000; i++) {
+            identifiers.add(unit.generate());
+        }
+        Assert.assertTrue(Ordering.natural().isStrictlyOrdered(identifiers));
+        for (String identifier : identifiers) {
+            Assert.assertEquals(26, identifier.length());
+        }
+    }
+
+    /**
+     * Tests {@link TimeBasedGenerator#timestampOf(String)}.
+     */
+    @Test
+    public void timestampOf() {
+        final long before = System.currentTimeMillis();
+        final String identifier = new TimeBasedGenerator().generate();
+        final long after = System.currentTimeMillis();
+        final long timestamp = TimeBasedGenerator.timestampOf(identifier);
+        Assert.assertTrue(before <= timestamp && timestamp <= after);
+    }
+
+    /**
+     * Tests that {@link TimeBasedGenerator#cursor(long)} sorts between identifiers
+     * created before and at the given timestamp.
+     */
+    @Test
+    public void cursor() {
+        final IdGenerator unit = new TimeBasedGenerator();
+        final String identifier = unit.generate();
+        final long timestamp = TimeBasedGenerator.timestampOf(identifier);
+        final String cursor = TimeBasedGenerator.cursor(timestamp);
+        Assert.assertTrue(cursor.compareTo(identifier) < 0);
+        Assert.assertTrue(TimeBasedGenerator.cursor(timestamp + 1).compareTo(identifier) > 0);
+        Assert.assertEquals(timestamp - 1, TimeBasedGenerator.timestampOf(cursor));
+    }
+
+    /**
+     * Tests that concurrently generated identifiers are unique.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void generateConcurrently() throws InterruptedException {
+        final IdGenerator unit = new TimeBasedGenerator();
+        final Set<String> identifiers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            final Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        identifiers.add(unit.generate());
+                    }
+                }
+
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(40000, identifiers.size());
+    }
+
+}
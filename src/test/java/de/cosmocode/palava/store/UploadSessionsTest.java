@@ -0,0 +1,297 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link UploadSessions}.
+ *
+ * @since 2.2
+ * @author Willi Schoenborn
+ */
+public final class UploadSessionsTest {
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final TemporarySegmentStores stores = new TemporarySegmentStores();
+
+    private Store store;
+
+    private File directory;
+
+    private UploadSessions unit;
+
+    /**
+     * Creates the store and the session directory.
+     *
+     * @throws IOException should not happen
+     */
+    @Before
+    public void setUp() throws IOException {
+        store = stores.open();
+        directory = stores.newDirectory();
+        unit = new UploadSessions(store, directory);
+    }
+
+    /**
+     * Closes all opened stores and removes their directories.
+     *
+     * @throws IOException if deletion failed
+     */
+    @After
+    public void tearDown() throws IOException {
+        stores.dispose();
+    }
+
+    private long write(String session, long offset, String data) throws IOException {
+        return unit.write(session, offset, new ByteArrayInputStream(data.getBytes(UTF_8)));
+    }
+
+    /**
+     * Tests a sequential upload.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void commit() throws IOException {
+        final String session = unit.open("blob");
+        Assert.assertEquals(ImmutableSet.of(session), unit.sessions());
+        Assert.assertEquals("blob", unit.identifierOf(session));
+        Assert.assertEquals(5, write(session, 0, "hello"));
+        Assert.assertEquals(6, write(session, 5, " world"));
+        Assert.assertEquals(11, unit.received(session));
+        Assert.assertEquals("blob", unit.commit(session));
+        Assert.assertEquals("hello world", IOUtils.toString(store.read("blob"), UTF_8));
+        Assert.assertEquals(ImmutableSet.of(), unit.sessions());
+    }
+
+    /**
+     * Tests that chunks may arrive out of order.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void commitOutOfOrder() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 6, "world");
+        Assert.assertEquals(0, unit.received(session));
+        write(session, 0, "hello ");
+        Assert.assertEquals(ImmutableMap.of(0L, 6L, 6L, 5L), unit.chunks(session));
+        unit.commit(session);
+        Assert.assertEquals("hello world", IOUtils.toString(store.read("blob"), UTF_8));
+    }
+
+    /**
+     * Tests that chunks may be written in parallel.
+     *
+     * @throws IOException should not happen
+     * @throws InterruptedException should not happen
+     * @throws ExecutionException should not happen
+     */
+    @Test
+    public void commitParallel() throws IOException, InterruptedException, ExecutionException {
+        final String session = unit.open("blob");
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final StringBuilder expected = new StringBuilder();
+        final List<Future<Long>> futures = Lists.newArrayList();
+        try {
+            for (int i = 0; i < 20; i++) {
+                final String chunk = String.format("chunk%02d;", i);
+                final long offset = expected.length();
+                expected.append(chunk);
+                futures.add(executor.submit(new Callable<Long>() {
+
+                    @Override
+                    public Long call() throws IOException {
+                        return write(session, offset, chunk);
+                    }
+
+                }));
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        unit.commit(session);
+        Assert.assertEquals(expected.toString(), IOUtils.toString(store.read("blob"), UTF_8));
+    }
+
+    /**
+     * Tests that sessions with missing chunks can't be committed and stay open.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void commitMissing() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+        write(session, 6, "world");
+        try {
+            unit.commit(session);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertFalse(store.exists("blob"));
+        }
+        write(session, 5, " ");
+        unit.commit(session);
+        Assert.assertEquals("hello world", IOUtils.toString(store.read("blob"), UTF_8));
+    }
+
+    /**
+     * Tests that overlapping chunks are rejected.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalStateException.class)
+    public void commitOverlapping() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+        write(session, 3, "lo world");
+        unit.commit(session);
+    }
+
+    /**
+     * Tests that an interrupted upload can be resumed after a restart.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void resume() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+
+        final UploadSessions reopened = new UploadSessions(store, directory);
+        Assert.assertEquals(ImmutableSet.of(session), reopened.sessions());
+        Assert.assertEquals(5, reopened.received(session));
+        reopened.write(session, 5, new ByteArrayInputStream(" world".getBytes(UTF_8)));
+        reopened.commit(session);
+        Assert.assertEquals("hello world", IOUtils.toString(store.read("blob"), UTF_8));
+    }
+
+    /**
+     * Tests that {@link UploadSessions#received(String)} stops at overlapping chunks,
+     * which {@link UploadSessions#commit(String)} rejects.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void receivedOverlapping() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+        write(session, 3, "lo world");
+        Assert.assertEquals(5, unit.received(session));
+    }
+
+    /**
+     * Tests that sessions whose commit was interrupted after storing the upload
+     * are removed instead of being reopened after a restart.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void resumeCommitted() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+        final String interrupted = unit.open("interrupted");
+        write(interrupted, 0, "world");
+        store.create(new ByteArrayInputStream("hello".getBytes(UTF_8)), "blob");
+        Assert.assertTrue(new File(directory, session).renameTo(new File(directory, session + ".committing")));
+        Assert.assertTrue(new File(directory, interrupted).renameTo(new File(directory, interrupted + ".committing")));
+
+        final UploadSessions reopened = new UploadSessions(store, directory);
+        Assert.assertEquals(ImmutableSet.of(interrupted), reopened.sessions());
+        Assert.assertEquals(1, directory.list().length);
+        Assert.assertEquals("interrupted", reopened.commit(interrupted));
+    }
+
+    /**
+     * Tests {@link UploadSessions#open(String)} with an identifier which is already present.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalStateException.class)
+    public void openPresent() throws IOException {
+        store.create(new ByteArrayInputStream(new byte[0]), "blob");
+        unit.open("blob");
+    }
+
+    /**
+     * Tests {@link UploadSessions#abort(String)}.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void abort() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+        unit.abort(session);
+        Assert.assertEquals(ImmutableSet.of(), unit.sessions());
+        try {
+            write(session, 5, "world");
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            Assert.assertFalse(store.exists("blob"));
+        }
+    }
+
+    /**
+     * Tests that sessions can't escape the session directory.
+     *
+     * @throws IOException should not happen
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void writeInvalidSession() throws IOException {
+        write("../blob", 0, "hello");
+    }
+
+    /**
+     * Tests {@link UploadSessions#purge(long, TimeUnit)}.
+     *
+     * @throws IOException should not happen
+     */
+    @Test
+    public void purge() throws IOException {
+        final String session = unit.open("blob");
+        write(session, 0, "hello");
+        Assert.assertEquals(0, unit.purge(1, TimeUnit.HOURS));
+        Assert.assertEquals(1, unit.purge(-1, TimeUnit.HOURS));
+        Assert.assertEquals(ImmutableSet.of(), unit.sessions());
+    }
+
+}